@@ -0,0 +1,70 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class EnrollmentQueueCloseTest {
+
+    private static final String DATABASE_NAME = "FacesEnrollmentTest.db";
+
+    private Context context;
+    private FaceDatabase database;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        database = new FaceDatabase(context, DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void closeCommitsWritesStillLingering() throws Exception {
+        AtomicInteger commits = new AtomicInteger();
+        EnrollmentQueue queue = new EnrollmentQueue(database, 16, commits::incrementAndGet);
+        List<CompletableFuture<Boolean>> written = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            written.add(queue.add("face-" + i, new float[][]{{i, 1f}}));
+        }
+
+        queue.close();
+        queue.close();
+
+        for (CompletableFuture<Boolean> future : written) {
+            assertTrue(future.isDone());
+            assertTrue(future.get());
+        }
+        assertEquals(1, commits.get());
+        assertEquals(3, database.getFaceCount());
+
+        try {
+            queue.add("late", new float[][]{{1f, 1f}}).get();
+            fail("Expected the closed queue to reject the write");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public class FaceDatabaseEncodingTest {
+
+    private static final String DATABASE_NAME = "FacesEncodingTest.db";
+    // 2 KB float32 templates, a few times the 2 MB a CursorWindow holds.
+    private static final int ROWS = 5_000;
+    private static final int EMBEDDING_SIZE = 512;
+
+    private Context context;
+    private FaceDatabase database;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        database = new FaceDatabase(context, DATABASE_NAME);
+
+        Random random = new Random(7);
+        database.beginBatch();
+        try {
+            for (int i = 0; i < ROWS; i++) {
+                float[][] embedding = new float[1][EMBEDDING_SIZE];
+                for (int d = 0; d < EMBEDDING_SIZE; d++) {
+                    embedding[0][d] = (float) random.nextGaussian();
+                }
+                database.addFace("face-" + i, embedding);
+            }
+            database.commit();
+        } catch (RuntimeException e) {
+            database.rollback();
+            throw e;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void reencodesGalleriesLargerThanOneCursorWindow() {
+        assertEquals(ROWS, database.getTemplateCount(EmbeddingCodec.DTYPE_FLOAT32));
+
+        database.setEmbeddingEncoding(EmbeddingCodec.DTYPE_FLOAT16);
+
+        assertEquals(EmbeddingCodec.DTYPE_FLOAT16, database.getEmbeddingEncoding());
+        assertEquals(ROWS, database.getTemplateCount(EmbeddingCodec.DTYPE_FLOAT16));
+        assertEquals(0, database.getTemplateCount(EmbeddingCodec.DTYPE_FLOAT32));
+
+        database.setEmbeddingEncoding(EmbeddingCodec.DTYPE_INT8);
+
+        assertEquals(ROWS, database.getTemplateCount(EmbeddingCodec.DTYPE_INT8));
+        assertEquals(ROWS, database.getAllFaces().size());
+    }
+
+    @Test
+    public void getFacesLooksUpMoreNamesThanOneStatementCanBind() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 2_500; i++) {
+            names.add("face-" + (i * 2));
+        }
+        names.add("face-0");
+        names.add("unknown");
+
+        assertEquals(2_500, database.getFaces(names).size());
+    }
+}
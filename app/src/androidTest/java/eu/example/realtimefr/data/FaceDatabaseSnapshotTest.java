@@ -0,0 +1,86 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+@RunWith(AndroidJUnit4.class)
+public class FaceDatabaseSnapshotTest {
+
+    private static final String DATABASE_NAME = "FacesSnapshotTest.db";
+
+    private Context context;
+    private FaceDatabase database;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        database = new FaceDatabase(context, DATABASE_NAME);
+        database.addFace("alice", new float[][]{{1f, 0f, 0f, 0f}});
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    private static byte[] snapshot(float[]... embeddings) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GallerySnapshot.Writer writer = new GallerySnapshot.Writer(out);
+        for (int i = 0; i < embeddings.length; i++) {
+            GallerySnapshot.Template template = new GallerySnapshot.Template(EmbeddingCodec.DTYPE_FLOAT32,
+                    embeddings[i].length, EmbeddingCodec.encode(embeddings[i], EmbeddingCodec.DTYPE_FLOAT32));
+            writer.write(new GallerySnapshot.Record("face-" + i, Collections.singletonList(template)));
+        }
+        writer.finish();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void importRejectsForeignDimensionAndRollsBack() throws IOException {
+        byte[] foreign = snapshot(new float[]{0f, 1f, 0f, 0f}, new float[]{0f, 0f, 1f});
+
+        try {
+            database.importSnapshot(new ByteArrayInputStream(foreign), false);
+            fail("Expected a dimension mismatch");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("face-1"));
+        }
+
+        assertEquals(1, database.getFaceCount());
+        assertEquals(4, database.getEmbeddingDimension());
+    }
+
+    @Test
+    public void replaceAllTakesTheFirstRecordsDimension() throws IOException {
+        byte[] mixed = snapshot(new float[]{0f, 1f, 0f}, new float[]{0f, 0f, 1f, 0f});
+
+        try {
+            database.importSnapshot(new ByteArrayInputStream(mixed), true);
+            fail("Expected a dimension mismatch");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("face-1"));
+        }
+
+        assertEquals(1, database.getFaceCount());
+        assertEquals(1, database.importSnapshot(new ByteArrayInputStream(snapshot(new float[]{0f, 1f, 0f})), true));
+        assertEquals(3, database.getEmbeddingDimension());
+    }
+}
@@ -0,0 +1,77 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public class FaceDatabaseThroughputTest {
+
+    private static final String DATABASE_NAME = "FacesThroughputTest.db";
+    private static final int ROWS = 10_000;
+    private static final int EMBEDDING_SIZE = 512;
+
+    private Context context;
+    private FaceDatabase database;
+    private float[][][] embeddings;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        database = new FaceDatabase(context, DATABASE_NAME);
+
+        Random random = new Random(42);
+        embeddings = new float[ROWS][1][EMBEDDING_SIZE];
+        for (float[][] embedding : embeddings) {
+            for (int i = 0; i < EMBEDDING_SIZE; i++) {
+                embedding[0][i] = (float) random.nextGaussian();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void batchedInsertsOutperformAutocommit() {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROWS; i++) {
+            database.addFace("autocommit-" + i, embeddings[i]);
+        }
+        double autocommitRate = ROWS / ((System.nanoTime() - start) / 1e9);
+
+        start = System.nanoTime();
+        database.beginBatch();
+        try {
+            for (int i = 0; i < ROWS; i++) {
+                database.addFace("batched-" + i, embeddings[i]);
+            }
+            database.commit();
+        } catch (RuntimeException e) {
+            database.rollback();
+            throw e;
+        }
+        double batchedRate = ROWS / ((System.nanoTime() - start) / 1e9);
+
+        Log.i("FaceDatabaseThroughput", String.format("%d inserts: autocommit %.0f rows/s, batched %.0f rows/s",
+                ROWS, autocommitRate, batchedRate));
+        assertEquals(2 * ROWS, database.getFaceCount());
+        assertTrue("Batched inserts should be faster than one transaction per row", batchedRate > autocommitRate);
+    }
+}
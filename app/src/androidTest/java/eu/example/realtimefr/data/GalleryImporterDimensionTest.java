@@ -0,0 +1,57 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+
+@RunWith(AndroidJUnit4.class)
+public class GalleryImporterDimensionTest {
+
+    private static final String DATABASE_NAME = "FacesImporterTest.db";
+
+    private Context context;
+    private FaceDatabase database;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        database = new FaceDatabase(context, DATABASE_NAME);
+        database.addFace("alice", new float[][]{{1f, 0f, 0f, 0f}});
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void importRejectsRecordWithAnotherDimensionAndRollsBack() {
+        GalleryImporter importer = new GalleryImporter(database);
+        String csv = "bob,0,1,0,0\ncarol,0,0,1\n";
+
+        try {
+            importer.importFaces(GalleryImporter.readCsv(new BufferedReader(new StringReader(csv))), null);
+            fail("Expected a dimension mismatch");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Record 2 (carol)"));
+        }
+
+        assertEquals(4, database.getEmbeddingDimension());
+        assertEquals(1, database.getFaceCount());
+    }
+}
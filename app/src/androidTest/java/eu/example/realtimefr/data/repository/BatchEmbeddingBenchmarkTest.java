@@ -0,0 +1,89 @@
+package eu.example.realtimefr.data.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeNoException;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import eu.example.realtimefr.viewmodel.FaceRecognizer;
+
+// Per-face embedding latency on the CPU when a frame's crops go through the interpreter one by one or together.
+@RunWith(AndroidJUnit4.class)
+public class BatchEmbeddingBenchmarkTest {
+
+    private static final String MODEL = "facenet.tflite";
+    private static final int INPUT_SIZE = 160;
+    private static final int WARM_UP_RUNS = 3;
+    private static final int TIMED_RUNS = 10;
+
+    @Test
+    public void perFaceLatencyAtBatchSizes() throws IOException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        try (InputStream ignored = context.getAssets().open(MODEL)) {
+        } catch (IOException e) {
+            assumeNoException("the model is not bundled in this build", e);
+        }
+        final FaceRecognizer recognizer = RealtimeRecognitionRepo.initialize(context.getAssets(), MODEL, INPUT_SIZE, false, context);
+
+        final Random random = new Random(7);
+        final List<Bitmap> crops = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            final int[] pixels = new int[INPUT_SIZE * INPUT_SIZE];
+            for (int p = 0; p < pixels.length; p++) {
+                pixels[p] = 0xFF000000 | random.nextInt(0x1000000);
+            }
+            crops.add(Bitmap.createBitmap(pixels, INPUT_SIZE, INPUT_SIZE, Bitmap.Config.ARGB_8888));
+        }
+
+        for (int batchSize : new int[]{1, 4, 16}) {
+            final List<Bitmap> batch = crops.subList(0, batchSize);
+            final double separate = perFaceMillis(() -> {
+                for (Bitmap crop : batch) {
+                    recognizer.embed(crop);
+                }
+            }, batchSize);
+            final double batched = perFaceMillis(() -> recognizer.embedBatch(batch), batchSize);
+            Log.i("BatchEmbeddingBenchmark", String.format("batch %2d: %.2f ms/face one by one, %.2f ms/face batched",
+                    batchSize, separate, batched));
+        }
+
+        // Batching must not change what the model sees for a face.
+        final float[][] batched = recognizer.embedBatch(crops.subList(0, 4));
+        for (int i = 0; i < 4; i++) {
+            final float[] single = recognizer.embed(crops.get(i));
+            for (int d = 0; d < single.length; d++) {
+                assertEquals("face " + i + " dimension " + d, single[d], batched[i][d], 1e-4f);
+            }
+        }
+    }
+
+    private static double perFaceMillis(Runnable frame, int faces) {
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            frame.run();
+        }
+        final long[] runs = new long[TIMED_RUNS];
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            final long start = SystemClock.elapsedRealtimeNanos();
+            frame.run();
+            runs[i] = SystemClock.elapsedRealtimeNanos() - start;
+        }
+        Arrays.sort(runs);
+        return runs[TIMED_RUNS / 2] / 1e6 / faces;
+    }
+}
@@ -0,0 +1,64 @@
+package eu.example.realtimefr.data.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeNoException;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import eu.example.realtimefr.data.LatencyRecorder;
+
+// Median and 95th percentile latency of one face under each CPU configuration of the interpreter on this device.
+@RunWith(AndroidJUnit4.class)
+public class EmbeddingOptionsBenchmarkTest {
+
+    private static final String MODEL = "facenet.tflite";
+    private static final int INPUT_SIZE = 160;
+    private static final int RUNS = 30;
+
+    @Test
+    public void latencyPerConfiguration() throws IOException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        try (InputStream ignored = context.getAssets().open(MODEL)) {
+        } catch (IOException e) {
+            assumeNoException("the model is not bundled in this build", e);
+        }
+
+        final List<EmbeddingOptions> configurations = new ArrayList<>();
+        for (int threads : new int[]{1, 2, 4}) {
+            for (boolean xnnpack : new boolean[]{false, true}) {
+                configurations.add(new EmbeddingOptions().setWorkers(1).setThreadsPerWorker(threads).setUseXnnpack(xnnpack));
+            }
+            configurations.add(new EmbeddingOptions().setWorkers(1).setThreadsPerWorker(threads).setAllowFp16(true));
+        }
+
+        final Random random = new Random(3);
+        final int[] pixels = new int[INPUT_SIZE * INPUT_SIZE];
+        for (int p = 0; p < pixels.length; p++) {
+            pixels[p] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        final Bitmap crop = Bitmap.createBitmap(pixels, INPUT_SIZE, INPUT_SIZE, Bitmap.Config.ARGB_8888);
+
+        final Map<EmbeddingOptions, LatencyRecorder> results = RealtimeRecognitionRepo.benchmark(
+                context.getAssets(), MODEL, INPUT_SIZE, configurations, crop, RUNS);
+
+        for (Map.Entry<EmbeddingOptions, LatencyRecorder> result : results.entrySet()) {
+            Log.i("EmbeddingOptionsBenchmark", result.getKey() + ": " + result.getValue());
+            assertEquals(RUNS, result.getValue().getCount());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package eu.example.realtimefr.data.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeNoException;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public class EmbeddingWorkerBatchTest {
+
+    private static final String MODEL = "facenet.tflite";
+    private static final int INPUT_SIZE = 160;
+
+    @Test
+    public void embedAfterACrowdedFrameRunsABatchOfOne() throws IOException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final MappedByteBuffer model;
+        try (AssetFileDescriptor descriptor = context.getAssets().openFd(MODEL);
+             FileInputStream in = new FileInputStream(descriptor.getFileDescriptor())) {
+            model = in.getChannel().map(FileChannel.MapMode.READ_ONLY, descriptor.getStartOffset(), descriptor.getDeclaredLength());
+        } catch (IOException e) {
+            assumeNoException("the model is not bundled in this build", e);
+            return;
+        }
+        final EmbeddingWorker worker = new EmbeddingWorker(model, new EmbeddingOptions(), 1, INPUT_SIZE, 128f, 128f);
+
+        final Random random = new Random(3);
+        final List<Bitmap> crops = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            final int[] pixels = new int[INPUT_SIZE * INPUT_SIZE];
+            for (int p = 0; p < pixels.length; p++) {
+                pixels[p] = 0xFF000000 | random.nextInt(0x1000000);
+            }
+            crops.add(Bitmap.createBitmap(pixels, INPUT_SIZE, INPUT_SIZE, Bitmap.Config.ARGB_8888));
+        }
+
+        try {
+            final float[][] batched = new float[16][];
+            worker.embedBatch(FaceCrops.of(crops), 0, 16, batched, 1);
+            assertEquals(16, worker.getBatchSize());
+
+            final float[] single = worker.embed(crops.get(0), new float[worker.getEmbeddingSize()]);
+            assertEquals(1, worker.getBatchSize());
+            for (int d = 0; d < single.length; d++) {
+                assertEquals("dimension " + d, batched[0][d], single[d], 1e-4f);
+            }
+        } finally {
+            worker.close();
+        }
+    }
+}
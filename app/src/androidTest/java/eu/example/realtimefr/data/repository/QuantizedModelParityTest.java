@@ -0,0 +1,150 @@
+package eu.example.realtimefr.data.repository;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNoException;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import eu.example.realtimefr.data.LatencyRecorder;
+import eu.example.realtimefr.data.ModelParity;
+import eu.example.realtimefr.viewmodel.FaceRecognizer;
+
+// Compares the full-integer model against the float model on the same crops: embedding similarity, whether the
+// match against a gallery enrolled with each model comes out the same, and the latency of both.
+@RunWith(AndroidJUnit4.class)
+public class QuantizedModelParityTest {
+
+    private static final String FLOAT_MODEL = "facenet.tflite";
+    private static final String INT8_MODEL = "facenet_int8.tflite";
+    private static final int INPUT_SIZE = 160;
+    private static final int IDENTITIES = 40;
+    private static final int RUNS = 30;
+
+    @Test
+    public void int8ModelMatchesLikeTheFloatModel() throws IOException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        for (String model : new String[]{FLOAT_MODEL, INT8_MODEL}) {
+            try (InputStream ignored = context.getAssets().open(model)) {
+            } catch (IOException e) {
+                assumeNoException(model + " is not bundled in this build", e);
+            }
+        }
+        final FaceRecognizer reference = RealtimeRecognitionRepo.initialize(context.getAssets(), FLOAT_MODEL, INPUT_SIZE, false, context);
+        final FaceRecognizer candidate = RealtimeRecognitionRepo.initialize(context.getAssets(), INT8_MODEL, INPUT_SIZE, true, context);
+
+        // Each identity is enrolled from one crop and probed with a shifted, brightened copy of it.
+        final Random random = new Random(5);
+        final List<Bitmap> enrolled = new ArrayList<>();
+        final List<Bitmap> probes = new ArrayList<>();
+        for (int i = 0; i < IDENTITIES; i++) {
+            final int[] pixels = syntheticFace(random);
+            enrolled.add(Bitmap.createBitmap(pixels, INPUT_SIZE, INPUT_SIZE, Bitmap.Config.ARGB_8888));
+            probes.add(Bitmap.createBitmap(jitter(pixels, random), INPUT_SIZE, INPUT_SIZE, Bitmap.Config.ARGB_8888));
+        }
+        final float[][] referenceGallery = reference.embedBatch(enrolled);
+        final float[][] candidateGallery = candidate.embedBatch(enrolled);
+        final float[][] referenceProbes = reference.embedBatch(probes);
+        final float[][] candidateProbes = candidate.embedBatch(probes);
+
+        final ModelParity parity = new ModelParity(FaceRecognizer.MAX_MATCH_DISTANCE);
+        for (int i = 0; i < IDENTITIES; i++) {
+            parity.addEmbedding(referenceGallery[i], candidateGallery[i]);
+            parity.addEmbedding(referenceProbes[i], candidateProbes[i]);
+            final int referenceMatch = nearest(referenceGallery, referenceProbes[i]);
+            final int candidateMatch = nearest(candidateGallery, candidateProbes[i]);
+            parity.addMatch("id" + referenceMatch, distance(referenceGallery[referenceMatch], referenceProbes[i]),
+                    "id" + candidateMatch, distance(candidateGallery[candidateMatch], candidateProbes[i]));
+        }
+        Log.i("QuantizedModelParity", parity.toString());
+
+        final List<EmbeddingOptions> configuration = Collections.singletonList(new EmbeddingOptions().setWorkers(1));
+        for (String model : new String[]{FLOAT_MODEL, INT8_MODEL}) {
+            final Map<EmbeddingOptions, LatencyRecorder> latency = RealtimeRecognitionRepo.benchmark(
+                    context.getAssets(), model, INPUT_SIZE, configuration, enrolled.get(0), RUNS);
+            Log.i("QuantizedModelParity", model + ": " + latency.values().iterator().next());
+        }
+
+        assertTrue(parity.toString(), parity.getMeanSimilarity() > 0.95);
+        assertTrue(parity.toString(), parity.getDecisionAgreement() >= 0.9);
+    }
+
+    // Smooth blobs of colour, so neighbouring pixels correlate like in a photo.
+    private static int[] syntheticFace(Random random) {
+        final int[] pixels = new int[INPUT_SIZE * INPUT_SIZE];
+        final float[][] blobs = new float[8][];
+        for (int b = 0; b < blobs.length; b++) {
+            blobs[b] = new float[]{random.nextFloat() * INPUT_SIZE, random.nextFloat() * INPUT_SIZE,
+                    10 + random.nextFloat() * 40, random.nextFloat(), random.nextFloat(), random.nextFloat()};
+        }
+        for (int y = 0; y < INPUT_SIZE; y++) {
+            for (int x = 0; x < INPUT_SIZE; x++) {
+                float r = 0.2f, g = 0.2f, bl = 0.2f;
+                for (float[] blob : blobs) {
+                    final float dx = (x - blob[0]) / blob[2];
+                    final float dy = (y - blob[1]) / blob[2];
+                    final float weight = (float) Math.exp(-(dx * dx + dy * dy));
+                    r += weight * blob[3];
+                    g += weight * blob[4];
+                    bl += weight * blob[5];
+                }
+                pixels[y * INPUT_SIZE + x] = 0xFF000000 | channel(r) << 16 | channel(g) << 8 | channel(bl);
+            }
+        }
+        return pixels;
+    }
+
+    private static int[] jitter(int[] pixels, Random random) {
+        final int[] jittered = new int[pixels.length];
+        final int shift = 1 + random.nextInt(3);
+        final int brighten = 5 + random.nextInt(15);
+        for (int y = 0; y < INPUT_SIZE; y++) {
+            for (int x = 0; x < INPUT_SIZE; x++) {
+                final int source = pixels[y * INPUT_SIZE + Math.min(INPUT_SIZE - 1, x + shift)];
+                jittered[y * INPUT_SIZE + x] = 0xFF000000
+                        | Math.min(255, ((source >> 16) & 0xFF) + brighten) << 16
+                        | Math.min(255, ((source >> 8) & 0xFF) + brighten) << 8
+                        | Math.min(255, (source & 0xFF) + brighten);
+            }
+        }
+        return jittered;
+    }
+
+    private static int channel(float value) {
+        return Math.max(0, Math.min(255, (int) (value * 255)));
+    }
+
+    private static int nearest(float[][] gallery, float[] query) {
+        int nearest = 0;
+        for (int i = 1; i < gallery.length; i++) {
+            if (distance(gallery[i], query) < distance(gallery[nearest], query)) {
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+
+    private static float distance(float[] a, float[] b) {
+        float sum = 0;
+        for (int d = 0; d < a.length; d++) {
+            final float diff = a[d] - b[d];
+            sum += diff * diff;
+        }
+        return (float) Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,154 @@
+package eu.example.realtimefr.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public final class EmbeddingCodec {
+
+    public static final int DTYPE_FLOAT32 = 0;
+    public static final int DTYPE_FLOAT16 = 1;
+    // One float32 scale followed by one signed byte per value; value = byte * scale.
+    public static final int DTYPE_INT8 = 2;
+
+    private static final int INT8_MAX = 127;
+
+    private EmbeddingCodec() {
+    }
+
+    public static boolean isKnownDtype(int dtype) {
+        return dtype == DTYPE_FLOAT32 || dtype == DTYPE_FLOAT16 || dtype == DTYPE_INT8;
+    }
+
+    public static int encodedSize(int dimension, int dtype) {
+        switch (dtype) {
+            case DTYPE_FLOAT32:
+                return dimension * 4;
+            case DTYPE_FLOAT16:
+                return dimension * 2;
+            case DTYPE_INT8:
+                return 4 + dimension;
+            default:
+                throw new IllegalArgumentException("Unknown embedding dtype: " + dtype);
+        }
+    }
+
+    public static byte[] encode(float[] embedding, int dtype) {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize(embedding.length, dtype)).order(ByteOrder.LITTLE_ENDIAN);
+        switch (dtype) {
+            case DTYPE_FLOAT32:
+                buffer.asFloatBuffer().put(embedding);
+                break;
+            case DTYPE_FLOAT16:
+                for (float value : embedding) {
+                    buffer.putShort(floatToHalf(value));
+                }
+                break;
+            case DTYPE_INT8:
+                float maxAbs = 0;
+                for (float value : embedding) {
+                    maxAbs = Math.max(maxAbs, Math.abs(value));
+                }
+                float scale = maxAbs / INT8_MAX;
+                buffer.putFloat(scale);
+                for (float value : embedding) {
+                    int quantized = scale == 0 ? 0 : Math.round(value / scale);
+                    buffer.put((byte) Math.max(-INT8_MAX, Math.min(INT8_MAX, quantized)));
+                }
+                break;
+        }
+        return buffer.array();
+    }
+
+    public static float[] decode(byte[] blob, int dimension, int dtype) {
+        return decode(blob, dimension, dtype, new float[dimension]);
+    }
+
+    // Decodes into the caller's array so loaders can fill the matcher's float rows without an intermediate copy.
+    public static float[] decode(byte[] blob, int dimension, int dtype, float[] destination) {
+        if (blob == null || blob.length != encodedSize(dimension, dtype)) {
+            throw new IllegalArgumentException("Embedding blob does not match dimension " + dimension);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN);
+        switch (dtype) {
+            case DTYPE_FLOAT32:
+                buffer.asFloatBuffer().get(destination, 0, dimension);
+                break;
+            case DTYPE_FLOAT16:
+                for (int i = 0; i < dimension; i++) {
+                    destination[i] = halfToFloat(buffer.getShort(i * 2));
+                }
+                break;
+            case DTYPE_INT8:
+                float scale = buffer.getFloat(0);
+                for (int i = 0; i < dimension; i++) {
+                    destination[i] = blob[4 + i] * scale;
+                }
+                break;
+        }
+        return destination;
+    }
+
+    // IEEE 754 binary16 with round-to-nearest-even; overflow saturates to infinity.
+    static short floatToHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int rawExponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+
+        if (rawExponent == 0xFF) {
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        int exponent = rawExponent - 127 + 15;
+        if (exponent >= 0x1F) {
+            return (short) (sign | 0x7C00);
+        }
+        if (exponent <= 0) {
+            if (exponent < -10) {
+                return (short) sign;
+            }
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        int half = sign | (exponent << 10) | (mantissa >> 13);
+        int remainder = mantissa & 0x1FFF;
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+            half++;
+        }
+        return (short) half;
+    }
+
+    static float halfToFloat(short half) {
+        int bits = half & 0xFFFF;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1F;
+        int mantissa = bits & 0x3FF;
+
+        if (exponent == 0x1F) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+        if (exponent == 0) {
+            float value = mantissa * 0x1p-24f;
+            return sign != 0 ? -value : value;
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+
+    // Version 1 of the schema stored embeddings as a comma-joined TEXT column.
+    public static float[] parseLegacyText(String embeddingString) {
+        if (embeddingString == null || embeddingString.isEmpty()) return new float[0];
+
+        String[] stringList = embeddingString.split(",");
+        float[] embedding = new float[stringList.length];
+        for (int i = 0; i < stringList.length; i++) {
+            embedding[i] = Float.parseFloat(stringList[i]);
+        }
+        return embedding;
+    }
+}
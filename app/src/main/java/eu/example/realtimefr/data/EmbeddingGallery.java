@@ -0,0 +1,608 @@
+package eu.example.realtimefr.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * In-memory gallery used by the matcher, laid out as structure-of-arrays: the centroids of all identities
+ * are contiguous row-major {@code float[]} chunks of {@code CHUNK_ROWS} rows, with the names and template blocks
+ * in parallel chunks at the same index. Removal moves the last identity into the freed slot, so the rows never
+ * have holes and a scan is a single pass over {@code size * dimension} floats, one chunk after the other.
+ *
+ * <p>Templates and centroids are L2-normalized on the way in, so the scan ranks by dot product alone. Matches
+ * still report the squared Euclidean distance between unit vectors, {@code 2 - 2 * dot}, which keeps the
+ * distance-based confidence of {@code RecognitionData} and its thresholds meaningful.
+ *
+ * <p>A gallery is built with {@link #put} and {@link #remove} and then published; once published it is never
+ * modified, so searches run without locking. Writers take a {@link #copy()}, apply their changes to it and publish
+ * that as the next version. A copy shares every chunk and every shard of the name index with the version it came
+ * from and copies one only before writing to it, so enrolling a face costs a chunk and a shard rather than the
+ * whole gallery.
+ */
+public final class EmbeddingGallery {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 20000;
+    private static final int MIN_PARALLEL_LEAF_SIZE = 2048;
+    // About 64KB of centroids, scored against every query of a batch before the scan moves on.
+    private static final int SCAN_BLOCK_FLOATS = 16384;
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_ROWS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_ROWS - 1;
+    private static final int NAME_SHARDS = 256;
+
+    private int dimension;
+    private float[][] centroidChunks;
+    private float[][][] templateChunks;
+    private String[][] nameChunks;
+    private NameShard[] nameShards;
+    // Chunks and shards this version allocated or copied itself, and may therefore write in place. The others are
+    // shared with the version it was copied from.
+    private boolean[] ownedChunks;
+    private boolean[] ownedShards;
+    private int capacity;
+    private int size;
+    private long sourceVersion = -1;
+    private volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    public EmbeddingGallery(int dimension) {
+        this(dimension, INITIAL_CAPACITY);
+    }
+
+    public EmbeddingGallery(int dimension, int capacity) {
+        this.dimension = dimension;
+        this.centroidChunks = new float[0][];
+        this.templateChunks = new float[0][][];
+        this.nameChunks = new String[0][];
+        this.ownedChunks = new boolean[0];
+        this.nameShards = new NameShard[NAME_SHARDS];
+        this.ownedShards = new boolean[NAME_SHARDS];
+        ensureCapacity(Math.max(1, capacity));
+    }
+
+    // Shares all chunks and shards of the source; none is owned until written.
+    private EmbeddingGallery(EmbeddingGallery source) {
+        this.dimension = source.dimension;
+        this.centroidChunks = source.centroidChunks.clone();
+        this.templateChunks = source.templateChunks.clone();
+        this.nameChunks = source.nameChunks.clone();
+        this.ownedChunks = new boolean[centroidChunks.length];
+        this.nameShards = source.nameShards.clone();
+        this.ownedShards = new boolean[NAME_SHARDS];
+        this.capacity = source.capacity;
+        this.size = source.size;
+        this.sourceVersion = source.sourceVersion;
+        this.parallelThreshold = source.parallelThreshold;
+    }
+
+    // Index of the names in one shard; a named subclass so the shard array needs no unchecked generic array.
+    private static final class NameShard extends HashMap<String, Integer> {
+        private static final long serialVersionUID = 1L;
+
+        NameShard() {
+        }
+
+        NameShard(NameShard source) {
+            super(source);
+        }
+    }
+
+    public static final class Match {
+        private final String name;
+        private final float squaredDistance;
+
+        Match(String name, float squaredDistance) {
+            this.name = name;
+            this.squaredDistance = squaredDistance;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public float getSquaredDistance() {
+            return squaredDistance;
+        }
+    }
+
+    // Reusable results of the top-1 findNearest, one per query, together with the working arrays of the scan. Not
+    // thread-safe; keep one per thread.
+    public static final class Nearest {
+        private TopK[] shortlists = new TopK[0];
+        private int shortlistSize;
+        private int[] candidates = new int[0];
+        private float[] scores = new float[0];
+        private String[] names = new String[0];
+        private float[] squaredDistances = new float[0];
+
+        // Null when the gallery is empty.
+        public String getName(int query) {
+            return names[query];
+        }
+
+        // Float.MAX_VALUE when the gallery is empty.
+        public float getSquaredDistance(int query) {
+            return squaredDistances[query];
+        }
+
+        private void prepare(int count, int shortlistSize) {
+            if (shortlists.length < count || this.shortlistSize != shortlistSize) {
+                shortlists = new TopK[Math.max(count, shortlists.length)];
+                for (int q = 0; q < shortlists.length; q++) {
+                    shortlists[q] = new TopK(shortlistSize);
+                }
+                candidates = new int[shortlistSize];
+                scores = new float[shortlistSize];
+                this.shortlistSize = shortlistSize;
+            }
+            if (names.length < count) {
+                names = new String[count];
+                squaredDistances = new float[count];
+            }
+            Arrays.fill(names, 0, count, null);
+            Arrays.fill(squaredDistances, 0, count, Float.MAX_VALUE);
+        }
+    }
+
+    // Scales the vector to unit length in place; a zero vector is left as it is.
+    public static float[] normalize(float[] vector) {
+        return normalize(vector, 0, vector.length);
+    }
+
+    // Normalized mean of the first length / dimension templates of the block, normalizing them in place: the
+    // centroid an identity is ranked by.
+    public static float[] centroid(float[] block, int length, int dimension, float[] destination) {
+        Arrays.fill(destination, 0, dimension, 0f);
+        for (int base = 0; base < length; base += dimension) {
+            normalize(block, base, dimension);
+            for (int i = 0; i < dimension; i++) {
+                destination[i] += block[base + i];
+            }
+        }
+        return normalize(destination, 0, dimension);
+    }
+
+    private static float[] normalize(float[] rows, int offset, int dimension) {
+        float norm = 0;
+        for (int i = offset; i < offset + dimension; i++) {
+            norm += rows[i] * rows[i];
+        }
+        if (norm > 0) {
+            final float scale = (float) (1 / Math.sqrt(norm));
+            for (int i = offset; i < offset + dimension; i++) {
+                rows[i] *= scale;
+            }
+        }
+        return rows;
+    }
+
+    // Copies the live identities of a mapped gallery file in bulk, one block of rows per identity, normalizing
+    // them in place since the file keeps the embeddings as stored.
+    public static EmbeddingGallery load(FlatGalleryFile file) {
+        EmbeddingGallery gallery = new EmbeddingGallery(file.getDimension(), file.getLiveCount());
+        for (int entry = 0; entry < file.size(); entry++) {
+            if (!file.isLive(entry)) {
+                continue;
+            }
+            int index = gallery.size++;
+            float[] block = new float[file.getTemplateCount(entry) * gallery.dimension];
+            file.copyTemplates(entry, block, 0);
+            gallery.setTemplates(index, block);
+            gallery.setName(index, file.getName(entry));
+        }
+        gallery.sourceVersion = file.getSourceVersion();
+        return gallery;
+    }
+
+    // The next version of this gallery, sharing every chunk and shard with this one; costs O(size / CHUNK_ROWS).
+    // This version gives up ownership too, so neither can write into what the other reads.
+    public EmbeddingGallery copy() {
+        Arrays.fill(ownedChunks, false);
+        Arrays.fill(ownedShards, false);
+        return new EmbeddingGallery(this);
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getName(int index) {
+        return nameChunks[index >> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    public float[] getCentroid(int index, float[] destination) {
+        System.arraycopy(centroidChunks[index >> CHUNK_SHIFT], (index & CHUNK_MASK) * dimension, destination, 0, dimension);
+        return destination;
+    }
+
+    public float[] getCentroid(String name) {
+        Integer index = indexOf(name);
+        return index == null ? null : getCentroid(index, new float[dimension]);
+    }
+
+    public int getTemplateCount(int index) {
+        return templates(index).length / dimension;
+    }
+
+    private float[] templates(int index) {
+        return templateChunks[index >> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    private Integer indexOf(String name) {
+        final NameShard shard = nameShards[shardOf(name)];
+        return shard == null ? null : shard.get(name);
+    }
+
+    private static int shardOf(String name) {
+        return (name.hashCode() & 0x7FFFFFFF) % NAME_SHARDS;
+    }
+
+    // Version of the FaceDatabase change journal this gallery reflects.
+    public long getSourceVersion() {
+        return sourceVersion;
+    }
+
+    public void setSourceVersion(long sourceVersion) {
+        this.sourceVersion = sourceVersion;
+    }
+
+    // Replaces the templates of the identity, appending it when the name is new.
+    public void put(String name, float[][] identityTemplates) {
+        if (identityTemplates.length == 0) {
+            throw new IllegalArgumentException("No templates for " + name);
+        }
+        if (size == 0 && identityTemplates[0].length != dimension) {
+            // An empty gallery file records no dimension, so the first identity decides it.
+            dimension = identityTemplates[0].length;
+            for (int chunk = 0; chunk < centroidChunks.length; chunk++) {
+                centroidChunks[chunk] = new float[nameChunks[chunk].length * dimension];
+                templateChunks[chunk] = templateChunks[chunk].clone();
+                nameChunks[chunk] = nameChunks[chunk].clone();
+                ownedChunks[chunk] = true;
+            }
+        }
+        float[] block = new float[identityTemplates.length * dimension];
+        for (int t = 0; t < identityTemplates.length; t++) {
+            if (identityTemplates[t].length != dimension) {
+                throw new IllegalArgumentException("Expected " + dimension + "-d templates for " + name);
+            }
+            System.arraycopy(identityTemplates[t], 0, block, t * dimension, dimension);
+        }
+
+        Integer existing = indexOf(name);
+        int index;
+        if (existing != null) {
+            index = existing;
+        } else {
+            ensureCapacity(size + 1);
+            index = size++;
+            setName(index, name);
+        }
+        setTemplates(index, block);
+    }
+
+    // Normalizes the templates of the block and stores their normalized mean as the identity's centroid.
+    private void setTemplates(int index, float[] block) {
+        final float[] centroids = writableChunk(index >> CHUNK_SHIFT);
+        final int centroid = (index & CHUNK_MASK) * dimension;
+        Arrays.fill(centroids, centroid, centroid + dimension, 0f);
+        for (int base = 0; base < block.length; base += dimension) {
+            normalize(block, base, dimension);
+            for (int i = 0; i < dimension; i++) {
+                centroids[centroid + i] += block[base + i];
+            }
+        }
+        normalize(centroids, centroid, dimension);
+        templateChunks[index >> CHUNK_SHIFT][index & CHUNK_MASK] = block;
+    }
+
+    private void setName(int index, String name) {
+        writableChunk(index >> CHUNK_SHIFT);
+        nameChunks[index >> CHUNK_SHIFT][index & CHUNK_MASK] = name;
+        writableShard(shardOf(name)).put(name, index);
+    }
+
+    public boolean remove(String name) {
+        if (indexOf(name) == null) {
+            return false;
+        }
+        final int removed = writableShard(shardOf(name)).remove(name);
+        final int last = --size;
+        if (removed != last) {
+            final float[] target = writableChunk(removed >> CHUNK_SHIFT);
+            System.arraycopy(centroidChunks[last >> CHUNK_SHIFT], (last & CHUNK_MASK) * dimension,
+                    target, (removed & CHUNK_MASK) * dimension, dimension);
+            templateChunks[removed >> CHUNK_SHIFT][removed & CHUNK_MASK] = templates(last);
+            setName(removed, getName(last));
+        }
+        writableChunk(last >> CHUNK_SHIFT);
+        templateChunks[last >> CHUNK_SHIFT][last & CHUNK_MASK] = null;
+        nameChunks[last >> CHUNK_SHIFT][last & CHUNK_MASK] = null;
+        return true;
+    }
+
+    // Copies the chunk before its first write if it is shared, and returns its centroid rows.
+    private float[] writableChunk(int chunk) {
+        if (!ownedChunks[chunk]) {
+            centroidChunks[chunk] = centroidChunks[chunk].clone();
+            templateChunks[chunk] = templateChunks[chunk].clone();
+            nameChunks[chunk] = nameChunks[chunk].clone();
+            ownedChunks[chunk] = true;
+        }
+        return centroidChunks[chunk];
+    }
+
+    private NameShard writableShard(int shard) {
+        if (!ownedShards[shard]) {
+            nameShards[shard] = nameShards[shard] == null ? new NameShard() : new NameShard(nameShards[shard]);
+            ownedShards[shard] = true;
+        }
+        return nameShards[shard];
+    }
+
+    // Nearest identity among the shortlistSize closest centroids, or null when the gallery is empty. The query
+    // must be normalized.
+    public Match findNearest(float[] query, int shortlistSize) {
+        List<Match> matches = search(query, 1, shortlistSize, Float.MAX_VALUE);
+        return matches.isEmpty() ? null : matches.get(0);
+    }
+
+    // The top-1 of search for the first count queries, written into a reusable result. Allocates nothing once the
+    // result has grown to the number of queries, unless the gallery is large enough to be scanned in parallel.
+    // Queries must be normalized.
+    public void findNearest(float[][] queries, int count, int shortlistSize, Nearest result) {
+        final int capacity = Math.max(1, shortlistSize);
+        result.prepare(count, capacity);
+        if (size == 0 || count == 0) {
+            return;
+        }
+        if (size >= parallelThreshold) {
+            final TopK[] scanned = ForkJoinPool.commonPool().invoke(
+                    new CentroidScan(Arrays.copyOf(queries, count), 0, size, capacity, leafSize()));
+            for (int q = 0; q < count; q++) {
+                result.shortlists[q].addAll(scanned[q]);
+            }
+        } else {
+            scanCentroids(queries, count, 0, size, result.shortlists);
+        }
+        for (int q = 0; q < count; q++) {
+            final int shortlisted = result.shortlists[q].drainSorted(result.candidates, result.scores);
+            int best = -1;
+            float bestScore = -Float.MAX_VALUE;
+            for (int s = 0; s < shortlisted; s++) {
+                final float score = templateScore(queries[q], templates(result.candidates[s]));
+                if (score > bestScore) {
+                    best = result.candidates[s];
+                    bestScore = score;
+                }
+            }
+            if (best < 0) {
+                // Every score was NaN, e.g. for a query with a NaN component; leave it without a match.
+                continue;
+            }
+            result.names[q] = getName(best);
+            result.squaredDistances[q] = Math.max(0f, 2 - 2 * bestScore);
+        }
+    }
+
+    // Ranks identities by centroid similarity, re-ranks the closest max(topK, shortlistSize) by their nearest
+    // template and returns up to topK matches within maxSquaredDistance, nearest first. The query must be
+    // normalized.
+    public List<Match> search(float[] query, int topK, int shortlistSize, float maxSquaredDistance) {
+        return searchBatch(new float[][]{query}, topK, shortlistSize, maxSquaredDistance).get(0);
+    }
+
+    // Like search for several queries at once, such as all faces of a frame, but with a single pass over the
+    // centroids: each block of rows is scored against every query while it is still in cache. Returns one list per
+    // query.
+    public List<List<Match>> searchBatch(float[][] queries, int topK, int shortlistSize, float maxSquaredDistance) {
+        final List<List<Match>> results = new ArrayList<>(queries.length);
+        if (size == 0 || topK <= 0 || queries.length == 0) {
+            for (int q = 0; q < queries.length; q++) {
+                results.add(Collections.<Match>emptyList());
+            }
+            return results;
+        }
+        final int capacity = Math.min(Math.max(topK, shortlistSize), size);
+        final TopK[] shortlists = size >= parallelThreshold
+                ? ForkJoinPool.commonPool().invoke(new CentroidScan(queries, 0, size, capacity, leafSize()))
+                : scanCentroids(queries, 0, size, capacity);
+        final int[] candidates = new int[capacity];
+        final float[] scores = new float[capacity];
+        for (int q = 0; q < queries.length; q++) {
+            final int shortlisted = shortlists[q].drainSorted(candidates, scores);
+            results.add(rankTemplates(queries[q], candidates, shortlisted, topK, maxSquaredDistance));
+        }
+        return results;
+    }
+
+    // Ranks the named identities by their nearest template, for shortlists produced outside the gallery such as
+    // an HnswIndex. Names that are not in the gallery are skipped.
+    public List<Match> rerank(float[] query, List<String> shortlist, int topK, float maxSquaredDistance) {
+        if (topK <= 0) {
+            return Collections.emptyList();
+        }
+        final int[] candidates = new int[shortlist.size()];
+        int count = 0;
+        for (String name : shortlist) {
+            Integer index = indexOf(name);
+            if (index != null) {
+                candidates[count++] = index;
+            }
+        }
+        return rankTemplates(query, candidates, count, topK, maxSquaredDistance);
+    }
+
+    private List<Match> rankTemplates(float[] query, int[] candidates, int shortlisted, int topK, float maxSquaredDistance) {
+        // On unit vectors |q - t|^2 = 2 - 2 * dot(q, t), so the distance cutoff becomes a minimum score.
+        final float minScore = maxSquaredDistance >= 4 ? -Float.MAX_VALUE : 1 - maxSquaredDistance / 2;
+        final TopK best = new TopK(Math.min(topK, shortlisted));
+        for (int s = 0; s < shortlisted; s++) {
+            final float identityScore = templateScore(query, templates(candidates[s]));
+            if (identityScore >= minScore) {
+                best.offer(candidates[s], identityScore);
+            }
+        }
+
+        final int[] ranked = new int[best.size()];
+        final float[] rankedScores = new float[ranked.length];
+        final int count = best.drainSorted(ranked, rankedScores);
+        final List<Match> matches = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            matches.add(new Match(getName(ranked[i]), Math.max(0f, 2 - 2 * rankedScores[i])));
+        }
+        return matches;
+    }
+
+    // Similarity of the query to the closest template of a block.
+    private float templateScore(float[] query, float[] block) {
+        final int dim = dimension;
+        float identityScore = -Float.MAX_VALUE;
+        for (int base = 0; base < block.length; base += dim) {
+            float score = 0;
+            for (int i = 0; i < dim; i++) {
+                score += query[i] * block[base + i];
+            }
+            identityScore = Math.max(identityScore, score);
+        }
+        return identityScore;
+    }
+
+    // Galleries of at least this many identities split the centroid scan across the common ForkJoinPool. The only
+    // setting that may change after publication.
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    // One shortlist per query over the centroids in [from, to), walking the rows block by block.
+    private TopK[] scanCentroids(float[][] queries, int from, int to, int capacity) {
+        final TopK[] shortlists = new TopK[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            shortlists[q] = new TopK(capacity);
+        }
+        scanCentroids(queries, queries.length, from, to, shortlists);
+        return shortlists;
+    }
+
+    // Offers the centroids in [from, to) to the shortlists of the first count queries. Blocks never straddle two
+    // chunks, so each is a run of consecutive rows of one array.
+    private void scanCentroids(float[][] queries, int count, int from, int to, TopK[] shortlists) {
+        final int dim = dimension;
+        final int blockRows = Math.max(1, SCAN_BLOCK_FLOATS / Math.max(1, dim));
+        for (int blockStart = from, blockEnd; blockStart < to; blockStart = blockEnd) {
+            final int chunk = blockStart >> CHUNK_SHIFT;
+            blockEnd = Math.min(Math.min(to, blockStart + blockRows), (chunk + 1) << CHUNK_SHIFT);
+            final float[] rows = centroidChunks[chunk];
+            final int firstBase = (blockStart & CHUNK_MASK) * dim;
+            int q = 0;
+            // Four queries per pass share every load of a centroid value and keep four independent sums going.
+            for (; q + 4 <= count; q += 4) {
+                final float[] q0 = queries[q], q1 = queries[q + 1], q2 = queries[q + 2], q3 = queries[q + 3];
+                for (int index = blockStart, base = firstBase; index < blockEnd; index++, base += dim) {
+                    float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+                    for (int i = 0; i < dim; i++) {
+                        final float value = rows[base + i];
+                        s0 += q0[i] * value;
+                        s1 += q1[i] * value;
+                        s2 += q2[i] * value;
+                        s3 += q3[i] * value;
+                    }
+                    shortlists[q].offer(index, s0);
+                    shortlists[q + 1].offer(index, s1);
+                    shortlists[q + 2].offer(index, s2);
+                    shortlists[q + 3].offer(index, s3);
+                }
+            }
+            for (; q < count; q++) {
+                final float[] query = queries[q];
+                final TopK shortlist = shortlists[q];
+                for (int index = blockStart, base = firstBase; index < blockEnd; index++, base += dim) {
+                    float score = 0;
+                    for (int i = 0; i < dim; i++) {
+                        score += query[i] * rows[base + i];
+                    }
+                    shortlist.offer(index, score);
+                }
+            }
+        }
+    }
+
+    // A few leaves per worker so that a slow core does not hold up the merge.
+    private int leafSize() {
+        int leaves = ForkJoinPool.getCommonPoolParallelism() * 4;
+        return Math.max(MIN_PARALLEL_LEAF_SIZE, (size + leaves - 1) / leaves);
+    }
+
+    // Scans a range of centroids into local shortlists, splitting it in halves down to the leaf size. Only runs on
+    // published galleries, so the arrays cannot change underneath it.
+    private final class CentroidScan extends RecursiveTask<TopK[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final float[][] queries;
+        private final int from;
+        private final int to;
+        private final int capacity;
+        private final int leafSize;
+
+        CentroidScan(float[][] queries, int from, int to, int capacity, int leafSize) {
+            this.queries = queries;
+            this.from = from;
+            this.to = to;
+            this.capacity = capacity;
+            this.leafSize = leafSize;
+        }
+
+        @Override
+        protected TopK[] compute() {
+            if (to - from <= leafSize) {
+                return scanCentroids(queries, from, to, capacity);
+            }
+            int middle = (from + to) >>> 1;
+            CentroidScan upper = new CentroidScan(queries, middle, to, capacity, leafSize);
+            upper.fork();
+            TopK[] merged = new CentroidScan(queries, from, middle, capacity, leafSize).compute();
+            TopK[] joined = upper.join();
+            for (int q = 0; q < merged.length; q++) {
+                merged[q].addAll(joined[q]);
+            }
+            return merged;
+        }
+    }
+
+    // Adds chunks as needed; a chunk that is not full yet grows by doubling, so small galleries stay small.
+    private void ensureCapacity(int capacity) {
+        if (capacity <= this.capacity) {
+            return;
+        }
+        final int chunks = (capacity + CHUNK_ROWS - 1) >> CHUNK_SHIFT;
+        if (chunks > centroidChunks.length) {
+            centroidChunks = Arrays.copyOf(centroidChunks, chunks);
+            templateChunks = Arrays.copyOf(templateChunks, chunks);
+            nameChunks = Arrays.copyOf(nameChunks, chunks);
+            ownedChunks = Arrays.copyOf(ownedChunks, chunks);
+        }
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            final int rows = nameChunks[chunk] == null ? 0 : nameChunks[chunk].length;
+            final int needed = Math.min(CHUNK_ROWS, capacity - (chunk << CHUNK_SHIFT));
+            if (rows >= needed) {
+                continue;
+            }
+            final int grown = Math.min(CHUNK_ROWS, Math.max(needed, rows * 2));
+            centroidChunks[chunk] = rows == 0 ? new float[grown * dimension] : Arrays.copyOf(centroidChunks[chunk], grown * dimension);
+            templateChunks[chunk] = rows == 0 ? new float[grown][] : Arrays.copyOf(templateChunks[chunk], grown);
+            nameChunks[chunk] = rows == 0 ? new String[grown] : Arrays.copyOf(nameChunks[chunk], grown);
+            ownedChunks[chunk] = true;
+        }
+        // Every chunk before the last one is full.
+        this.capacity = ((chunks - 1) << CHUNK_SHIFT) + nameChunks[chunks - 1].length;
+    }
+}
@@ -0,0 +1,210 @@
+package eu.example.realtimefr.data;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Write-behind queue in front of FaceDatabase. Writes for the same name are coalesced while they wait, and
+// everything pending is flushed by a single writer thread in one transaction.
+public final class EnrollmentQueue {
+
+    private static final int ADD = 0;
+    private static final int REPLACE = 1;
+    private static final int REMOVE = 2;
+
+    private static final long BATCH_LINGER_MS = 20;
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+    private final FaceDatabase database;
+    private final Runnable onCommitted;
+    private final int capacity;
+    private final Object lock = new Object();
+    private final LinkedHashMap<String, PendingWrite> pending = new LinkedHashMap<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FaceEnrollmentWriter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean drainScheduled;
+    private boolean closed;
+
+    // onCommitted runs on the writer thread after each committed batch, before the batch's futures complete.
+    public EnrollmentQueue(FaceDatabase database, int capacity, Runnable onCommitted) {
+        this.database = database;
+        this.capacity = capacity;
+        this.onCommitted = onCommitted;
+    }
+
+    // Appends templates to the identity, like FaceDatabase.addFace.
+    public CompletableFuture<Boolean> add(String name, float[][] templates) {
+        return submit(name, ADD, templates);
+    }
+
+    // Replaces every template of the identity, creating it if needed, like FaceDatabase.upsertFace.
+    public CompletableFuture<Boolean> replace(String name, float[][] templates) {
+        return submit(name, REPLACE, templates);
+    }
+
+    public CompletableFuture<Boolean> remove(String name) {
+        return submit(name, REMOVE, null);
+    }
+
+    // Blocks while the queue is full and the name has nothing pending yet to coalesce with.
+    private CompletableFuture<Boolean> submit(String name, int operation, float[][] templates) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        synchronized (lock) {
+            while (!closed && pending.size() >= capacity && !pending.containsKey(name)) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    future.completeExceptionally(e);
+                    return future;
+                }
+            }
+            if (closed) {
+                future.completeExceptionally(new IllegalStateException("Enrollment queue is closed"));
+                return future;
+            }
+            PendingWrite write = pending.get(name);
+            if (write == null) {
+                write = new PendingWrite(name);
+                pending.put(name, write);
+            }
+            write.merge(operation, templates);
+            write.futures.add(future);
+
+            if (!drainScheduled) {
+                drainScheduled = true;
+                writer.execute(this::drain);
+            }
+        }
+        return future;
+    }
+
+    // Commits the writes still pending, without waiting out the linger window, and stops the writer thread. Writes
+    // submitted afterwards fail with an IllegalStateException. Safe to call more than once.
+    public void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Log.w("FaceDatabase", "Enrollment writer still busy after " + CLOSE_TIMEOUT_SECONDS + " s");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        boolean linger;
+        synchronized (lock) {
+            linger = !closed;
+        }
+        if (linger) {
+            try {
+                Thread.sleep(BATCH_LINGER_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<PendingWrite> batch;
+        synchronized (lock) {
+            batch = new ArrayList<>(pending.values());
+            pending.clear();
+            drainScheduled = false;
+            lock.notifyAll();
+        }
+
+        try {
+            database.beginBatch();
+            try {
+                for (PendingWrite write : batch) {
+                    write.apply(database);
+                }
+                database.commit();
+            } catch (RuntimeException e) {
+                database.rollback();
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            Log.e("FaceDatabase", "Enrollment batch failed", e);
+            for (PendingWrite write : batch) {
+                for (CompletableFuture<Boolean> future : write.futures) {
+                    future.completeExceptionally(e);
+                }
+            }
+            return;
+        }
+        Log.d("FaceDatabase", "Enrollment queue committed " + batch.size() + " identities");
+
+        try {
+            onCommitted.run();
+        } catch (RuntimeException e) {
+            Log.e("FaceDatabase", "Post-commit callback failed", e);
+        }
+
+        for (PendingWrite write : batch) {
+            for (CompletableFuture<Boolean> future : write.futures) {
+                future.complete(true);
+            }
+        }
+    }
+
+    private static final class PendingWrite {
+        final String name;
+        final List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        int operation = -1;
+        float[][] templates;
+
+        PendingWrite(String name) {
+            this.name = name;
+        }
+
+        void merge(int next, float[][] nextTemplates) {
+            if (next == ADD && (operation == ADD || operation == REPLACE)) {
+                templates = concat(templates, nextTemplates);
+            } else if (next == ADD && operation == REMOVE) {
+                operation = REPLACE;
+                templates = nextTemplates;
+            } else {
+                operation = next;
+                templates = nextTemplates;
+            }
+        }
+
+        void apply(FaceDatabase database) {
+            switch (operation) {
+                case ADD:
+                    database.addFace(name, templates);
+                    break;
+                case REPLACE:
+                    database.upsertFace(name, templates);
+                    break;
+                case REMOVE:
+                    database.removeFace(name);
+                    break;
+            }
+        }
+
+        private static float[][] concat(float[][] first, float[][] second) {
+            float[][] merged = Arrays.copyOf(first, first.length + second.length);
+            System.arraycopy(second, 0, merged, first.length, second.length);
+            return merged;
+        }
+    }
+}
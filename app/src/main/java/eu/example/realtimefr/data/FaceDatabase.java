@@ -1,8 +1,17 @@
 package eu.example.realtimefr.data;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import android.annotation.SuppressLint;
 import android.content.ContentValues;
@@ -11,6 +20,7 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import eu.example.realtimefr.viewmodel.FaceRecognizer;
@@ -22,65 +32,332 @@ public class FaceDatabase extends SQLiteOpenHelper {
     private static final String COLUMN_ID = "id";
     private static final String COLUMN_NAME = "name";
     private static final String COLUMN_EMBEDDING = "embedding";
+    private static final String COLUMN_DIMENSION = "dimension";
+    private static final String COLUMN_DTYPE = "dtype";
+
+    private static final String CHANGES_TABLE_NAME = "face_changes";
+    private static final String COLUMN_SEQUENCE = "seq";
+    private static final int MAX_RETAINED_CHANGES = 10000;
+
+    private static final String SETTINGS_TABLE_NAME = "gallery_settings";
+    private static final String COLUMN_KEY = "key";
+    private static final String COLUMN_VALUE = "value";
+    private static final String SETTING_EMBEDDING_DTYPE = "embedding_dtype";
+
+    private static final int DATABASE_VERSION = 5;
+
+    // Templates re-encoded per query when the embedding encoding changes.
+    private static final int REENCODE_PAGE_SIZE = 256;
+    // Names bound per IN list; SQLite before 3.32 (API 30 and below) caps a statement at 999 host parameters.
+    private static final int MAX_NAMES_PER_QUERY = 900;
+
+    private int embeddingDtype = -1;
+
+    private SQLiteStatement insertStatement;
+    private SQLiteStatement deleteStatement;
 
     public FaceDatabase(Context context) {
-        super(context, DATABASE_NAME, null, 1);
+        this(context, DATABASE_NAME);
+    }
+
+    FaceDatabase(Context context, String databaseName) {
+        super(context, databaseName, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+        createFacesTable(db, TABLE_NAME);
+        createNameIndex(db);
+        createChangeJournal(db);
+        createSettingsTable(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            migrateTextEmbeddingsToBlob(db);
+        }
+        if (oldVersion < 3) {
+            createChangeJournal(db);
+            db.execSQL("INSERT INTO " + CHANGES_TABLE_NAME + " (" + COLUMN_NAME + ") SELECT " + COLUMN_NAME + " FROM " + TABLE_NAME);
+        }
+        if (oldVersion >= 2 && oldVersion < 4) {
+            dropUniqueNames(db);
+        }
+        if (oldVersion < 4) {
+            createNameIndex(db);
+        }
+        if (oldVersion < 5) {
+            createSettingsTable(db);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        db.execSQL("DELETE FROM " + CHANGES_TABLE_NAME + " WHERE " + COLUMN_SEQUENCE + " <= " +
+                "(SELECT MAX(" + COLUMN_SEQUENCE + ") FROM " + CHANGES_TABLE_NAME + ") - " + MAX_RETAINED_CHANGES);
+    }
+
+    // Triggers record every touched name, so writes from other processes or sync jobs land in the journal too.
+    private static void createChangeJournal(SQLiteDatabase db) {
         db.execSQL(
-                "CREATE TABLE " + TABLE_NAME + " (" +
+                "CREATE TABLE IF NOT EXISTS " + CHANGES_TABLE_NAME + " (" +
+                        COLUMN_SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                        COLUMN_NAME + " TEXT NOT NULL)"
+        );
+        final String[][] triggers = {{"insert", "INSERT", "NEW"}, {"update", "UPDATE", "NEW"}, {"delete", "DELETE", "OLD"}};
+        for (String[] trigger : triggers) {
+            db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_journal_" + trigger[0] +
+                            " AFTER " + trigger[1] + " ON " + TABLE_NAME +
+                            " BEGIN INSERT INTO " + CHANGES_TABLE_NAME + " (" + COLUMN_NAME + ") VALUES (" + trigger[2] + "." + COLUMN_NAME + "); END"
+            );
+        }
+    }
+
+    private static void createFacesTable(SQLiteDatabase db, String tableName) {
+        db.execSQL(
+                "CREATE TABLE " + tableName + " (" +
                         COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                        COLUMN_NAME + " TEXT UNIQUE, " +
-                        COLUMN_EMBEDDING + " TEXT NOT NULL)"
+                        COLUMN_NAME + " TEXT NOT NULL, " +
+                        COLUMN_EMBEDDING + " BLOB NOT NULL, " +
+                        COLUMN_DIMENSION + " INTEGER NOT NULL, " +
+                        COLUMN_DTYPE + " INTEGER NOT NULL)"
         );
     }
 
-    @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
-        onCreate(db);
+    // Gallery-wide settings. Every row still records its own dtype, so rows written before an encoding change decode.
+    private static void createSettingsTable(SQLiteDatabase db) {
+        db.execSQL(
+                "CREATE TABLE IF NOT EXISTS " + SETTINGS_TABLE_NAME + " (" +
+                        COLUMN_KEY + " TEXT PRIMARY KEY, " +
+                        COLUMN_VALUE + " INTEGER NOT NULL)"
+        );
+        db.execSQL("INSERT OR IGNORE INTO " + SETTINGS_TABLE_NAME + " (" + COLUMN_KEY + ", " + COLUMN_VALUE + ") VALUES (?, ?)",
+                new Object[]{SETTING_EMBEDDING_DTYPE, EmbeddingCodec.DTYPE_FLOAT32});
+    }
+
+    // Each row is one template; an identity is every row sharing a name.
+    private static void createNameIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_" + COLUMN_NAME + " ON " + TABLE_NAME + " (" + COLUMN_NAME + ")");
+    }
+
+    // SQLite cannot drop a UNIQUE constraint, so the table is copied. Dropping the old table also drops the journal
+    // triggers, which are recreated on the new one.
+    private static void dropUniqueNames(SQLiteDatabase db) {
+        final String migrationTable = TABLE_NAME + "_v4";
+        final String columns = COLUMN_ID + ", " + COLUMN_NAME + ", " + COLUMN_EMBEDDING + ", " + COLUMN_DIMENSION + ", " + COLUMN_DTYPE;
+        db.execSQL("DROP TABLE IF EXISTS " + migrationTable);
+        createFacesTable(db, migrationTable);
+        db.execSQL("INSERT INTO " + migrationTable + " (" + columns + ") SELECT " + columns + " FROM " + TABLE_NAME);
+        db.execSQL("DROP TABLE " + TABLE_NAME);
+        db.execSQL("ALTER TABLE " + migrationTable + " RENAME TO " + TABLE_NAME);
+        createChangeJournal(db);
+    }
+
+    // Rewrites the version 1 TEXT rows into the BLOB layout, keeping ids and names. onUpgrade already
+    // runs inside a transaction, so a failure leaves the old table untouched.
+    @SuppressLint("Range")
+    private static void migrateTextEmbeddingsToBlob(SQLiteDatabase db) {
+        final String migrationTable = TABLE_NAME + "_v2";
+        db.execSQL("DROP TABLE IF EXISTS " + migrationTable);
+        createFacesTable(db, migrationTable);
+
+        Cursor res = db.rawQuery("SELECT * FROM " + TABLE_NAME, null);
+        int migrated = 0;
+        try {
+            ContentValues contentValues = new ContentValues();
+            while (res.moveToNext()) {
+                float[] embedding = EmbeddingCodec.parseLegacyText(res.getString(res.getColumnIndex(COLUMN_EMBEDDING)));
+
+                contentValues.clear();
+                contentValues.put(COLUMN_ID, res.getLong(res.getColumnIndex(COLUMN_ID)));
+                contentValues.put(COLUMN_NAME, res.getString(res.getColumnIndex(COLUMN_NAME)));
+                contentValues.put(COLUMN_EMBEDDING, EmbeddingCodec.encode(embedding, EmbeddingCodec.DTYPE_FLOAT32));
+                contentValues.put(COLUMN_DIMENSION, embedding.length);
+                contentValues.put(COLUMN_DTYPE, EmbeddingCodec.DTYPE_FLOAT32);
+                db.insert(migrationTable, null, contentValues);
+                migrated++;
+            }
+        } finally {
+            res.close();
+        }
+
+        db.execSQL("DROP TABLE " + TABLE_NAME);
+        db.execSQL("ALTER TABLE " + migrationTable + " RENAME TO " + TABLE_NAME);
+        Log.d("FaceDatabase", "Migrated " + migrated + " faces to BLOB embeddings");
+    }
+
+    // Binds embedding, dimension and dtype to consecutive parameters starting at firstIndex.
+    private void bindEmbedding(SQLiteStatement statement, int firstIndex, float[] vector) {
+        final int dtype = getEmbeddingEncoding();
+        bindEncodedEmbedding(statement, firstIndex, EmbeddingCodec.encode(vector, dtype), vector.length, dtype);
     }
 
 
-    private String embeddingToString(float[][] embedding) {
-        if (embedding == null || embedding.length == 0) return "";
-        StringBuilder embeddingString = new StringBuilder();
-        for (Float f : embedding[0]) {
-            embeddingString.append(f).append(",");
+    private static void bindEncodedEmbedding(SQLiteStatement statement, int firstIndex, byte[] blob, int dimension, int dtype) {
+        statement.bindBlob(firstIndex, blob);
+        statement.bindLong(firstIndex + 1, dimension);
+        statement.bindLong(firstIndex + 2, dtype);
+    }
+
+    // The helper caches the writable connection, so this stays open for the lifetime of FaceDatabase.
+    private SQLiteStatement compile(SQLiteStatement statement, String sql) {
+        return statement != null ? statement : getWritableDatabase().compileStatement(sql);
+    }
+
+
+    public synchronized int getEmbeddingEncoding() {
+        if (embeddingDtype < 0) {
+            embeddingDtype = (int) DatabaseUtils.longForQuery(getReadableDatabase(),
+                    "SELECT " + COLUMN_VALUE + " FROM " + SETTINGS_TABLE_NAME + " WHERE " + COLUMN_KEY + " = ?",
+                    new String[]{SETTING_EMBEDDING_DTYPE});
         }
-        return embeddingString.toString();
+        return embeddingDtype;
     }
 
 
-    private float[][] stringToEmbedding(String embeddingString) {
-        if (embeddingString == null || embeddingString.isEmpty()) return new float[1][0];
+    // Switches the gallery to another EmbeddingCodec dtype and re-encodes every stored template in one transaction.
+    // Templates are read a page at a time by id and each page is read in full before it is updated: updating rows
+    // under an open cursor takes them out of its result set, and the query that refills the next CursorWindow would
+    // then skip rows.
+    @SuppressLint("Range")
+    public synchronized void setEmbeddingEncoding(int dtype) {
+        if (!EmbeddingCodec.isKnownDtype(dtype)) {
+            throw new IllegalArgumentException("Unknown embedding dtype: " + dtype);
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            db.execSQL("UPDATE " + SETTINGS_TABLE_NAME + " SET " + COLUMN_VALUE + " = ? WHERE " + COLUMN_KEY + " = ?",
+                    new Object[]{dtype, SETTING_EMBEDDING_DTYPE});
+
+            SQLiteStatement reencode = db.compileStatement(
+                    "UPDATE " + TABLE_NAME + " SET " + COLUMN_EMBEDDING + " = ?, " + COLUMN_DTYPE + " = ? WHERE " + COLUMN_ID + " = ?");
+            List<Long> ids = new ArrayList<>(REENCODE_PAGE_SIZE);
+            List<float[]> embeddings = new ArrayList<>(REENCODE_PAGE_SIZE);
+            long lastId = -1;
+            int reencoded = 0;
+            try {
+                do {
+                    ids.clear();
+                    embeddings.clear();
+                    Cursor res = db.rawQuery("SELECT " + COLUMN_ID + ", " + COLUMN_EMBEDDING + ", " + COLUMN_DIMENSION + ", " +
+                                    COLUMN_DTYPE + " FROM " + TABLE_NAME + " WHERE " + COLUMN_DTYPE + " != ? AND " + COLUMN_ID +
+                                    " > ? ORDER BY " + COLUMN_ID + " LIMIT " + REENCODE_PAGE_SIZE,
+                            new String[]{Integer.toString(dtype), Long.toString(lastId)});
+                    try {
+                        while (res.moveToNext()) {
+                            ids.add(res.getLong(res.getColumnIndex(COLUMN_ID)));
+                            embeddings.add(EmbeddingCodec.decode(res.getBlob(res.getColumnIndex(COLUMN_EMBEDDING)),
+                                    res.getInt(res.getColumnIndex(COLUMN_DIMENSION)), res.getInt(res.getColumnIndex(COLUMN_DTYPE))));
+                        }
+                    } finally {
+                        res.close();
+                    }
+                    for (int i = 0; i < ids.size(); i++) {
+                        reencode.bindBlob(1, EmbeddingCodec.encode(embeddings.get(i), dtype));
+                        reencode.bindLong(2, dtype);
+                        reencode.bindLong(3, ids.get(i));
+                        reencode.executeUpdateDelete();
+                        reencode.clearBindings();
+                        reencoded++;
+                    }
+                    if (!ids.isEmpty()) {
+                        lastId = ids.get(ids.size() - 1);
+                    }
+                } while (ids.size() == REENCODE_PAGE_SIZE);
+            } finally {
+                reencode.close();
+            }
+            long remaining = DatabaseUtils.longForQuery(db,
+                    "SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE " + COLUMN_DTYPE + " != ?", new String[]{Integer.toString(dtype)});
+            if (remaining != 0) {
+                throw new IllegalStateException(remaining + " templates were not re-encoded to dtype " + dtype);
+            }
+            db.setTransactionSuccessful();
+            embeddingDtype = dtype;
+            Log.d("FaceDatabase", "Embedding encoding set to " + dtype + ", re-encoded " + reencoded + " templates");
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+
+    // Number of templates with the given dtype.
+    int getTemplateCount(int dtype) {
+        return (int) DatabaseUtils.longForQuery(getReadableDatabase(),
+                "SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE " + COLUMN_DTYPE + " = ?", new String[]{Integer.toString(dtype)});
+    }
 
-        String[] stringList = embeddingString.split(",");
-        float[][] embeddingArray = new float[1][stringList.length];
 
-        for (int i = 0; i < stringList.length; i++) {
-            embeddingArray[0][i] = Float.parseFloat(stringList[i]);
+    // Groups the following writes into one transaction, paying a single fsync on commit.
+    public void beginBatch() {
+        getWritableDatabase().beginTransactionNonExclusive();
+    }
+
+
+    public void commit() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.setTransactionSuccessful();
+        db.endTransaction();
+    }
+
+
+    public void rollback() {
+        getWritableDatabase().endTransaction();
+    }
+
+
+    // Adds every row of the embedding as a template; enrolling an existing name adds to its templates.
+    public synchronized boolean addFace(String name, Object embedding) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            boolean added = insertTemplates(name, (float[][]) embedding);
+            db.setTransactionSuccessful();
+
+            Log.d("FaceDatabase", "Face added: " + name);
+            return added;
+        } finally {
+            db.endTransaction();
         }
-        return embeddingArray;
     }
 
 
-    public boolean addFace(String name, Object embedding) {
-        float[][] floatList = (float[][]) embedding;
-        String embeddingString = embeddingToString(floatList);
+    private SQLiteStatement compileInsert() {
+        insertStatement = compile(insertStatement,
+                "INSERT INTO " + TABLE_NAME + " (" +
+                        COLUMN_NAME + ", " + COLUMN_EMBEDDING + ", " + COLUMN_DIMENSION + ", " + COLUMN_DTYPE +
+                        ") VALUES (?, ?, ?, ?)");
+        return insertStatement;
+    }
 
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(COLUMN_NAME, name);
-        contentValues.put(COLUMN_EMBEDDING, embeddingString);
 
-        long result = db.insertWithOnConflict(TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_REPLACE);
-        db.close();
+    private boolean insertTemplates(String name, float[][] templates) {
+        if (templates == null || templates.length == 0) {
+            return false;
+        }
+        compileInsert();
+        boolean inserted = true;
+        for (float[] template : templates) {
+            insertStatement.bindString(1, name);
+            bindEmbedding(insertStatement, 2, template);
+            inserted &= insertStatement.executeInsert() != -1;
+            insertStatement.clearBindings();
+        }
+        return inserted;
+    }
 
-        Log.d("FaceDatabase", "Face added: " + name);
-        return result != -1;
+
+    private int deleteTemplates(String name) {
+        deleteStatement = compile(deleteStatement, "DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_NAME + " = ?");
+        deleteStatement.bindString(1, name);
+        int deletedRows = deleteStatement.executeUpdateDelete();
+        deleteStatement.clearBindings();
+        return deletedRows;
     }
 
 
@@ -90,55 +367,339 @@ public class FaceDatabase extends SQLiteOpenHelper {
     }
 
 
+    // Dimension of the stored templates, or 0 while the gallery is empty.
+    public int getEmbeddingDimension() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        return (int) DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL((SELECT " + COLUMN_DIMENSION + " FROM " + TABLE_NAME + " LIMIT 1), 0)", null);
+    }
+
+
     public int getFaceCount() {
         SQLiteDatabase db = this.getReadableDatabase();
-        return (int) DatabaseUtils.queryNumEntries(db, TABLE_NAME);
+        return (int) DatabaseUtils.longForQuery(db, "SELECT COUNT(DISTINCT " + COLUMN_NAME + ") FROM " + TABLE_NAME, null);
     }
 
 
-    public boolean updateFace(String name, Object embedding) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(COLUMN_EMBEDDING, embeddingToString((float[][]) embedding));
+    // Replaces all templates of an existing identity; returns false and writes nothing if the name is unknown.
+    public synchronized boolean updateFace(String name, Object embedding) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            int affectedRows = deleteTemplates(name);
+            if (affectedRows > 0) {
+                insertTemplates(name, (float[][]) embedding);
+            }
+            db.setTransactionSuccessful();
+
+            Log.d("FaceDatabase", "Face updated: " + name + " | Rows affected: " + affectedRows);
+            return affectedRows > 0;
+        } finally {
+            db.endTransaction();
+        }
+    }
 
-        int affectedRows = db.update(TABLE_NAME, contentValues, COLUMN_NAME + " = ?", new String[]{name});
-        db.close();
 
-        Log.d("FaceDatabase", "Face updated: " + name + " | Rows affected: " + affectedRows);
-        return affectedRows > 0;
+    // Replaces all templates of the name, creating the identity if needed. Returns true when it was new.
+    public synchronized boolean upsertFace(String name, Object embedding) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            boolean inserted = deleteTemplates(name) == 0;
+            insertTemplates(name, (float[][]) embedding);
+            db.setTransactionSuccessful();
+            return inserted;
+        } finally {
+            db.endTransaction();
+        }
     }
 
 
-    public boolean removeFace(String name) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        int deletedRows = db.delete(TABLE_NAME, COLUMN_NAME + " = ?", new String[]{name});
-        db.close();
+    public synchronized boolean removeFace(String name) {
+        int deletedRows = deleteTemplates(name);
 
         Log.d("FaceDatabase", "Face removed: " + name);
         return deletedRows > 0;
     }
 
 
+    // Groups template rows by name. Rows without an id come from the journal join and mark removed names.
     @SuppressLint("Range")
+    private static Map<String, FaceRecognizer.RecognitionData> readFaces(Cursor res, Set<String> removed) {
+        Map<String, List<float[]>> templates = new HashMap<>();
+        while (res.moveToNext()) {
+            String name = res.getString(res.getColumnIndex(COLUMN_NAME));
+            if (res.isNull(res.getColumnIndex(COLUMN_ID))) {
+                removed.add(name);
+                continue;
+            }
+            byte[] embeddingBlob = res.getBlob(res.getColumnIndex(COLUMN_EMBEDDING));
+            int dimension = res.getInt(res.getColumnIndex(COLUMN_DIMENSION));
+            int dtype = res.getInt(res.getColumnIndex(COLUMN_DTYPE));
+            templates.computeIfAbsent(name, key -> new ArrayList<>()).add(EmbeddingCodec.decode(embeddingBlob, dimension, dtype));
+        }
+        res.close();
+
+        HashMap<String, FaceRecognizer.RecognitionData> faces = new HashMap<>();
+        for (Map.Entry<String, List<float[]>> entry : templates.entrySet()) {
+            float[][] embeddingArray = entry.getValue().toArray(new float[0][]);
+            faces.put(entry.getKey(), new FaceRecognizer.RecognitionData(entry.getKey(), embeddingArray));
+        }
+        return faces;
+    }
+
+
+    // Every identity with all of its templates as the rows of a float[][] feature vector.
     public Map<String, FaceRecognizer.RecognitionData> getAllFaces() {
         SQLiteDatabase db = this.getReadableDatabase();
-        Cursor res = db.rawQuery("SELECT * FROM " + TABLE_NAME, null);
+        Cursor res = db.rawQuery("SELECT * FROM " + TABLE_NAME + " ORDER BY " + COLUMN_ID, null);
 
-        HashMap<String, FaceRecognizer.RecognitionData> registeredFaces = new HashMap<>();
+        Map<String, FaceRecognizer.RecognitionData> registeredFaces = readFaces(res, new HashSet<>());
 
-        while (res.moveToNext()) {
-            String name = res.getString(res.getColumnIndex(COLUMN_NAME));
-            String embeddingString = res.getString(res.getColumnIndex(COLUMN_EMBEDDING));
+        Log.d("FaceDatabase", "Total stored faces: " + registeredFaces.size());
+        return registeredFaces;
+    }
 
-            float[][] embeddingArray = stringToEmbedding(embeddingString);
-            FaceRecognizer.RecognitionData recognition = new FaceRecognizer.RecognitionData(name, embeddingArray);
 
-            registeredFaces.put(name, recognition);
+    public interface FaceVisitor {
+        void visit(String name, float[][] templates);
+    }
+
+
+    // Hands over the identities one at a time, for indexes that cannot hold the whole gallery in memory. Runs in
+    // one read transaction and returns the change sequence that the visited faces reflect.
+    @SuppressLint("Range")
+    public long forEachFace(FaceVisitor visitor) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            final long sequence = getChangeSequence();
+            Cursor res = db.rawQuery("SELECT * FROM " + TABLE_NAME + " ORDER BY " + COLUMN_NAME + ", " + COLUMN_ID, null);
+            try {
+                String currentName = null;
+                List<float[]> templates = new ArrayList<>();
+                while (res.moveToNext()) {
+                    String name = res.getString(res.getColumnIndex(COLUMN_NAME));
+                    if (!name.equals(currentName)) {
+                        if (currentName != null) {
+                            visitor.visit(currentName, templates.toArray(new float[0][]));
+                            templates.clear();
+                        }
+                        currentName = name;
+                    }
+                    templates.add(EmbeddingCodec.decode(res.getBlob(res.getColumnIndex(COLUMN_EMBEDDING)),
+                            res.getInt(res.getColumnIndex(COLUMN_DIMENSION)), res.getInt(res.getColumnIndex(COLUMN_DTYPE))));
+                }
+                if (currentName != null) {
+                    visitor.visit(currentName, templates.toArray(new float[0][]));
+                }
+            } finally {
+                res.close();
+            }
+            db.setTransactionSuccessful();
+            return sequence;
+        } finally {
+            db.endTransaction();
         }
-        res.close();
-        db.close();
+    }
 
-        Log.d("FaceDatabase", "Total stored faces: " + registeredFaces.size());
-        return registeredFaces;
+
+    // Only the named identities, for re-ranking a shortlist without loading the gallery. Unknown names are left out.
+    // Names are bound MAX_NAMES_PER_QUERY at a time and the chunks merged.
+    public Map<String, FaceRecognizer.RecognitionData> getFaces(Collection<String> names) {
+        Map<String, FaceRecognizer.RecognitionData> faces = new HashMap<>();
+        if (names.isEmpty()) {
+            return faces;
+        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        String[] distinct = new LinkedHashSet<>(names).toArray(new String[0]);
+        for (int from = 0; from < distinct.length; from += MAX_NAMES_PER_QUERY) {
+            String[] chunk = Arrays.copyOfRange(distinct, from, Math.min(distinct.length, from + MAX_NAMES_PER_QUERY));
+            StringBuilder placeholders = new StringBuilder("?");
+            for (int i = 1; i < chunk.length; i++) {
+                placeholders.append(",?");
+            }
+            Cursor res = db.rawQuery("SELECT * FROM " + TABLE_NAME + " WHERE " + COLUMN_NAME + " IN (" + placeholders + ")" +
+                    " ORDER BY " + COLUMN_ID, chunk);
+            faces.putAll(readFaces(res, new HashSet<>()));
+        }
+        return faces;
+    }
+
+
+    // Streams every identity into a GallerySnapshot, keeping the stored embedding bytes as they are. Returns the
+    // number of identities written.
+    @SuppressLint("Range")
+    public long exportSnapshot(OutputStream out) throws IOException {
+        SQLiteDatabase db = this.getReadableDatabase();
+        GallerySnapshot.Writer writer = new GallerySnapshot.Writer(out);
+        db.beginTransactionNonExclusive();
+        try {
+            Cursor res = db.rawQuery("SELECT * FROM " + TABLE_NAME + " ORDER BY " + COLUMN_NAME + ", " + COLUMN_ID, null);
+            try {
+                String currentName = null;
+                List<GallerySnapshot.Template> templates = new ArrayList<>();
+                while (res.moveToNext()) {
+                    String name = res.getString(res.getColumnIndex(COLUMN_NAME));
+                    if (!name.equals(currentName)) {
+                        if (currentName != null) {
+                            writer.write(new GallerySnapshot.Record(currentName, templates));
+                            templates = new ArrayList<>();
+                        }
+                        currentName = name;
+                    }
+                    templates.add(new GallerySnapshot.Template(res.getInt(res.getColumnIndex(COLUMN_DTYPE)),
+                            res.getInt(res.getColumnIndex(COLUMN_DIMENSION)), res.getBlob(res.getColumnIndex(COLUMN_EMBEDDING))));
+                }
+                if (currentName != null) {
+                    writer.write(new GallerySnapshot.Record(currentName, templates));
+                }
+            } finally {
+                res.close();
+            }
+            writer.finish();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        Log.d("FaceDatabase", "Exported " + writer.getRecordCount() + " faces");
+        return writer.getRecordCount();
+    }
+
+
+    // Imports a GallerySnapshot in one transaction. Each identity in the snapshot replaces the stored one; with
+    // replaceAll the gallery is cleared first. A checksum mismatch, a truncated stream or a template whose dimension
+    // differs from the gallery's (the first record's when the gallery starts out empty) rolls everything back.
+    public synchronized long importSnapshot(InputStream in, boolean replaceAll) throws IOException {
+        SQLiteDatabase db = getWritableDatabase();
+        GallerySnapshot.Reader reader = new GallerySnapshot.Reader(in);
+        final int dtype = getEmbeddingEncoding();
+        int dimension = replaceAll ? 0 : getEmbeddingDimension();
+        long imported = 0;
+        db.beginTransactionNonExclusive();
+        try {
+            if (replaceAll) {
+                db.delete(TABLE_NAME, null, null);
+            }
+            SQLiteStatement insert = compileInsert();
+            GallerySnapshot.Record record;
+            while ((record = reader.next()) != null) {
+                if (!replaceAll) {
+                    deleteTemplates(record.getName());
+                }
+                for (GallerySnapshot.Template template : record.getTemplates()) {
+                    if (dimension == 0) {
+                        dimension = template.getDimension();
+                    } else if (template.getDimension() != dimension) {
+                        throw new IOException("Snapshot record " + record.getName() + " has embedding dimension "
+                                + template.getDimension() + ", the gallery uses " + dimension);
+                    }
+                    byte[] blob = template.getEmbedding();
+                    if (template.getDtype() != dtype) {
+                        blob = EmbeddingCodec.encode(
+                                EmbeddingCodec.decode(blob, template.getDimension(), template.getDtype()), dtype);
+                    }
+                    insert.bindString(1, record.getName());
+                    bindEncodedEmbedding(insert, 2, blob, template.getDimension(), dtype);
+                    insert.executeInsert();
+                    insert.clearBindings();
+                }
+                imported++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        Log.d("FaceDatabase", "Imported " + imported + " faces");
+        return imported;
+    }
+
+
+    // Sequence of the latest journaled change; never decreases, even after the journal is trimmed.
+    public long getChangeSequence() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        return DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL((SELECT seq FROM sqlite_sequence WHERE name = ?), 0)", new String[]{CHANGES_TABLE_NAME});
+    }
+
+
+    // Returns the latest state of every name touched after the given sequence, or a change set that requires a
+    // full reload when the journal no longer reaches back that far.
+    @SuppressLint("Range")
+    public ChangeSet getChangesSince(long sequence) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            long latest = getChangeSequence();
+            long oldest = DatabaseUtils.longForQuery(db,
+                    "SELECT IFNULL(MIN(" + COLUMN_SEQUENCE + "), " + (latest + 1) + ") FROM " + CHANGES_TABLE_NAME, null);
+            if (sequence < oldest - 1 || sequence > latest) {
+                db.setTransactionSuccessful();
+                return new ChangeSet(latest, true);
+            }
+
+            ChangeSet changes = new ChangeSet(latest, false);
+            Cursor res = db.rawQuery(
+                    "SELECT c." + COLUMN_NAME + " AS " + COLUMN_NAME + ", f." + COLUMN_ID + " AS " + COLUMN_ID + ", " +
+                            "f." + COLUMN_EMBEDDING + ", f." + COLUMN_DIMENSION + ", f." + COLUMN_DTYPE +
+                            " FROM (SELECT DISTINCT " + COLUMN_NAME + " FROM " + CHANGES_TABLE_NAME +
+                            " WHERE " + COLUMN_SEQUENCE + " > ? AND " + COLUMN_SEQUENCE + " <= ?) c" +
+                            " LEFT JOIN " + TABLE_NAME + " f ON f." + COLUMN_NAME + " = c." + COLUMN_NAME +
+                            " ORDER BY f." + COLUMN_ID,
+                    new String[]{Long.toString(sequence), Long.toString(latest)});
+            changes.updated.putAll(readFaces(res, changes.removed));
+            db.setTransactionSuccessful();
+            return changes;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+
+    public static final class ChangeSet {
+        private final long sequence;
+        private final boolean fullReloadRequired;
+        private final Map<String, FaceRecognizer.RecognitionData> updated = new HashMap<>();
+        private final Set<String> removed = new HashSet<>();
+
+        ChangeSet(long sequence, boolean fullReloadRequired) {
+            this.sequence = sequence;
+            this.fullReloadRequired = fullReloadRequired;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public boolean isFullReloadRequired() {
+            return fullReloadRequired;
+        }
+
+        public Map<String, FaceRecognizer.RecognitionData> getUpdated() {
+            return updated;
+        }
+
+        public Set<String> getRemoved() {
+            return removed;
+        }
+
+        public int size() {
+            return updated.size() + removed.size();
+        }
+    }
+
+
+    @Override
+    public synchronized void close() {
+        for (SQLiteStatement statement : new SQLiteStatement[]{insertStatement, deleteStatement}) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+        insertStatement = null;
+        deleteStatement = null;
+        super.close();
     }
 }
@@ -0,0 +1,498 @@
+package eu.example.realtimefr.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.example.realtimefr.viewmodel.FaceRecognizer;
+
+/**
+ * Flat companion file of {@link FaceDatabase}: a fixed header, a contiguous row-major embedding matrix and
+ * an identity table, all little-endian. The file is a derived cache; SQLite stays the source of truth and
+ * {@link #getSourceVersion()} tells callers whether the file still matches it.
+ *
+ * <pre>
+ *   0  int   magic "FGAL"
+ *   4  int   format version
+ *   8  int   dtype ({@link EmbeddingCodec})
+ *  12  int   dimension
+ *  16  int   row count
+ *  20  int   entry count
+ *  24  long  source version, -1 while an incremental write is in progress
+ *  32  rows  row count * dimension values
+ *      int   entries[entry count][3]: first row, template count, live flag
+ *      int   name offsets[entry count + 1], relative to the start of the name bytes
+ *      byte  UTF-8 names
+ * </pre>
+ *
+ * Each identity owns a block of rows: its centroid followed by its templates. Updating or removing an identity
+ * only clears the live flag of its old entry and appends a new block; dead rows are reclaimed by a rebuild.
+ * <p>
+ * A single mapping is limited to 2 GiB, so the matrix is mapped in segments of whole rows and the identity table
+ * gets a mapping of its own.
+ */
+public final class FlatGalleryFile {
+
+    private static final int MAGIC = 0x4C414746;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int SOURCE_VERSION_OFFSET = 24;
+    private static final int ENTRY_INTS = 3;
+    private static final long DIRTY_VERSION = -1L;
+    private static final int MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+    private final int dimension;
+    private final int rowCount;
+    private final int entryCount;
+    private final long sourceVersion;
+    private final FloatBuffer[] segments;
+    private final int rowsPerSegment;
+    private final ByteBuffer tail;
+    private final int nameOffsetsStart;
+    private final int nameBytesStart;
+    private final int liveCount;
+    private final int deadRowCount;
+
+    private FlatGalleryFile(Header header, FloatBuffer[] segments, int rowsPerSegment, ByteBuffer tail) {
+        this.dimension = header.dimension;
+        this.rowCount = header.rowCount;
+        this.entryCount = header.entryCount;
+        this.sourceVersion = header.sourceVersion;
+        this.segments = segments;
+        this.rowsPerSegment = rowsPerSegment;
+        this.tail = tail;
+        this.nameOffsetsStart = entryCount * ENTRY_INTS * 4;
+        this.nameBytesStart = nameOffsetsStart + (entryCount + 1) * 4;
+
+        int live = 0;
+        int liveRows = 0;
+        for (int entry = 0; entry < entryCount; entry++) {
+            if (isLive(entry)) {
+                live++;
+                liveRows += 1 + getTemplateCount(entry);
+            }
+        }
+        this.liveCount = live;
+        this.deadRowCount = rowCount - liveRows;
+    }
+
+    public static FlatGalleryFile open(File file) throws IOException {
+        return open(file, MAX_SEGMENT_BYTES);
+    }
+
+    // Segment size is a parameter so tests can cover galleries that span several mappings without writing 2 GiB.
+    static FlatGalleryFile open(File file, int maxSegmentBytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            Header header = readHeader(channel);
+            long rowBytes = header.dimension * 4L;
+            if (rowBytes > maxSegmentBytes) {
+                throw new IOException("Embedding dimension " + header.dimension + " is too large to map");
+            }
+            long tailSize = channel.size() - header.tailOffset();
+            if (tailSize > Integer.MAX_VALUE) {
+                throw new IOException("Identity table of " + tailSize + " bytes is too large to map");
+            }
+
+            int rowsPerSegment = rowBytes == 0 ? Integer.MAX_VALUE : (int) (maxSegmentBytes / rowBytes);
+            FloatBuffer[] segments = new FloatBuffer[(int) ((header.rowCount + (long) rowsPerSegment - 1) / rowsPerSegment)];
+            for (int segment = 0; segment < segments.length; segment++) {
+                long firstRow = (long) segment * rowsPerSegment;
+                long rows = Math.min(rowsPerSegment, header.rowCount - firstRow);
+                segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + firstRow * rowBytes, rows * rowBytes)
+                        .order(ByteOrder.LITTLE_ENDIAN)
+                        .asFloatBuffer();
+            }
+            ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, header.tailOffset(), tailSize)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+            return new FlatGalleryFile(header, segments, rowsPerSegment, tail);
+        }
+    }
+
+    // Number of entries, live or not; iterate up to this and skip entries where isLive is false.
+    public int size() {
+        return entryCount;
+    }
+
+    public int getLiveCount() {
+        return liveCount;
+    }
+
+    public int getDeadRowCount() {
+        return deadRowCount;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public long getSourceVersion() {
+        return sourceVersion;
+    }
+
+    public boolean isLive(int entry) {
+        return tail.getInt((entry * ENTRY_INTS + 2) * 4) != 0;
+    }
+
+    public int getTemplateCount(int entry) {
+        return tail.getInt((entry * ENTRY_INTS + 1) * 4);
+    }
+
+    public String getName(int entry) {
+        int start = tail.getInt(nameOffsetsStart + entry * 4);
+        int end = tail.getInt(nameOffsetsStart + (entry + 1) * 4);
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = tail.get(nameBytesStart + start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public float centroidDistance(int entry, float[] query) {
+        return squaredDistance(firstRow(entry), query);
+    }
+
+    public float templateDistance(int entry, int template, float[] query) {
+        return squaredDistance(firstRow(entry) + 1 + template, query);
+    }
+
+    public float[] getCentroid(int entry, float[] destination) {
+        return getRow(firstRow(entry), destination);
+    }
+
+    public float[] getTemplate(int entry, int template, float[] destination) {
+        return getRow(firstRow(entry) + 1 + template, destination);
+    }
+
+    // Bulk copy of the entry's template rows, for loaders that move the gallery into heap arrays.
+    public void copyTemplates(int entry, float[] destination, int offset) {
+        copyRows(firstRow(entry) + 1, getTemplateCount(entry), destination, offset);
+    }
+
+    private int firstRow(int entry) {
+        return tail.getInt(entry * ENTRY_INTS * 4);
+    }
+
+    private float squaredDistance(int row, float[] query) {
+        final FloatBuffer segment = segments[row / rowsPerSegment];
+        final int base = (row % rowsPerSegment) * dimension;
+        float distance = 0;
+        for (int i = 0; i < dimension; i++) {
+            float diff = query[i] - segment.get(base + i);
+            distance += diff * diff;
+        }
+        return distance;
+    }
+
+    // Segments hold whole rows, so a run of rows is copied segment by segment.
+    private void copyRows(int row, int count, float[] destination, int offset) {
+        while (count > 0) {
+            int inSegment = row % rowsPerSegment;
+            int rows = Math.min(count, rowsPerSegment - inSegment);
+            FloatBuffer view = segments[row / rowsPerSegment].duplicate();
+            view.position(inSegment * dimension);
+            view.get(destination, offset, rows * dimension);
+            row += rows;
+            count -= rows;
+            offset += rows * dimension;
+        }
+    }
+
+    private float[] getRow(int row, float[] destination) {
+        copyRows(row, 1, destination, 0);
+        return destination;
+    }
+
+    static float[] centroid(float[][] templates) {
+        float[] centroid = new float[templates[0].length];
+        for (float[] template : templates) {
+            for (int i = 0; i < centroid.length; i++) {
+                centroid[i] += template[i];
+            }
+        }
+        for (int i = 0; i < centroid.length; i++) {
+            centroid[i] /= templates.length;
+        }
+        return centroid;
+    }
+
+    public static void write(File file, Map<String, FaceRecognizer.RecognitionData> faces, long sourceVersion) throws IOException {
+        Tail tail = new Tail();
+        int dimension = 0;
+        for (Map.Entry<String, FaceRecognizer.RecognitionData> entry : faces.entrySet()) {
+            float[][] templates = (float[][]) entry.getValue().getFeatureVector();
+            dimension = checkDimension(templates, dimension);
+            tail.add(entry.getKey(), tail.rowCount, templates.length);
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            Header header = new Header(dimension, tail.rowCount, tail.names.size(), sourceVersion);
+            writeFully(channel, header.toBuffer(), 0);
+
+            long position = HEADER_SIZE;
+            for (FaceRecognizer.RecognitionData face : faces.values()) {
+                position = writeBlock(channel, (float[][]) face.getFeatureVector(), position);
+            }
+            writeFully(channel, tail.encode(), position);
+            channel.force(false);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    // Retires the current block of the name, if any, and appends a new one; only the tail tables are rewritten.
+    public static void upsert(File file, String name, float[][] templates, long sourceVersion) throws IOException {
+        update(file, Collections.<String>emptySet(),
+                Collections.singletonMap(name, new FaceRecognizer.RecognitionData(name, templates)), sourceVersion);
+    }
+
+    public static void remove(File file, String name, long sourceVersion) throws IOException {
+        update(file, Collections.singleton(name), Collections.<String, FaceRecognizer.RecognitionData>emptyMap(), sourceVersion);
+    }
+
+    // Applies a whole change set in one pass: the tail is read once, every new block is appended after the matrix,
+    // then the tail and the header carrying the new source version are written with a single force.
+    public static void update(File file, Collection<String> removed, Map<String, FaceRecognizer.RecognitionData> updated,
+                              long sourceVersion) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            Header header = readHeader(channel);
+            int dimension = header.rowCount > 0 ? header.dimension : 0;
+            for (FaceRecognizer.RecognitionData face : updated.values()) {
+                dimension = checkDimension((float[][]) face.getFeatureVector(), dimension);
+            }
+            Tail tail = readTail(channel, header);
+
+            markDirty(channel);
+            for (String name : removed) {
+                tail.retire(name);
+            }
+            long end = header.tailOffset();
+            for (Map.Entry<String, FaceRecognizer.RecognitionData> entry : updated.entrySet()) {
+                float[][] templates = (float[][]) entry.getValue().getFeatureVector();
+                tail.retire(entry.getKey());
+                tail.add(entry.getKey(), tail.rowCount, templates.length);
+                end = writeBlock(channel, templates, end);
+            }
+
+            ByteBuffer encoded = tail.encode();
+            writeFully(channel, encoded, end);
+            raf.setLength(end + encoded.capacity());
+            writeFully(channel, new Header(dimension, tail.rowCount, tail.names.size(), sourceVersion).toBuffer(), 0);
+            channel.force(false);
+        }
+    }
+
+    public static void setSourceVersion(File file, long sourceVersion) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            readHeader(channel);
+            writeSourceVersion(channel, sourceVersion);
+            channel.force(false);
+        }
+    }
+
+    // Returns the dimension shared by the templates; a dimension of 0 is taken from the first template.
+    private static int checkDimension(float[][] templates, int dimension) throws IOException {
+        for (float[] template : templates) {
+            if (dimension == 0) {
+                dimension = template.length;
+            } else if (template.length != dimension) {
+                throw new IOException("Embedding dimension " + template.length + " does not match gallery dimension " + dimension);
+            }
+        }
+        return dimension;
+    }
+
+    // Writes the centroid followed by the templates and returns the position after the block.
+    private static long writeBlock(FileChannel channel, float[][] templates, long position) throws IOException {
+        ByteBuffer rowBuffer = ByteBuffer.allocate(templates[0].length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int row = -1; row < templates.length; row++) {
+            rowBuffer.clear();
+            rowBuffer.asFloatBuffer().put(row < 0 ? centroid(templates) : templates[row]);
+            writeFully(channel, rowBuffer, position);
+            position += rowBuffer.capacity();
+        }
+        return position;
+    }
+
+    private static void markDirty(FileChannel channel) throws IOException {
+        writeSourceVersion(channel, DIRTY_VERSION);
+    }
+
+    private static void writeSourceVersion(FileChannel channel, long sourceVersion) throws IOException {
+        ByteBuffer version = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        version.putLong(0, sourceVersion);
+        writeFully(channel, version, SOURCE_VERSION_OFFSET);
+    }
+
+    private static Header readHeader(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer, 0);
+        return Header.read(buffer, channel.size());
+    }
+
+    private static Tail readTail(FileChannel channel, Header header) throws IOException {
+        long tailSize = channel.size() - header.tailOffset();
+        if (tailSize > Integer.MAX_VALUE) {
+            throw new IOException("Identity table of " + tailSize + " bytes is too large to read");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) tailSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer, header.tailOffset());
+
+        Tail tail = new Tail();
+        tail.rowCount = header.rowCount;
+        int nameOffsetsStart = header.entryCount * ENTRY_INTS * 4;
+        int nameBytesStart = nameOffsetsStart + (header.entryCount + 1) * 4;
+        for (int entry = 0; entry < header.entryCount; entry++) {
+            int start = buffer.getInt(nameOffsetsStart + entry * 4);
+            int end = buffer.getInt(nameOffsetsStart + (entry + 1) * 4);
+            tail.firstRows.add(buffer.getInt(entry * ENTRY_INTS * 4));
+            tail.templateCounts.add(buffer.getInt((entry * ENTRY_INTS + 1) * 4));
+            int live = buffer.getInt((entry * ENTRY_INTS + 2) * 4);
+            String name = new String(buffer.array(), nameBytesStart + start, end - start, StandardCharsets.UTF_8);
+            tail.liveFlags.add(live);
+            tail.names.add(name);
+            if (live != 0) {
+                tail.liveEntries.put(name, entry);
+            }
+        }
+        return tail;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.rewind();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of gallery file");
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private static final class Tail {
+        final List<Integer> firstRows = new ArrayList<>();
+        final List<Integer> templateCounts = new ArrayList<>();
+        final List<Integer> liveFlags = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        // Live entry of each name, so retiring a name does not scan the table.
+        final Map<String, Integer> liveEntries = new HashMap<>();
+        int rowCount;
+
+        void add(String name, int firstRow, int templateCount) {
+            liveEntries.put(name, names.size());
+            firstRows.add(firstRow);
+            templateCounts.add(templateCount);
+            liveFlags.add(1);
+            names.add(name);
+            rowCount = firstRow + 1 + templateCount;
+        }
+
+        void retire(String name) {
+            Integer entry = liveEntries.remove(name);
+            if (entry != null) {
+                liveFlags.set(entry, 0);
+            }
+        }
+
+        ByteBuffer encode() {
+            byte[][] encoded = new byte[names.size()][];
+            int total = 0;
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+                total += encoded[i].length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(encoded.length * ENTRY_INTS * 4 + (encoded.length + 1) * 4 + total)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < encoded.length; i++) {
+                buffer.putInt(firstRows.get(i)).putInt(templateCounts.get(i)).putInt(liveFlags.get(i));
+            }
+            int offset = 0;
+            for (byte[] name : encoded) {
+                buffer.putInt(offset);
+                offset += name.length;
+            }
+            buffer.putInt(offset);
+            for (byte[] name : encoded) {
+                buffer.put(name);
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private static final class Header {
+        final int dimension;
+        final int rowCount;
+        final int entryCount;
+        final long sourceVersion;
+
+        Header(int dimension, int rowCount, int entryCount, long sourceVersion) {
+            this.dimension = dimension;
+            this.rowCount = rowCount;
+            this.entryCount = entryCount;
+            this.sourceVersion = sourceVersion;
+        }
+
+        long tailOffset() {
+            return HEADER_SIZE + (long) rowCount * dimension * 4;
+        }
+
+        ByteBuffer toBuffer() {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC)
+                    .putInt(FORMAT_VERSION)
+                    .putInt(EmbeddingCodec.DTYPE_FLOAT32)
+                    .putInt(dimension)
+                    .putInt(rowCount)
+                    .putInt(entryCount)
+                    .putLong(sourceVersion);
+            buffer.flip();
+            return buffer;
+        }
+
+        static Header read(ByteBuffer buffer, long fileSize) throws IOException {
+            if (fileSize < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a gallery file");
+            }
+            if (buffer.getInt(4) != FORMAT_VERSION || buffer.getInt(8) != EmbeddingCodec.DTYPE_FLOAT32) {
+                throw new IOException("Unsupported gallery format");
+            }
+            Header header = new Header(buffer.getInt(12), buffer.getInt(16), buffer.getInt(20), buffer.getLong(SOURCE_VERSION_OFFSET));
+            long minimumSize = header.tailOffset() + (header.entryCount * (long) ENTRY_INTS + header.entryCount + 1) * 4;
+            if (header.dimension < 0 || header.rowCount < 0 || header.entryCount < 0 || minimumSize > fileSize) {
+                throw new IOException("Truncated gallery file");
+            }
+            return header;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package eu.example.realtimefr.data;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import eu.example.realtimefr.viewmodel.FaceRecognizer;
+
+public final class GalleryImporter {
+
+    private static final int PROGRESS_INTERVAL = 500;
+
+    public interface ProgressListener {
+        void onProgress(int processed, long elapsedNanos);
+    }
+
+    public static final class Result {
+        private final int inserted;
+        private final int updated;
+        private final int skipped;
+        private final long elapsedNanos;
+
+        Result(int inserted, int updated, int skipped, long elapsedNanos) {
+            this.inserted = inserted;
+            this.updated = updated;
+            this.skipped = skipped;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getInserted() {
+            return inserted;
+        }
+
+        public int getUpdated() {
+            return updated;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : (inserted + updated) / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d inserted, %d updated, %d skipped in %.1f ms (%.0f rows/s)",
+                    inserted, updated, skipped, elapsedNanos / 1e6, getRowsPerSecond());
+        }
+    }
+
+    private final FaceDatabase database;
+
+    public GalleryImporter(FaceDatabase database) {
+        this.database = database;
+    }
+
+    // Streams every record into one transaction. Duplicate names, in the database or within the input, are upserted.
+    // A record whose dimension differs from the gallery's, or from the first record imported into an empty gallery,
+    // rolls back the whole import.
+    public Result importFaces(Iterator<FaceRecognizer.RecognitionData> records, ProgressListener listener) {
+        final long start = System.nanoTime();
+        int inserted = 0;
+        int updated = 0;
+        int skipped = 0;
+
+        database.beginBatch();
+        try {
+            int dimension = database.getEmbeddingDimension();
+            while (records.hasNext()) {
+                FaceRecognizer.RecognitionData record = records.next();
+                if (record.getLabel() == null || !(record.getFeatureVector() instanceof float[][])) {
+                    skipped++;
+                } else {
+                    dimension = checkDimension(inserted + updated + skipped + 1, record, dimension);
+                    if (database.upsertFace(record.getLabel(), record.getFeatureVector())) {
+                        inserted++;
+                    } else {
+                        updated++;
+                    }
+                }
+
+                int processed = inserted + updated + skipped;
+                if (listener != null && processed % PROGRESS_INTERVAL == 0) {
+                    listener.onProgress(processed, System.nanoTime() - start);
+                }
+            }
+            database.commit();
+        } catch (RuntimeException e) {
+            database.rollback();
+            throw e;
+        }
+
+        Result result = new Result(inserted, updated, skipped, System.nanoTime() - start);
+        if (listener != null) {
+            listener.onProgress(inserted + updated + skipped, result.getElapsedNanos());
+        }
+        Log.d("FaceDatabase", "Gallery import: " + result);
+        return result;
+    }
+
+    // Returns the dimension of the record's templates, which must all match the given one unless that is still 0.
+    static int checkDimension(int recordNumber, FaceRecognizer.RecognitionData record, int dimension) {
+        for (float[] template : (float[][]) record.getFeatureVector()) {
+            if (dimension == 0) {
+                dimension = template.length;
+            } else if (template.length != dimension) {
+                throw new IllegalArgumentException("Record " + recordNumber + " (" + record.getLabel() + ") has embedding dimension "
+                        + template.length + ", the gallery uses " + dimension);
+            }
+        }
+        return dimension;
+    }
+
+    // Reads one identity per line: the name, then the embedding values, separated by commas.
+    public static Iterator<FaceRecognizer.RecognitionData> readCsv(final BufferedReader reader) {
+        return new Iterator<FaceRecognizer.RecognitionData>() {
+            private String nextLine = readLine();
+
+            private String readLine() {
+                try {
+                    String line;
+                    do {
+                        line = reader.readLine();
+                    } while (line != null && line.trim().isEmpty());
+                    return line;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextLine != null;
+            }
+
+            @Override
+            public FaceRecognizer.RecognitionData next() {
+                if (nextLine == null) {
+                    throw new NoSuchElementException();
+                }
+                String line = nextLine;
+                nextLine = readLine();
+
+                int separator = line.indexOf(',');
+                if (separator <= 0) {
+                    return new FaceRecognizer.RecognitionData(null, null);
+                }
+                String name = line.substring(0, separator).trim();
+                float[] embedding = EmbeddingCodec.parseLegacyText(line.substring(separator + 1));
+                return new FaceRecognizer.RecognitionData(name, new float[][]{embedding});
+            }
+        };
+    }
+}
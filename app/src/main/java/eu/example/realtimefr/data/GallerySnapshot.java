@@ -0,0 +1,268 @@
+package eu.example.realtimefr.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Portable gallery backup: a stream of CRC-checked blocks, each holding a run of length-prefixed identity
+ * records with the embedding bytes exactly as {@link FaceDatabase} stores them. Both sides stream one block
+ * at a time, so neither has to hold the whole gallery in memory.
+ *
+ * <pre>
+ *   int   magic "FGSN"
+ *   int   format version
+ *   block*:
+ *     int   record count, 0 for the end block
+ *     int   payload length
+ *     byte  payload
+ *     int   CRC32 of the payload
+ *   end block payload: long total record count
+ *
+ *   record:
+ *     short name length, UTF-8 name
+ *     int   template count
+ *     template*: byte dtype, int dimension, {@link EmbeddingCodec#encodedSize} bytes
+ * </pre>
+ *
+ * The end block makes a truncated copy fail instead of importing as a smaller gallery.
+ */
+public final class GallerySnapshot {
+
+    private static final int MAGIC = 0x4E534746;
+    private static final int FORMAT_VERSION = 1;
+    private static final int TARGET_BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+
+    private GallerySnapshot() {
+    }
+
+    public static final class Template {
+        private final int dtype;
+        private final int dimension;
+        private final byte[] embedding;
+
+        public Template(int dtype, int dimension, byte[] embedding) {
+            if (!EmbeddingCodec.isKnownDtype(dtype) || embedding.length != EmbeddingCodec.encodedSize(dimension, dtype)) {
+                throw new IllegalArgumentException("Embedding bytes do not match dtype " + dtype + " and dimension " + dimension);
+            }
+            this.dtype = dtype;
+            this.dimension = dimension;
+            this.embedding = embedding;
+        }
+
+        public int getDtype() {
+            return dtype;
+        }
+
+        public int getDimension() {
+            return dimension;
+        }
+
+        public byte[] getEmbedding() {
+            return embedding;
+        }
+    }
+
+    public static final class Record {
+        private final String name;
+        private final List<Template> templates;
+
+        public Record(String name, List<Template> templates) {
+            this.name = name;
+            this.templates = templates;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<Template> getTemplates() {
+            return templates;
+        }
+    }
+
+    public static final class Writer implements AutoCloseable {
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(TARGET_BLOCK_SIZE);
+        private final DataOutputStream block = new DataOutputStream(blockBytes);
+        private final CRC32 crc = new CRC32();
+        private int blockRecords;
+        private long totalRecords;
+        private boolean finished;
+
+        public Writer(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.out.writeInt(MAGIC);
+            this.out.writeInt(FORMAT_VERSION);
+        }
+
+        public void write(Record record) throws IOException {
+            byte[] name = record.getName().getBytes(StandardCharsets.UTF_8);
+            if (name.length > 0xFFFF) {
+                throw new IllegalArgumentException("Name is too long for a gallery snapshot: " + record.getName());
+            }
+            block.writeShort(name.length);
+            block.write(name);
+            block.writeInt(record.getTemplates().size());
+            for (Template template : record.getTemplates()) {
+                block.writeByte(template.getDtype());
+                block.writeInt(template.getDimension());
+                block.write(template.getEmbedding());
+            }
+            blockRecords++;
+            totalRecords++;
+            if (blockBytes.size() >= TARGET_BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        public long getRecordCount() {
+            return totalRecords;
+        }
+
+        // Writes the pending block and the end block. Without it a reader treats the stream as truncated.
+        public void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            flushBlock();
+            block.writeLong(totalRecords);
+            writeBlock(0);
+            out.flush();
+            finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            out.close();
+        }
+
+        private void flushBlock() throws IOException {
+            if (blockRecords > 0) {
+                writeBlock(blockRecords);
+                blockRecords = 0;
+            }
+        }
+
+        private void writeBlock(int recordCount) throws IOException {
+            byte[] payload = blockBytes.toByteArray();
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            out.writeInt(recordCount);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt((int) crc.getValue());
+            blockBytes.reset();
+        }
+    }
+
+    public static final class Reader implements AutoCloseable {
+        private final DataInputStream in;
+        private final CRC32 crc = new CRC32();
+        private DataInputStream block;
+        private int blockRemaining;
+        private long totalRecords;
+        private boolean ended;
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            try {
+                if (this.in.readInt() != MAGIC) {
+                    throw new IOException("Not a gallery snapshot");
+                }
+                int version = this.in.readInt();
+                if (version != FORMAT_VERSION) {
+                    throw new IOException("Unsupported gallery snapshot version " + version);
+                }
+            } catch (EOFException e) {
+                throw new IOException("Gallery snapshot is truncated", e);
+            }
+        }
+
+        // Returns the next record, or null after the end block. Each block is checksummed before any of its
+        // records is returned.
+        public Record next() throws IOException {
+            if (ended) {
+                return null;
+            }
+            try {
+                while (blockRemaining == 0) {
+                    if (readBlock()) {
+                        return null;
+                    }
+                }
+                blockRemaining--;
+                totalRecords++;
+                return readRecord(block);
+            } catch (EOFException e) {
+                throw new IOException("Gallery snapshot is truncated", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        // Loads and verifies the next block; returns true once the end block has been read.
+        private boolean readBlock() throws IOException {
+            int recordCount = in.readInt();
+            int length = in.readInt();
+            if (recordCount < 0 || length < 0 || length > MAX_BLOCK_SIZE) {
+                throw new IOException("Corrupt gallery snapshot block header");
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            int expected = in.readInt();
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            if ((int) crc.getValue() != expected) {
+                throw new IOException("Gallery snapshot block checksum mismatch after " + totalRecords + " records");
+            }
+            block = new DataInputStream(new ByteArrayInputStream(payload));
+            if (recordCount == 0) {
+                long written = block.readLong();
+                if (written != totalRecords) {
+                    throw new IOException("Gallery snapshot holds " + totalRecords + " records, expected " + written);
+                }
+                ended = true;
+                return true;
+            }
+            blockRemaining = recordCount;
+            return false;
+        }
+
+        private static Record readRecord(DataInputStream block) throws IOException {
+            byte[] name = new byte[block.readUnsignedShort()];
+            block.readFully(name);
+            int templateCount = block.readInt();
+            if (templateCount < 0) {
+                throw new IOException("Corrupt gallery snapshot record");
+            }
+            List<Template> templates = new ArrayList<>(templateCount);
+            for (int i = 0; i < templateCount; i++) {
+                int dtype = block.readByte();
+                int dimension = block.readInt();
+                if (!EmbeddingCodec.isKnownDtype(dtype) || dimension < 0
+                        || EmbeddingCodec.encodedSize(dimension, dtype) > block.available()) {
+                    throw new IOException("Corrupt gallery snapshot template");
+                }
+                byte[] embedding = new byte[EmbeddingCodec.encodedSize(dimension, dtype)];
+                block.readFully(embedding);
+                templates.add(new Template(dtype, dimension, embedding));
+            }
+            return new Record(new String(name, StandardCharsets.UTF_8), templates);
+        }
+    }
+}
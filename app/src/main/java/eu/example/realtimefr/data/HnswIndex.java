@@ -0,0 +1,635 @@
+package eu.example.realtimefr.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hierarchical navigable small world graph over one normalized vector per identity, ranked by dot product.
+ * Every node lives on layer 0 and on each layer below its randomly drawn level; a search descends greedily from
+ * the top layer and runs a beam search of width efSearch on layer 0.
+ *
+ * <p>Removing or replacing an identity tombstones its node: the node keeps routing searches but is never
+ * returned. {@link #getDeletedCount()} tells callers when a rebuild is worth it.
+ *
+ * <p>Searches hold a read lock and run in parallel; updates take the write lock. The stored vectors are the only
+ * copy an indexed gallery keeps in memory, so {@link #match} ranks by them directly.
+ *
+ * <pre>
+ *   int   magic "HNSW", format version, dimension, M, efConstruction, efSearch
+ *   long  source version
+ *   int   node count, entry point, max level
+ *   node*: byte deleted, UTF label, int level, dimension floats, per layer: int count, count ints
+ * </pre>
+ */
+public final class HnswIndex {
+
+    private static final int MAGIC = 0x57534E48;
+    private static final int FORMAT_VERSION = 1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int dimension;
+    private final int maxConnections;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final Random random = new Random(42);
+    private final Map<String, Integer> nodeByLabel = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Per-thread visit marks, so concurrent searches do not share them.
+    private final ThreadLocal<VisitMarks> visitMarks = ThreadLocal.withInitial(VisitMarks::new);
+    private int efSearch;
+    private float[] vectors;
+    private int[] levels;
+    // links[node][layer] holds the neighbour count followed by the neighbour ids.
+    private int[][][] links;
+    private String[] labels;
+    private boolean[] deleted;
+    private int nodeCount;
+    private int deletedCount;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private long sourceVersion = -1;
+
+    public HnswIndex(int dimension, int maxConnections, int efConstruction, int efSearch) {
+        if (maxConnections < 2) {
+            throw new IllegalArgumentException("M must be at least 2");
+        }
+        this.dimension = dimension;
+        this.maxConnections = maxConnections;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.levelMultiplier = 1 / Math.log(maxConnections);
+        allocate(INITIAL_CAPACITY);
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    // Live identities.
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return nodeCount - deletedCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getDeletedCount() {
+        lock.readLock().lock();
+        try {
+            return deletedCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getEfSearch() {
+        lock.readLock().lock();
+        try {
+            return efSearch;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void setEfSearch(int efSearch) {
+        lock.writeLock().lock();
+        try {
+            this.efSearch = efSearch;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Version of the FaceDatabase change journal this index reflects.
+    public long getSourceVersion() {
+        lock.readLock().lock();
+        try {
+            return sourceVersion;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void setSourceVersion(long sourceVersion) {
+        lock.writeLock().lock();
+        try {
+            this.sourceVersion = sourceVersion;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean contains(String label) {
+        lock.readLock().lock();
+        try {
+            return nodeByLabel.containsKey(label);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Adds the identity, or replaces its vector by tombstoning the old node. The vector must be normalized.
+    public void put(String label, float[] vector) {
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException("Expected a " + dimension + "-d vector for " + label);
+        }
+        lock.writeLock().lock();
+        try {
+            insert(label, vector);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void insert(String label, float[] vector) {
+        tombstone(label);
+
+        final int node = nodeCount++;
+        ensureCapacity(nodeCount);
+        final int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+        System.arraycopy(vector, 0, vectors, node * dimension, dimension);
+        levels[node] = level;
+        labels[node] = label;
+        links[node] = new int[level + 1][];
+        for (int layer = 0; layer <= level; layer++) {
+            links[node][layer] = new int[maxConnections(layer) + 1];
+        }
+        nodeByLabel.put(label, node);
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+
+        int closest = entryPoint;
+        for (int layer = maxLevel; layer > level; layer--) {
+            closest = greedyClosest(vector, closest, layer);
+        }
+        for (int layer = Math.min(level, maxLevel); layer >= 0; layer--) {
+            TopK found = searchLayer(vector, closest, efConstruction, layer, false);
+            int[] candidates = new int[found.size()];
+            float[] scores = new float[candidates.length];
+            int count = found.drainSorted(candidates, scores);
+            closest = candidates[0];
+
+            int selected = selectNeighbors(candidates, scores, count, maxConnections);
+            int[] nodeLinks = links[node][layer];
+            nodeLinks[0] = selected;
+            System.arraycopy(candidates, 0, nodeLinks, 1, selected);
+            for (int i = 0; i < selected; i++) {
+                connect(candidates[i], node, layer);
+            }
+        }
+        if (level > maxLevel) {
+            entryPoint = node;
+            maxLevel = level;
+        }
+    }
+
+    public boolean remove(String label) {
+        lock.writeLock().lock();
+        try {
+            return tombstone(label);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean tombstone(String label) {
+        Integer node = nodeByLabel.remove(label);
+        if (node == null) {
+            return false;
+        }
+        deleted[node] = true;
+        deletedCount++;
+        return true;
+    }
+
+    // Up to k live labels ranked by similarity to the normalized query, best first.
+    public List<String> search(float[] query, int k) {
+        final List<EmbeddingGallery.Match> matches = match(query, k, Float.MAX_VALUE);
+        final List<String> result = new ArrayList<>(matches.size());
+        for (EmbeddingGallery.Match match : matches) {
+            result.add(match.getName());
+        }
+        return result;
+    }
+
+    // Up to k live identities within maxSquaredDistance of the normalized query, nearest first, with the distance
+    // to their indexed vector.
+    public List<EmbeddingGallery.Match> match(float[] query, int k, float maxSquaredDistance) {
+        // On unit vectors |q - v|^2 = 2 - 2 * dot(q, v), so the distance cutoff becomes a minimum score.
+        final float minScore = maxSquaredDistance >= 4 ? -Float.MAX_VALUE : 1 - maxSquaredDistance / 2;
+        lock.readLock().lock();
+        try {
+            if (entryPoint < 0 || k <= 0 || nodeCount == deletedCount) {
+                return new ArrayList<>();
+            }
+            int closest = entryPoint;
+            for (int layer = maxLevel; layer > 0; layer--) {
+                closest = greedyClosest(query, closest, layer);
+            }
+            TopK found = searchLayer(query, closest, Math.max(efSearch, k), 0, true);
+            int[] nodes = new int[found.size()];
+            float[] scores = new float[nodes.length];
+            int count = found.drainSorted(nodes, scores);
+
+            List<EmbeddingGallery.Match> result = new ArrayList<>(Math.min(k, count));
+            for (int i = 0; i < count && result.size() < k && scores[i] >= minScore; i++) {
+                result.add(new EmbeddingGallery.Match(labels[nodes[i]], Math.max(0f, 2 - 2 * scores[i])));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int maxConnections(int layer) {
+        return layer == 0 ? 2 * maxConnections : maxConnections;
+    }
+
+    private float score(float[] query, int node) {
+        final float[] rows = vectors;
+        final int base = node * dimension;
+        float score = 0;
+        for (int i = 0; i < dimension; i++) {
+            score += query[i] * rows[base + i];
+        }
+        return score;
+    }
+
+    private float score(int a, int b) {
+        final float[] rows = vectors;
+        final int baseA = a * dimension;
+        final int baseB = b * dimension;
+        float score = 0;
+        for (int i = 0; i < dimension; i++) {
+            score += rows[baseA + i] * rows[baseB + i];
+        }
+        return score;
+    }
+
+    private int greedyClosest(float[] query, int start, int layer) {
+        int current = start;
+        float currentScore = score(query, current);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int[] neighbours = links[current][layer];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                float score = score(query, neighbours[i]);
+                if (score > currentScore) {
+                    current = neighbours[i];
+                    currentScore = score;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    // Beam search on one layer. Tombstoned nodes are still expanded but only kept when skipDeleted is false.
+    private TopK searchLayer(float[] query, int start, int ef, int layer, boolean skipDeleted) {
+        final VisitMarks marks = visitMarks.get();
+        final int[] visited = marks.begin(nodeCount);
+        final int visitGeneration = marks.generation;
+        final TopK found = new TopK(ef);
+        final CandidateQueue candidates = new CandidateQueue(ef);
+
+        float startScore = score(query, start);
+        visited[start] = visitGeneration;
+        candidates.push(start, startScore);
+        if (!skipDeleted || !deleted[start]) {
+            found.offer(start, startScore);
+        }
+        while (candidates.size() > 0) {
+            float candidateScore = candidates.peekScore();
+            if (found.isFull() && candidateScore < found.lowestScore()) {
+                break;
+            }
+            int[] neighbours = links[candidates.pop()][layer];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                int neighbour = neighbours[i];
+                if (visited[neighbour] == visitGeneration) {
+                    continue;
+                }
+                visited[neighbour] = visitGeneration;
+                float score = score(query, neighbour);
+                if (!found.isFull() || score > found.lowestScore()) {
+                    candidates.push(neighbour, score);
+                    if (!skipDeleted || !deleted[neighbour]) {
+                        found.offer(neighbour, score);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    // Keeps a candidate only if it is closer to the base node than to every neighbour already kept, which spreads
+    // the links in different directions. Candidates must be sorted best first; the kept ones are moved to the front.
+    private int selectNeighbors(int[] candidates, float[] scores, int count, int limit) {
+        int selected = 0;
+        for (int c = 0; c < count && selected < limit; c++) {
+            boolean diverse = true;
+            for (int s = 0; s < selected; s++) {
+                if (score(candidates[c], candidates[s]) > scores[c]) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                candidates[selected] = candidates[c];
+                scores[selected] = scores[c];
+                selected++;
+            }
+        }
+        return selected;
+    }
+
+    private void connect(int node, int neighbour, int layer) {
+        int[] nodeLinks = links[node][layer];
+        int count = nodeLinks[0];
+        if (count < nodeLinks.length - 1) {
+            nodeLinks[count + 1] = neighbour;
+            nodeLinks[0] = count + 1;
+            return;
+        }
+        // Full: re-select among the existing links and the new one.
+        int[] candidates = new int[count + 1];
+        float[] scores = new float[count + 1];
+        for (int i = 0; i < count; i++) {
+            candidates[i] = nodeLinks[i + 1];
+        }
+        candidates[count] = neighbour;
+        TopK ranked = new TopK(candidates.length);
+        for (int candidate : candidates) {
+            ranked.offer(candidate, score(node, candidate));
+        }
+        ranked.drainSorted(candidates, scores);
+        int selected = selectNeighbors(candidates, scores, candidates.length, count);
+        nodeLinks[0] = selected;
+        System.arraycopy(candidates, 0, nodeLinks, 1, selected);
+    }
+
+    private void allocate(int capacity) {
+        vectors = new float[capacity * dimension];
+        levels = new int[capacity];
+        links = new int[capacity][][];
+        labels = new String[capacity];
+        deleted = new boolean[capacity];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= levels.length) {
+            return;
+        }
+        int grown = Math.max(capacity, levels.length * 2);
+        vectors = Arrays.copyOf(vectors, grown * dimension);
+        levels = Arrays.copyOf(levels, grown);
+        links = Arrays.copyOf(links, grown);
+        labels = Arrays.copyOf(labels, grown);
+        deleted = Arrays.copyOf(deleted, grown);
+    }
+
+    // Writes to a temporary file first, so a crash never leaves a half-written index behind. Only copying the
+    // mutable links and tombstones holds the read lock; the file is written from that copy while updates go on.
+    public void save(File file) throws IOException {
+        final Snapshot snapshot = snapshot();
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(dimension);
+            out.writeInt(maxConnections);
+            out.writeInt(efConstruction);
+            out.writeInt(snapshot.efSearch);
+            out.writeLong(snapshot.sourceVersion);
+            out.writeInt(snapshot.nodeCount);
+            out.writeInt(snapshot.entryPoint);
+            out.writeInt(snapshot.maxLevel);
+            for (int node = 0; node < snapshot.nodeCount; node++) {
+                out.writeBoolean(snapshot.deleted[node]);
+                out.writeUTF(snapshot.labels[node]);
+                out.writeInt(snapshot.levels[node]);
+                for (int i = node * dimension; i < (node + 1) * dimension; i++) {
+                    out.writeFloat(snapshot.vectors[i]);
+                }
+                for (int[] nodeLinks : snapshot.links[node]) {
+                    out.writeInt(nodeLinks[0]);
+                    for (int i = 1; i <= nodeLinks[0]; i++) {
+                        out.writeInt(nodeLinks[i]);
+                    }
+                }
+            }
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    // Vectors, levels and labels of existing nodes never change and new nodes only go past nodeCount, so the
+    // arrays are shared; links and tombstones are updated in place and are copied.
+    private Snapshot snapshot() {
+        lock.readLock().lock();
+        try {
+            final int[][][] linksCopy = new int[nodeCount][][];
+            for (int node = 0; node < nodeCount; node++) {
+                linksCopy[node] = new int[links[node].length][];
+                for (int layer = 0; layer < links[node].length; layer++) {
+                    linksCopy[node][layer] = Arrays.copyOf(links[node][layer], links[node][layer][0] + 1);
+                }
+            }
+            return new Snapshot(efSearch, sourceVersion, nodeCount, entryPoint, maxLevel, vectors, levels, labels,
+                    Arrays.copyOf(deleted, nodeCount), linksCopy);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static final class Snapshot {
+        final int efSearch;
+        final long sourceVersion;
+        final int nodeCount;
+        final int entryPoint;
+        final int maxLevel;
+        final float[] vectors;
+        final int[] levels;
+        final String[] labels;
+        final boolean[] deleted;
+        final int[][][] links;
+
+        Snapshot(int efSearch, long sourceVersion, int nodeCount, int entryPoint, int maxLevel, float[] vectors,
+                 int[] levels, String[] labels, boolean[] deleted, int[][][] links) {
+            this.efSearch = efSearch;
+            this.sourceVersion = sourceVersion;
+            this.nodeCount = nodeCount;
+            this.entryPoint = entryPoint;
+            this.maxLevel = maxLevel;
+            this.vectors = vectors;
+            this.levels = levels;
+            this.labels = labels;
+            this.deleted = deleted;
+            this.links = links;
+        }
+    }
+
+    public static HnswIndex load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an HNSW index: " + file);
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported HNSW index version " + version);
+            }
+            HnswIndex index = new HnswIndex(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            index.sourceVersion = in.readLong();
+            int nodeCount = in.readInt();
+            index.entryPoint = in.readInt();
+            index.maxLevel = in.readInt();
+            if (nodeCount < 0 || index.entryPoint >= nodeCount) {
+                throw new IOException("Corrupt HNSW index header");
+            }
+            index.ensureCapacity(nodeCount);
+            for (int node = 0; node < nodeCount; node++) {
+                boolean deleted = in.readBoolean();
+                String label = in.readUTF();
+                int level = in.readInt();
+                if (level < 0 || level > index.maxLevel) {
+                    throw new IOException("Corrupt HNSW node " + node);
+                }
+                for (int i = node * index.dimension; i < (node + 1) * index.dimension; i++) {
+                    index.vectors[i] = in.readFloat();
+                }
+                index.links[node] = new int[level + 1][];
+                for (int layer = 0; layer <= level; layer++) {
+                    int[] nodeLinks = new int[index.maxConnections(layer) + 1];
+                    int count = in.readInt();
+                    if (count < 0 || count >= nodeLinks.length) {
+                        throw new IOException("Corrupt HNSW links of node " + node);
+                    }
+                    nodeLinks[0] = count;
+                    for (int i = 1; i <= count; i++) {
+                        nodeLinks[i] = in.readInt();
+                        if (nodeLinks[i] < 0 || nodeLinks[i] >= nodeCount) {
+                            throw new IOException("Corrupt HNSW links of node " + node);
+                        }
+                    }
+                    index.links[node][layer] = nodeLinks;
+                }
+                index.levels[node] = level;
+                index.labels[node] = label;
+                index.deleted[node] = deleted;
+                if (deleted) {
+                    index.deletedCount++;
+                } else {
+                    index.nodeByLabel.put(label, node);
+                }
+            }
+            index.nodeCount = nodeCount;
+            return index;
+        } catch (EOFException e) {
+            throw new IOException("HNSW index is truncated: " + file, e);
+        }
+    }
+
+    // Nodes seen by the current search of one thread: a node is visited when its mark equals the generation, so
+    // starting a search only bumps the generation.
+    private static final class VisitMarks {
+        int[] marks = new int[0];
+        int generation;
+
+        int[] begin(int nodeCount) {
+            if (marks.length < nodeCount) {
+                marks = Arrays.copyOf(marks, Math.max(nodeCount, marks.length * 2));
+            }
+            if (++generation == 0) {
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+            return marks;
+        }
+    }
+
+    // Max-heap of (node, score) used as the frontier of a beam search; grows as needed.
+    private static final class CandidateQueue {
+        private int[] nodes;
+        private float[] scores;
+        private int size;
+
+        CandidateQueue(int capacity) {
+            nodes = new int[Math.max(1, capacity)];
+            scores = new float[nodes.length];
+        }
+
+        int size() {
+            return size;
+        }
+
+        float peekScore() {
+            return scores[0];
+        }
+
+        void push(int node, float score) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int slot = size++;
+            while (slot > 0) {
+                int parent = (slot - 1) >>> 1;
+                if (scores[parent] >= score) {
+                    break;
+                }
+                nodes[slot] = nodes[parent];
+                scores[slot] = scores[parent];
+                slot = parent;
+            }
+            nodes[slot] = node;
+            scores[slot] = score;
+        }
+
+        int pop() {
+            int top = nodes[0];
+            int lastNode = nodes[--size];
+            float lastScore = scores[size];
+            int slot = 0;
+            while (true) {
+                int child = 2 * slot + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && scores[child + 1] > scores[child]) {
+                    child++;
+                }
+                if (lastScore >= scores[child]) {
+                    break;
+                }
+                nodes[slot] = nodes[child];
+                scores[slot] = scores[child];
+                slot = child;
+            }
+            nodes[slot] = lastNode;
+            scores[slot] = lastScore;
+            return top;
+        }
+    }
+}
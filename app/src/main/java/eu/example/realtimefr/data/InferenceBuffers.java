@@ -0,0 +1,239 @@
+package eu.example.realtimefr.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+// Input and output tensors of the embedding model, allocated once and reused for every face. The input is packed
+// from ARGB pixels as RGB values normalized with mean and std, then quantized for integer input tensors; the output
+// is a direct buffer that is read back as floats, dequantized for integer output tensors, and normalized into the
+// caller's array. inputs() and outputs() are the arguments of Interpreter.runForMultipleInputsOutputs.
+//
+// The tensors hold a batch of faces, one slot each. A single face always runs in a batch of its own, so one crowded
+// frame does not slow down every later single-face run. Larger runs share a batch that only grows: a run of fewer
+// faces fills its first slots and leaves the rest as they were, so its buffers are reallocated only when a run needs
+// more slots than any run before it. Switching between the two reshapes the interpreter but allocates nothing.
+public final class InferenceBuffers {
+
+    // Element type of a tensor with the affine quantization real = scale * (quantized - zeroPoint). A quantized
+    // tensor without parameters, scale 0, holds the raw channel values.
+    public static final class TensorType {
+        public static final TensorType FLOAT32 = new TensorType(false, false, 0f, 0);
+
+        private final boolean quantized;
+        private final boolean signed;
+        private final float scale;
+        private final int zeroPoint;
+
+        private TensorType(boolean quantized, boolean signed, float scale, int zeroPoint) {
+            this.quantized = quantized;
+            this.signed = signed;
+            this.scale = scale;
+            this.zeroPoint = zeroPoint;
+        }
+
+        public static TensorType uint8(float scale, int zeroPoint) {
+            return new TensorType(true, false, scale, zeroPoint);
+        }
+
+        public static TensorType int8(float scale, int zeroPoint) {
+            return new TensorType(true, true, scale, zeroPoint);
+        }
+
+        public boolean isQuantized() {
+            return quantized;
+        }
+
+        int byteSize() {
+            return quantized ? 1 : 4;
+        }
+
+        // Quantizes a real value, clamped to the range of the type.
+        byte quantize(float value) {
+            final int quantized = Math.round(value / scale) + zeroPoint;
+            return (byte) (signed ? Math.max(-128, Math.min(127, quantized)) : Math.max(0, Math.min(255, quantized)));
+        }
+
+        float dequantize(byte value) {
+            final int quantized = signed ? value : value & 0xFF;
+            return scale == 0 ? quantized : scale * (quantized - zeroPoint);
+        }
+
+        @Override
+        public String toString() {
+            return quantized ? (signed ? "int8" : "uint8") + " (scale " + scale + ", zero point " + zeroPoint + ")" : "float32";
+        }
+    }
+
+    private final int inputSize;
+    private final TensorType inputType;
+    private final TensorType outputType;
+    private final int embeddingSize;
+    // Input value of each 8-bit channel value, as floats or as quantized bytes.
+    private final float[] floatInputs = new float[256];
+    private final byte[] quantizedInputs = new byte[256];
+    private final int inputBytesPerFace;
+    private final int[] pixels;
+    private final ByteBuffer singleInput;
+    private final ByteBuffer singleOutput;
+    private final FloatBuffer singleOutputFloats;
+    private final int[] singleShape;
+    private ByteBuffer batchInput;
+    private ByteBuffer batchOutput;
+    private FloatBuffer batchOutputFloats;
+    private int[] batchShape;
+    private int batchCapacity;
+    // The buffers of the batch the interpreter is currently shaped for.
+    private ByteBuffer input;
+    private ByteBuffer output;
+    private FloatBuffer outputFloats;
+    private int batchSize;
+    private final Object[] inputs = new Object[1];
+    private final Map<Integer, Object> outputs = new HashMap<>();
+
+    // A quantized model here takes the raw channel values and still outputs floats.
+    public InferenceBuffers(int inputSize, boolean quantized, float mean, float std, int embeddingSize) {
+        this(inputSize, quantized ? TensorType.uint8(0f, 0) : TensorType.FLOAT32, mean, std, TensorType.FLOAT32, embeddingSize);
+    }
+
+    public InferenceBuffers(int inputSize, TensorType inputType, float mean, float std, TensorType outputType,
+                            int embeddingSize) {
+        this.inputSize = inputSize;
+        this.inputType = inputType;
+        this.outputType = outputType;
+        this.embeddingSize = embeddingSize;
+        this.inputBytesPerFace = inputSize * inputSize * 3 * inputType.byteSize();
+        this.pixels = new int[inputSize * inputSize];
+        for (int value = 0; value < 256; value++) {
+            floatInputs[value] = (value - mean) / std;
+            quantizedInputs[value] = inputType.scale == 0
+                    ? (byte) (inputType.signed ? value - 128 : value)
+                    : inputType.quantize(floatInputs[value]);
+        }
+        this.singleInput = ByteBuffer.allocateDirect(inputBytesPerFace).order(ByteOrder.nativeOrder());
+        this.singleOutput = ByteBuffer.allocateDirect(embeddingSize * outputType.byteSize()).order(ByteOrder.nativeOrder());
+        this.singleOutputFloats = singleOutput.asFloatBuffer();
+        this.singleShape = new int[]{1, inputSize, inputSize, 3};
+        reserveBatch(1);
+    }
+
+    // The batch size to grow to for count faces: the next power of two, so a slowly rising face count resizes the
+    // shared batch a few times rather than once per extra face.
+    public static int batchSizeFor(int count) {
+        return count <= 1 ? 1 : Integer.highestOneBit(count - 1) << 1;
+    }
+
+    // Selects the tensors for a run of count faces, growing the shared batch if it is too small. Returns whether the
+    // batch size changed, in which case the interpreter's input has to be resized to inputShape().
+    public boolean reserveBatch(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + count);
+        }
+        if (count == 1) {
+            return select(singleInput, singleOutput, singleOutputFloats, 1);
+        }
+        if (count > batchCapacity) {
+            batchCapacity = batchSizeFor(count);
+            batchInput = ByteBuffer.allocateDirect(batchCapacity * inputBytesPerFace).order(ByteOrder.nativeOrder());
+            batchOutput = ByteBuffer.allocateDirect(batchCapacity * embeddingSize * outputType.byteSize())
+                    .order(ByteOrder.nativeOrder());
+            batchOutputFloats = batchOutput.asFloatBuffer();
+            batchShape = new int[]{batchCapacity, inputSize, inputSize, 3};
+        }
+        return select(batchInput, batchOutput, batchOutputFloats, batchCapacity);
+    }
+
+    private boolean select(ByteBuffer input, ByteBuffer output, FloatBuffer outputFloats, int size) {
+        this.input = input;
+        this.output = output;
+        this.outputFloats = outputFloats;
+        inputs[0] = input;
+        outputs.put(0, output);
+        final boolean changed = size != batchSize;
+        batchSize = size;
+        return changed;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    // Input shape of the whole batch, for Interpreter.resizeInput. Shared; callers must not modify it.
+    public int[] inputShape() {
+        return batchSize == 1 ? singleShape : batchShape;
+    }
+
+    // Pixel array for Bitmap.getPixels, inputSize * inputSize ARGB values in row order.
+    public int[] pixels() {
+        return pixels;
+    }
+
+    public Object[] inputs() {
+        return inputs;
+    }
+
+    public Map<Integer, Object> outputs() {
+        return outputs;
+    }
+
+    // Packs pixels() into the first slot of the input tensor and rewinds the output for the next run.
+    public void fillInput() {
+        fillInput(0);
+    }
+
+    // Packs pixels() into the given slot of the input tensor and rewinds the output.
+    public void fillInput(int slot) {
+        input.position(slot * inputBytesPerFace);
+        for (int i = 0; i < inputSize * inputSize; ++i) {
+            final int pixelValue = pixels[i];
+            if (inputType.quantized) {
+                input.put(quantizedInputs[(pixelValue >> 16) & 0xFF]);
+                input.put(quantizedInputs[(pixelValue >> 8) & 0xFF]);
+                input.put(quantizedInputs[pixelValue & 0xFF]);
+            } else {
+                input.putFloat(floatInputs[(pixelValue >> 16) & 0xFF]);
+                input.putFloat(floatInputs[(pixelValue >> 8) & 0xFF]);
+                input.putFloat(floatInputs[pixelValue & 0xFF]);
+            }
+        }
+        output.rewind();
+    }
+
+    public ByteBuffer input() {
+        return input;
+    }
+
+    // Copies the embedding the model wrote into destination and normalizes it.
+    public float[] readEmbedding(float[] destination) {
+        return readEmbedding(0, destination);
+    }
+
+    // Same, for the face in the given slot of the batch.
+    public float[] readEmbedding(int slot, float[] destination) {
+        if (outputType.quantized) {
+            final int offset = slot * embeddingSize;
+            for (int i = 0; i < embeddingSize; i++) {
+                destination[i] = outputType.dequantize(output.get(offset + i));
+            }
+        } else {
+            outputFloats.position(slot * embeddingSize);
+            outputFloats.get(destination, 0, embeddingSize);
+        }
+        return EmbeddingGallery.normalize(destination);
+    }
+
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    public int getEmbeddingSize() {
+        return embeddingSize;
+    }
+
+    // Whether the model takes integer input.
+    public boolean isQuantized() {
+        return inputType.quantized;
+    }
+}
@@ -0,0 +1,435 @@
+package eu.example.realtimefr.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Inverted-file index with product-quantized residuals, for galleries too large to keep as floats. A k-means
+ * coarse quantizer splits the vectors into lists; each vector is stored in the list of its nearest coarse
+ * centroid as one byte per subspace, the index of the nearest of 256 codewords for that slice of its residual.
+ * A 512-d embedding with 64 subspaces takes 64 bytes instead of 2KB.
+ *
+ * <p>A search probes the probeCount lists closest to the query and ranks their codes by asymmetric distance:
+ * per list, a table of squared distances from the query residual to every codeword, summed over the code bytes.
+ * The distances are approximate, so callers re-rank the returned shortlist against the exact embeddings.
+ *
+ * <pre>
+ *   int   magic "IVPQ", format version, dimension, list count, subspace count, probe count
+ *   long  source version
+ *   float coarse centroids[list count][dimension]
+ *   float codebooks[subspace count][256][dimension / subspace count]
+ *   list*: int count, count times: UTF label, subspace count code bytes
+ * </pre>
+ */
+public final class IvfPqIndex {
+
+    public static final int CODEBOOK_SIZE = 256;
+
+    private static final int MAGIC = 0x51505649;
+    private static final int FORMAT_VERSION = 1;
+    private static final int INITIAL_LIST_CAPACITY = 16;
+
+    private final int dimension;
+    private final int listCount;
+    private final int subspaceCount;
+    private final int subspaceDimension;
+    private final float[] coarseCentroids;
+    private final float[] coarseNorms;
+    private final float[] codebooks;
+    private final byte[][] codes;
+    private final String[][] labels;
+    private final int[] listSizes;
+    // List in the high and position in the low 32 bits, so removal can swap the last entry of a list into the gap.
+    private final Map<String, Long> slotByLabel = new HashMap<>();
+    private int probeCount;
+    private long sourceVersion = -1;
+
+    private IvfPqIndex(int dimension, int listCount, int subspaceCount, int probeCount, float[] coarseCentroids, float[] codebooks) {
+        this.dimension = dimension;
+        this.listCount = listCount;
+        this.subspaceCount = subspaceCount;
+        this.subspaceDimension = dimension / subspaceCount;
+        this.probeCount = probeCount;
+        this.coarseCentroids = coarseCentroids;
+        this.codebooks = codebooks;
+        this.coarseNorms = new float[listCount];
+        for (int list = 0; list < listCount; list++) {
+            float norm = 0;
+            for (int i = list * dimension; i < (list + 1) * dimension; i++) {
+                norm += coarseCentroids[i] * coarseCentroids[i];
+            }
+            coarseNorms[list] = norm;
+        }
+        this.codes = new byte[listCount][];
+        this.labels = new String[listCount][];
+        this.listSizes = new int[listCount];
+        for (int list = 0; list < listCount; list++) {
+            codes[list] = new byte[INITIAL_LIST_CAPACITY * subspaceCount];
+            labels[list] = new String[INITIAL_LIST_CAPACITY];
+        }
+    }
+
+    // Trains the coarse quantizer and the residual codebooks on count row-major sample vectors. The sample needs
+    // at least max(listCount, CODEBOOK_SIZE) rows and the dimension must split evenly into subspaceCount slices.
+    public static IvfPqIndex train(float[] samples, int count, int dimension, int listCount, int subspaceCount,
+                                   int probeCount, int iterations, long seed) {
+        if (subspaceCount <= 0 || dimension % subspaceCount != 0) {
+            throw new IllegalArgumentException(dimension + "-d vectors do not split into " + subspaceCount + " subspaces");
+        }
+        if (listCount <= 0 || count < Math.max(listCount, CODEBOOK_SIZE)) {
+            throw new IllegalArgumentException("Need at least " + Math.max(listCount, CODEBOOK_SIZE) + " samples, got " + count);
+        }
+        final Random random = new Random(seed);
+        final float[] coarse = kmeans(samples, count, dimension, listCount, iterations, random);
+
+        final int[] assignments = new int[count];
+        final float[] coarseNorms = rowNorms(coarse, listCount, dimension);
+        for (int row = 0; row < count; row++) {
+            assignments[row] = nearestRow(samples, row * dimension, coarse, coarseNorms, listCount, dimension);
+        }
+
+        final int subspaceDimension = dimension / subspaceCount;
+        final float[] codebooks = new float[subspaceCount * CODEBOOK_SIZE * subspaceDimension];
+        final float[] slices = new float[count * subspaceDimension];
+        for (int subspace = 0; subspace < subspaceCount; subspace++) {
+            final int offset = subspace * subspaceDimension;
+            for (int row = 0; row < count; row++) {
+                for (int i = 0; i < subspaceDimension; i++) {
+                    slices[row * subspaceDimension + i] = samples[row * dimension + offset + i]
+                            - coarse[assignments[row] * dimension + offset + i];
+                }
+            }
+            float[] codebook = kmeans(slices, count, subspaceDimension, CODEBOOK_SIZE, iterations, random);
+            System.arraycopy(codebook, 0, codebooks, subspace * CODEBOOK_SIZE * subspaceDimension, codebook.length);
+        }
+        return new IvfPqIndex(dimension, listCount, subspaceCount, probeCount, coarse, codebooks);
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public int getListCount() {
+        return listCount;
+    }
+
+    // Bytes stored per vector.
+    public int getCodeSize() {
+        return subspaceCount;
+    }
+
+    public synchronized int size() {
+        return slotByLabel.size();
+    }
+
+    public synchronized int getProbeCount() {
+        return probeCount;
+    }
+
+    // Number of lists scanned per search; higher values trade latency for recall.
+    public synchronized void setProbeCount(int probeCount) {
+        this.probeCount = probeCount;
+    }
+
+    // Version of the FaceDatabase change journal this index reflects.
+    public synchronized long getSourceVersion() {
+        return sourceVersion;
+    }
+
+    public synchronized void setSourceVersion(long sourceVersion) {
+        this.sourceVersion = sourceVersion;
+    }
+
+    public synchronized boolean contains(String label) {
+        return slotByLabel.containsKey(label);
+    }
+
+    // Encodes the vector into the list of its nearest coarse centroid, replacing the entry of an existing label.
+    public synchronized void put(String label, float[] vector) {
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException("Expected a " + dimension + "-d vector for " + label);
+        }
+        remove(label);
+        final int list = nearestRow(vector, 0, coarseCentroids, coarseNorms, listCount, dimension);
+        final int position = listSizes[list]++;
+        if (position == labels[list].length) {
+            labels[list] = Arrays.copyOf(labels[list], position * 2);
+            codes[list] = Arrays.copyOf(codes[list], position * 2 * subspaceCount);
+        }
+        final byte[] listCodes = codes[list];
+        final float[] residual = new float[subspaceDimension];
+        for (int subspace = 0; subspace < subspaceCount; subspace++) {
+            final int offset = subspace * subspaceDimension;
+            for (int i = 0; i < subspaceDimension; i++) {
+                residual[i] = vector[offset + i] - coarseCentroids[list * dimension + offset + i];
+            }
+            int best = 0;
+            float bestDistance = Float.MAX_VALUE;
+            for (int code = 0, base = subspace * CODEBOOK_SIZE * subspaceDimension; code < CODEBOOK_SIZE; code++, base += subspaceDimension) {
+                float distance = 0;
+                for (int i = 0; i < subspaceDimension; i++) {
+                    float diff = residual[i] - codebooks[base + i];
+                    distance += diff * diff;
+                }
+                if (distance < bestDistance) {
+                    best = code;
+                    bestDistance = distance;
+                }
+            }
+            listCodes[position * subspaceCount + subspace] = (byte) best;
+        }
+        labels[list][position] = label;
+        slotByLabel.put(label, slot(list, position));
+    }
+
+    public synchronized boolean remove(String label) {
+        final Long slot = slotByLabel.remove(label);
+        if (slot == null) {
+            return false;
+        }
+        final int list = (int) (slot >>> 32);
+        final int position = (int) (long) slot;
+        final int last = --listSizes[list];
+        if (position != last) {
+            labels[list][position] = labels[list][last];
+            System.arraycopy(codes[list], last * subspaceCount, codes[list], position * subspaceCount, subspaceCount);
+            slotByLabel.put(labels[list][position], slot(list, position));
+        }
+        labels[list][last] = null;
+        return true;
+    }
+
+    // Labels of the k entries with the smallest approximate distance to the query, nearest first.
+    public synchronized List<String> search(float[] query, int k) {
+        if (slotByLabel.isEmpty() || k <= 0) {
+            return new ArrayList<>();
+        }
+        // |q - c|^2 = |q|^2 - 2 * dot(q, c) + |c|^2, and |q|^2 is the same for every list.
+        final TopK lists = new TopK(Math.min(probeCount, listCount));
+        for (int list = 0; list < listCount; list++) {
+            float dot = 0;
+            for (int i = 0, base = list * dimension; i < dimension; i++) {
+                dot += query[i] * coarseCentroids[base + i];
+            }
+            lists.offer(list, 2 * dot - coarseNorms[list]);
+        }
+        final int[] probed = new int[lists.size()];
+        final int probedCount = lists.drainSorted(probed, new float[probed.length]);
+
+        final TopK best = new TopK(Math.min(k, slotByLabel.size()));
+        final float[] residual = new float[dimension];
+        final float[] table = new float[subspaceCount * CODEBOOK_SIZE];
+        for (int p = 0; p < probedCount; p++) {
+            final int list = probed[p];
+            final int entries = listSizes[list];
+            if (entries == 0) {
+                continue;
+            }
+            for (int i = 0; i < dimension; i++) {
+                residual[i] = query[i] - coarseCentroids[list * dimension + i];
+            }
+            fillDistanceTable(residual, table);
+            final byte[] listCodes = codes[list];
+            for (int position = 0, base = 0; position < entries; position++, base += subspaceCount) {
+                float distance = 0;
+                for (int subspace = 0, row = 0; subspace < subspaceCount; subspace++, row += CODEBOOK_SIZE) {
+                    distance += table[row + (listCodes[base + subspace] & 0xFF)];
+                }
+                if (!best.isFull() || -distance > best.lowestScore()) {
+                    // Candidates are numbered by position and probe rank, which stays well inside an int.
+                    best.offer(position * probedCount + p, -distance);
+                }
+            }
+        }
+
+        final int[] candidates = new int[best.size()];
+        final int count = best.drainSorted(candidates, new float[candidates.length]);
+        final List<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(labels[probed[candidates[i] % probedCount]][candidates[i] / probedCount]);
+        }
+        return result;
+    }
+
+    // Squared distance from each slice of the query residual to each codeword of that subspace.
+    private void fillDistanceTable(float[] residual, float[] table) {
+        for (int subspace = 0; subspace < subspaceCount; subspace++) {
+            final int offset = subspace * subspaceDimension;
+            for (int code = 0, base = subspace * CODEBOOK_SIZE * subspaceDimension; code < CODEBOOK_SIZE; code++, base += subspaceDimension) {
+                float distance = 0;
+                for (int i = 0; i < subspaceDimension; i++) {
+                    float diff = residual[offset + i] - codebooks[base + i];
+                    distance += diff * diff;
+                }
+                table[subspace * CODEBOOK_SIZE + code] = distance;
+            }
+        }
+    }
+
+    private static long slot(int list, int position) {
+        return ((long) list << 32) | (position & 0xFFFFFFFFL);
+    }
+
+    // Lloyd's k-means seeded with k distinct sample rows; a cluster that loses all its rows is re-seeded with a
+    // random row so every centroid stays in use.
+    private static float[] kmeans(float[] points, int count, int dim, int k, int iterations, Random random) {
+        final int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        final float[] centroids = new float[k * dim];
+        for (int c = 0; c < k; c++) {
+            int pick = c + random.nextInt(count - c);
+            int row = order[pick];
+            order[pick] = order[c];
+            order[c] = row;
+            System.arraycopy(points, row * dim, centroids, c * dim, dim);
+        }
+
+        final int[] members = new int[k];
+        final float[] sums = new float[k * dim];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            final float[] norms = rowNorms(centroids, k, dim);
+            Arrays.fill(members, 0);
+            Arrays.fill(sums, 0f);
+            for (int row = 0; row < count; row++) {
+                int nearest = nearestRow(points, row * dim, centroids, norms, k, dim);
+                members[nearest]++;
+                for (int i = 0; i < dim; i++) {
+                    sums[nearest * dim + i] += points[row * dim + i];
+                }
+            }
+            for (int c = 0; c < k; c++) {
+                if (members[c] == 0) {
+                    System.arraycopy(points, random.nextInt(count) * dim, centroids, c * dim, dim);
+                    continue;
+                }
+                for (int i = 0; i < dim; i++) {
+                    centroids[c * dim + i] = sums[c * dim + i] / members[c];
+                }
+            }
+        }
+        return centroids;
+    }
+
+    private static float[] rowNorms(float[] rows, int count, int dim) {
+        final float[] norms = new float[count];
+        for (int row = 0; row < count; row++) {
+            float norm = 0;
+            for (int i = row * dim; i < (row + 1) * dim; i++) {
+                norm += rows[i] * rows[i];
+            }
+            norms[row] = norm;
+        }
+        return norms;
+    }
+
+    // Row of centroids closest to the vector at offset, by squared distance minus the constant |v|^2.
+    private static int nearestRow(float[] vectors, int offset, float[] centroids, float[] norms, int count, int dim) {
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int row = 0, base = 0; row < count; row++, base += dim) {
+            float dot = 0;
+            for (int i = 0; i < dim; i++) {
+                dot += vectors[offset + i] * centroids[base + i];
+            }
+            float distance = norms[row] - 2 * dot;
+            if (distance < bestDistance) {
+                best = row;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    // Writes to a temporary file first, so a crash never leaves a half-written index behind.
+    public synchronized void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(dimension);
+            out.writeInt(listCount);
+            out.writeInt(subspaceCount);
+            out.writeInt(probeCount);
+            out.writeLong(sourceVersion);
+            for (float value : coarseCentroids) {
+                out.writeFloat(value);
+            }
+            for (float value : codebooks) {
+                out.writeFloat(value);
+            }
+            for (int list = 0; list < listCount; list++) {
+                out.writeInt(listSizes[list]);
+                for (int position = 0; position < listSizes[list]; position++) {
+                    out.writeUTF(labels[list][position]);
+                    out.write(codes[list], position * subspaceCount, subspaceCount);
+                }
+            }
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    public static IvfPqIndex load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an IVF-PQ index: " + file);
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported IVF-PQ index version " + version);
+            }
+            int dimension = in.readInt();
+            int listCount = in.readInt();
+            int subspaceCount = in.readInt();
+            int probeCount = in.readInt();
+            if (dimension <= 0 || listCount <= 0 || subspaceCount <= 0 || dimension % subspaceCount != 0) {
+                throw new IOException("Corrupt IVF-PQ index header");
+            }
+            long sourceVersion = in.readLong();
+            float[] coarse = new float[listCount * dimension];
+            for (int i = 0; i < coarse.length; i++) {
+                coarse[i] = in.readFloat();
+            }
+            float[] codebooks = new float[CODEBOOK_SIZE * dimension];
+            for (int i = 0; i < codebooks.length; i++) {
+                codebooks[i] = in.readFloat();
+            }
+
+            IvfPqIndex index = new IvfPqIndex(dimension, listCount, subspaceCount, probeCount, coarse, codebooks);
+            index.sourceVersion = sourceVersion;
+            for (int list = 0; list < listCount; list++) {
+                int entries = in.readInt();
+                if (entries < 0) {
+                    throw new IOException("Corrupt IVF-PQ list " + list);
+                }
+                index.labels[list] = new String[Math.max(INITIAL_LIST_CAPACITY, entries)];
+                index.codes[list] = new byte[index.labels[list].length * subspaceCount];
+                for (int position = 0; position < entries; position++) {
+                    String label = in.readUTF();
+                    in.readFully(index.codes[list], position * subspaceCount, subspaceCount);
+                    index.labels[list][position] = label;
+                    if (index.slotByLabel.put(label, slot(list, position)) != null) {
+                        throw new IOException("Duplicate IVF-PQ label " + label);
+                    }
+                }
+                index.listSizes[list] = entries;
+            }
+            return index;
+        }
+    }
+}
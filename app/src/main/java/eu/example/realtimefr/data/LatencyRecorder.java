@@ -0,0 +1,41 @@
+package eu.example.realtimefr.data;
+
+import java.util.Arrays;
+
+// Fixed number of latency samples in nanoseconds, summarized as nearest-rank percentiles.
+public final class LatencyRecorder {
+
+    private final long[] samples;
+    private int count;
+
+    public LatencyRecorder(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    // Ignored once capacity samples are recorded.
+    public void record(long nanos) {
+        if (count < samples.length) {
+            samples[count++] = nanos;
+        }
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    // The smallest sample that at least percentile percent of the samples do not exceed, in milliseconds.
+    public double percentileMillis(double percentile) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        final long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        final int rank = (int) Math.ceil(percentile / 100 * count);
+        return sorted[Math.max(0, Math.min(count, rank) - 1)] / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("p50 %.2f ms, p95 %.2f ms over %d runs", percentileMillis(50), percentileMillis(95), count);
+    }
+}
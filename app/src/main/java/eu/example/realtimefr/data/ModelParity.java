@@ -0,0 +1,74 @@
+package eu.example.realtimefr.data;
+
+import java.util.Objects;
+
+// Agreement of a candidate embedding model, such as an int8 quantization, with the reference float model on the
+// same crops: how similar their normalized embeddings are, and whether matching against the gallery comes out the
+// same, both the closest identity and whether it is accepted under the distance threshold.
+public final class ModelParity {
+
+    private final float maxMatchDistance;
+    private int embeddings;
+    private double similaritySum;
+    private float minSimilarity = 1f;
+    private int matches;
+    private int sameIdentity;
+    private int sameDecision;
+
+    public ModelParity(float maxMatchDistance) {
+        this.maxMatchDistance = maxMatchDistance;
+    }
+
+    // Both embeddings normalized.
+    public void addEmbedding(float[] reference, float[] candidate) {
+        if (reference.length != candidate.length) {
+            throw new IllegalArgumentException("Embedding sizes differ: " + reference.length + " vs " + candidate.length);
+        }
+        float similarity = 0;
+        for (int i = 0; i < reference.length; i++) {
+            similarity += reference[i] * candidate[i];
+        }
+        embeddings++;
+        similaritySum += similarity;
+        minSimilarity = Math.min(minSimilarity, similarity);
+    }
+
+    // The closest identity and its Euclidean distance under each model; labels may be null for an empty gallery.
+    public void addMatch(String referenceLabel, float referenceDistance, String candidateLabel, float candidateDistance) {
+        final boolean referenceAccepted = referenceLabel != null && referenceDistance < maxMatchDistance;
+        final boolean candidateAccepted = candidateLabel != null && candidateDistance < maxMatchDistance;
+        matches++;
+        if (Objects.equals(referenceLabel, candidateLabel)) {
+            sameIdentity++;
+        }
+        if (referenceAccepted == candidateAccepted
+                && (!referenceAccepted || Objects.equals(referenceLabel, candidateLabel))) {
+            sameDecision++;
+        }
+    }
+
+    public double getMeanSimilarity() {
+        return embeddings == 0 ? Double.NaN : similaritySum / embeddings;
+    }
+
+    public float getMinSimilarity() {
+        return minSimilarity;
+    }
+
+    // Share of matches whose closest identity is the same.
+    public double getIdentityAgreement() {
+        return matches == 0 ? Double.NaN : sameIdentity / (double) matches;
+    }
+
+    // Share of matches with the same outcome: the same identity accepted, or both rejected.
+    public double getDecisionAgreement() {
+        return matches == 0 ? Double.NaN : sameDecision / (double) matches;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d embeddings: cosine mean %.4f, min %.4f; %d matches: identity %.2f%%, decision %.2f%%",
+                embeddings, getMeanSimilarity(), minSimilarity, matches, 100 * getIdentityAgreement(),
+                100 * getDecisionAgreement());
+    }
+}
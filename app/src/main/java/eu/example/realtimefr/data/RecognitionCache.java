@@ -0,0 +1,138 @@
+package eu.example.realtimefr.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Last recognition result per face-detector track, so a face that stays put is not embedded again on every frame.
+// A result is reused for a bounded number of frames and milliseconds, and only while the box stays close to where
+// the face was embedded and the match was not close to the threshold. Results of tracks whose identity has settled
+// are kept stableMultiplier times longer. Boxes are left, top, right, bottom in any consistent coordinate space.
+public final class RecognitionCache {
+
+    public static final class Entry {
+        private final String label;
+        private final float distance;
+        private final float centerX;
+        private final float centerY;
+        private final float width;
+        private final float height;
+        private final long embeddedAtMillis;
+        private final boolean stable;
+        private int framesServed;
+
+        Entry(String label, float distance, float left, float top, float right, float bottom, long embeddedAtMillis,
+              boolean stable) {
+            this.label = label;
+            this.distance = distance;
+            this.centerX = (left + right) / 2;
+            this.centerY = (top + bottom) / 2;
+            this.width = right - left;
+            this.height = bottom - top;
+            this.embeddedAtMillis = embeddedAtMillis;
+            this.stable = stable;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public float getDistance() {
+            return distance;
+        }
+
+        public boolean isStable() {
+            return stable;
+        }
+    }
+
+    private final int maxFrames;
+    private final long maxAgeMillis;
+    private final float maxMovement;
+    private final float maxScaleChange;
+    private final float matchThreshold;
+    private final float marginalBand;
+    private int stableMultiplier = 1;
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private long hits;
+    private long misses;
+
+    // maxMovement is the center shift as a fraction of the box size and maxScaleChange the relative change of width
+    // or height; a distance within marginalBand of matchThreshold is never reused.
+    public RecognitionCache(int maxFrames, long maxAgeMillis, float maxMovement, float maxScaleChange,
+                            float matchThreshold, float marginalBand) {
+        this.maxFrames = maxFrames;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxMovement = maxMovement;
+        this.maxScaleChange = maxScaleChange;
+        this.matchThreshold = matchThreshold;
+        this.marginalBand = marginalBand;
+    }
+
+    // The result to reuse for the track at this box, or null when the face has to be embedded again.
+    public synchronized Entry lookup(int trackId, float left, float top, float right, float bottom, long nowMillis) {
+        final Entry entry = entries.get(trackId);
+        if (entry == null || !isReusable(entry, left, top, right, bottom, nowMillis)) {
+            misses++;
+            return null;
+        }
+        entry.framesServed++;
+        hits++;
+        return entry;
+    }
+
+    private boolean isReusable(Entry entry, float left, float top, float right, float bottom, long nowMillis) {
+        final int scale = entry.stable ? stableMultiplier : 1;
+        if (entry.framesServed >= maxFrames * scale || nowMillis - entry.embeddedAtMillis > maxAgeMillis * scale) {
+            return false;
+        }
+        if (Math.abs(entry.distance - matchThreshold) < marginalBand) {
+            return false;
+        }
+        final float width = right - left;
+        final float height = bottom - top;
+        if (Math.abs(width - entry.width) > maxScaleChange * entry.width
+                || Math.abs(height - entry.height) > maxScaleChange * entry.height) {
+            return false;
+        }
+        return Math.abs((left + right) / 2 - entry.centerX) <= maxMovement * entry.width
+                && Math.abs((top + bottom) / 2 - entry.centerY) <= maxMovement * entry.height;
+    }
+
+    // Records a fresh result for the track at the box it was embedded from.
+    public void store(int trackId, String label, float distance,
+                      float left, float top, float right, float bottom, long nowMillis) {
+        store(trackId, label, distance, left, top, right, bottom, nowMillis, false);
+    }
+
+    public synchronized void store(int trackId, String label, float distance,
+                                   float left, float top, float right, float bottom, long nowMillis, boolean stable) {
+        entries.put(trackId, new Entry(label, distance, left, top, right, bottom, nowMillis, stable));
+    }
+
+    // How many times longer, in frames and milliseconds, the result of a stable track is reused.
+    public synchronized void setStableMultiplier(int stableMultiplier) {
+        this.stableMultiplier = Math.max(1, stableMultiplier);
+    }
+
+    // Evicts every track that is not in the current frame.
+    public synchronized void retainTracks(Set<Integer> trackIds) {
+        entries.keySet().retainAll(trackIds);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+}
@@ -0,0 +1,92 @@
+package eu.example.realtimefr.data;
+
+// Bounded min-heap of (id, score) pairs that keeps the highest scores seen. Backed by two primitive arrays, so
+// offering a candidate never allocates.
+final class TopK {
+
+    private final int[] ids;
+    private final float[] scores;
+    private int size;
+
+    TopK(int capacity) {
+        ids = new int[Math.max(1, capacity)];
+        scores = new float[ids.length];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size == ids.length;
+    }
+
+    // Lowest score kept so far; only meaningful when the heap is not empty.
+    float lowestScore() {
+        return scores[0];
+    }
+
+    boolean offer(int id, float score) {
+        if (size < ids.length) {
+            int slot = size++;
+            while (slot > 0) {
+                int parent = (slot - 1) >>> 1;
+                if (scores[parent] <= score) {
+                    break;
+                }
+                ids[slot] = ids[parent];
+                scores[slot] = scores[parent];
+                slot = parent;
+            }
+            ids[slot] = id;
+            scores[slot] = score;
+            return true;
+        }
+        if (score <= scores[0]) {
+            return false;
+        }
+        siftDown(id, score, size);
+        return true;
+    }
+
+    void addAll(TopK other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.ids[i], other.scores[i]);
+        }
+    }
+
+    // Empties the heap into the arrays, best score first, and returns how many entries were written.
+    int drainSorted(int[] idsOut, float[] scoresOut) {
+        final int count = size;
+        while (size > 0) {
+            int last = --size;
+            idsOut[last] = ids[0];
+            scoresOut[last] = scores[0];
+            if (last > 0) {
+                siftDown(ids[last], scores[last], last);
+            }
+        }
+        return count;
+    }
+
+    private void siftDown(int id, float score, int length) {
+        int slot = 0;
+        while (true) {
+            int child = 2 * slot + 1;
+            if (child >= length) {
+                break;
+            }
+            if (child + 1 < length && scores[child + 1] < scores[child]) {
+                child++;
+            }
+            if (score <= scores[child]) {
+                break;
+            }
+            ids[slot] = ids[child];
+            scores[slot] = scores[child];
+            slot = child;
+        }
+        ids[slot] = id;
+        scores[slot] = score;
+    }
+}
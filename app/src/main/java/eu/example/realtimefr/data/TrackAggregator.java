@@ -0,0 +1,112 @@
+package eu.example.realtimefr.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+// Rolling window of the last few embeddings and match labels per face-detector track. The normalized mean of the
+// window is matched instead of the single frame, which averages out pose and blur noise, and a track whose last
+// windowSize labels agree is reported as stable so callers can sample it less often. An embedding that is not
+// similar to the window's mean restarts the window, in case the detector handed the track to another face.
+public final class TrackAggregator {
+
+    private static final class Track {
+        final float[][] embeddings;
+        final String[] labels;
+        int embeddingCount;
+        int nextEmbedding;
+        int labelCount;
+        int nextLabel;
+        float[] mean;
+
+        Track(int windowSize) {
+            embeddings = new float[windowSize][];
+            labels = new String[windowSize];
+        }
+
+        void restart() {
+            embeddingCount = 0;
+            nextEmbedding = 0;
+            labelCount = 0;
+            nextLabel = 0;
+        }
+    }
+
+    private final int windowSize;
+    private final float minSimilarity;
+    private final Map<Integer, Track> tracks = new HashMap<>();
+
+    // minSimilarity is the lowest dot product between a new normalized embedding and the window mean that still
+    // counts as the same face.
+    public TrackAggregator(int windowSize, float minSimilarity) {
+        this.windowSize = Math.max(1, windowSize);
+        this.minSimilarity = minSimilarity;
+    }
+
+    // Adds the normalized embedding of this frame and returns the normalized mean of the track's window.
+    public synchronized float[] add(int trackId, float[] embedding) {
+        Track track = tracks.get(trackId);
+        if (track == null) {
+            track = new Track(windowSize);
+            tracks.put(trackId, track);
+        } else if (track.embeddingCount > 0 && dot(track.mean, embedding) < minSimilarity) {
+            track.restart();
+        }
+        track.embeddings[track.nextEmbedding] = embedding.clone();
+        track.nextEmbedding = (track.nextEmbedding + 1) % windowSize;
+        track.embeddingCount = Math.min(windowSize, track.embeddingCount + 1);
+
+        final float[] mean = new float[embedding.length];
+        for (int i = 0; i < track.embeddingCount; i++) {
+            final float[] sample = track.embeddings[(track.nextEmbedding - 1 - i + windowSize) % windowSize];
+            for (int d = 0; d < mean.length; d++) {
+                mean[d] += sample[d];
+            }
+        }
+        track.mean = EmbeddingGallery.normalize(mean);
+        return track.mean.clone();
+    }
+
+    // Records the label matched for the track's mean, null for unknown, and returns whether the window is full of
+    // the same label.
+    public synchronized boolean recordMatch(int trackId, String label) {
+        final Track track = tracks.get(trackId);
+        if (track == null) {
+            return false;
+        }
+        track.labels[track.nextLabel] = label;
+        track.nextLabel = (track.nextLabel + 1) % windowSize;
+        track.labelCount = Math.min(windowSize, track.labelCount + 1);
+        if (track.labelCount < windowSize) {
+            return false;
+        }
+        for (String recorded : track.labels) {
+            if (!Objects.equals(recorded, label)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Forgets every track that is not in the current frame.
+    public synchronized void retainTracks(Set<Integer> trackIds) {
+        tracks.keySet().retainAll(trackIds);
+    }
+
+    public synchronized void clear() {
+        tracks.clear();
+    }
+
+    public synchronized int size() {
+        return tracks.size();
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float dot = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+        }
+        return dot;
+    }
+}
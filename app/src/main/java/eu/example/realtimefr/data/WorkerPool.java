@@ -0,0 +1,76 @@
+package eu.example.realtimefr.data;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// Fixed set of workers that are not thread-safe, such as model interpreters with their own buffers, shared between
+// threads. A worker is used by one thread at a time: callers either borrow one on their own thread with acquire and
+// release, or submit a task that runs on one of the pool's threads, one per worker.
+public final class WorkerPool<W> {
+
+    private final ArrayBlockingQueue<W> idle;
+    private final ExecutorService executor;
+    private final int size;
+
+    public WorkerPool(List<W> workers, String threadName) {
+        if (workers.isEmpty()) {
+            throw new IllegalArgumentException("A worker pool needs at least one worker");
+        }
+        this.size = workers.size();
+        this.idle = new ArrayBlockingQueue<>(size, false, workers);
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(size, runnable -> {
+            Thread thread = new Thread(runnable, threadName + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Intra-op thread count for each worker: requested, lowered so that all workers together do not run more
+    // threads than there are cores, and at least one.
+    public static int threadsPerWorker(int workers, int requested, int cores) {
+        return Math.max(1, Math.min(requested, cores / Math.max(1, workers)));
+    }
+
+    // Waits for an idle worker. Every worker acquired has to be released, also when the task fails.
+    public W acquire() {
+        try {
+            return idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a worker", e);
+        }
+    }
+
+    public void release(W worker) {
+        if (!idle.offer(worker)) {
+            throw new IllegalStateException("Released a worker that does not belong to the pool");
+        }
+    }
+
+    // Runs the task on a pool thread with a worker of its own.
+    public <T> CompletableFuture<T> submit(Function<W, T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            final W worker = acquire();
+            try {
+                return task.apply(worker);
+            } finally {
+                release(worker);
+            }
+        }, executor);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Stops the pool threads once the submitted tasks have finished.
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
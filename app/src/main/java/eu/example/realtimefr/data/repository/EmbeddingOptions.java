@@ -0,0 +1,91 @@
+package eu.example.realtimefr.data.repository;
+
+import org.tensorflow.lite.Interpreter;
+
+// How the embedding model is run: how many interpreters embed in parallel, how many operator threads each uses, and
+// the TensorFlow Lite CPU options. Nothing here moves inference off the CPU. Defaults split the cores between up to
+// two interpreters with XNNPACK on, full float precision and no cancellation.
+public final class EmbeddingOptions {
+
+    private static final int MAX_DEFAULT_WORKERS = 2;
+
+    private int workers;
+    private int threadsPerWorker;
+    private boolean useXnnpack = true;
+    private boolean allowFp16 = false;
+    private boolean cancelStaleInvocations = false;
+
+    public EmbeddingOptions() {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        workers = Math.max(1, Math.min(MAX_DEFAULT_WORKERS, cores / 2));
+        threadsPerWorker = Math.max(1, cores / workers);
+    }
+
+    public EmbeddingOptions setWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("At least one interpreter is needed: " + workers);
+        }
+        this.workers = workers;
+        return this;
+    }
+
+    // Lowered when workers * threadsPerWorker would exceed the cores.
+    public EmbeddingOptions setThreadsPerWorker(int threadsPerWorker) {
+        this.threadsPerWorker = threadsPerWorker;
+        return this;
+    }
+
+    public EmbeddingOptions setUseXnnpack(boolean useXnnpack) {
+        this.useXnnpack = useXnnpack;
+        return this;
+    }
+
+    // Lets float operators compute in half precision where the CPU supports it.
+    public EmbeddingOptions setAllowFp16(boolean allowFp16) {
+        this.allowFp16 = allowFp16;
+        return this;
+    }
+
+    // Aborts the model runs of a frame once the embeddings of a newer frame are requested through embedBatchAsync;
+    // the futures of the older frame complete with a CancellationException.
+    public EmbeddingOptions setCancelStaleInvocations(boolean cancelStaleInvocations) {
+        this.cancelStaleInvocations = cancelStaleInvocations;
+        return this;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getThreadsPerWorker() {
+        return threadsPerWorker;
+    }
+
+    public boolean isUseXnnpack() {
+        return useXnnpack;
+    }
+
+    public boolean isAllowFp16() {
+        return allowFp16;
+    }
+
+    public boolean isCancelStaleInvocations() {
+        return cancelStaleInvocations;
+    }
+
+    Interpreter.Options toInterpreterOptions(int threads) {
+        return new Interpreter.Options()
+                .setNumThreads(threads)
+                .setUseXNNPACK(useXnnpack)
+                .setAllowFp16PrecisionForFp32(allowFp16)
+                .setCancellable(cancelStaleInvocations);
+    }
+
+    @Override
+    public String toString() {
+        return workers + "x" + threadsPerWorker + " threads"
+                + (useXnnpack ? ", XNNPACK" : "")
+                + (allowFp16 ? ", FP16" : "")
+                + (cancelStaleInvocations ? ", cancellable" : "");
+    }
+}
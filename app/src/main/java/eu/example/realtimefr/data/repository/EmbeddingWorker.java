@@ -0,0 +1,132 @@
+package eu.example.realtimefr.data.repository;
+
+import android.graphics.Bitmap;
+
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+
+import eu.example.realtimefr.data.InferenceBuffers;
+
+// One interpreter of the embedding model with its own tensors. Not thread-safe; RealtimeRecognitionRepo hands
+// workers out through a WorkerPool.
+final class EmbeddingWorker {
+
+    private final Interpreter interpreter;
+    private final InferenceBuffers buffers;
+    private final boolean cancellable;
+    private long frame;
+    private boolean running;
+    private boolean cancelled;
+
+    // The tensor types, quantization parameters and embedding size are read from the model, so float and
+    // full-integer models are run the same way.
+    EmbeddingWorker(ByteBuffer model, EmbeddingOptions options, int threads, int inputSize, float mean, float std) {
+        this.interpreter = new Interpreter(model, options.toInterpreterOptions(threads));
+        final Tensor output = interpreter.getOutputTensor(0);
+        final int[] outputShape = output.shape();
+        this.buffers = new InferenceBuffers(inputSize, tensorType(interpreter.getInputTensor(0)), mean, std,
+                tensorType(output), outputShape[outputShape.length - 1]);
+        this.cancellable = options.isCancelStaleInvocations();
+    }
+
+    private static InferenceBuffers.TensorType tensorType(Tensor tensor) {
+        final Tensor.QuantizationParams quantization = tensor.quantizationParams();
+        switch (tensor.dataType()) {
+            case FLOAT32:
+                return InferenceBuffers.TensorType.FLOAT32;
+            case UINT8:
+                return InferenceBuffers.TensorType.uint8(quantization.getScale(), quantization.getZeroPoint());
+            case INT8:
+                return InferenceBuffers.TensorType.int8(quantization.getScale(), quantization.getZeroPoint());
+            default:
+                throw new IllegalArgumentException("Unsupported embedding model tensor type: " + tensor.dataType());
+        }
+    }
+
+    int getEmbeddingSize() {
+        return buffers.getEmbeddingSize();
+    }
+
+    boolean isQuantized() {
+        return buffers.isQuantized();
+    }
+
+    float[] embed(Bitmap bitmap, float[] destination) {
+        shapeBatch(1);
+        bitmap.getPixels(buffers.pixels(), 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        buffers.fillInput();
+        interpreter.runForMultipleInputsOutputs(buffers.inputs(), buffers.outputs());
+        return buffers.readEmbedding(destination);
+    }
+
+    // Embeds crops from up to, but not including, to of the given frame in one interpreter run into the same
+    // positions of embeddings. A single crop runs in a batch of one; more crops go into the first slots of the
+    // shared batch, which only grows.
+    void embedBatch(FaceCrops crops, int from, int to, float[][] embeddings, long frame) {
+        shapeBatch(to - from);
+        for (int slot = 0; slot < to - from; slot++) {
+            crops.pixels(from + slot, buffers.getInputSize(), buffers.pixels());
+            buffers.fillInput(slot);
+        }
+        begin(frame);
+        try {
+            interpreter.runForMultipleInputsOutputs(buffers.inputs(), buffers.outputs());
+        } catch (RuntimeException e) {
+            if (end()) {
+                throw new CancellationException("Embedding of frame " + frame + " was cancelled");
+            }
+            throw e;
+        }
+        if (end()) {
+            throw new CancellationException("Embedding of frame " + frame + " was cancelled");
+        }
+        for (int slot = 0; slot < to - from; slot++) {
+            embeddings[from + slot] = buffers.readEmbedding(slot, new float[buffers.getEmbeddingSize()]);
+        }
+    }
+
+    // Aborts the run in progress if it belongs to a frame before newestFrame. Safe to call from any thread.
+    synchronized void cancelIfOlderThan(long newestFrame) {
+        if (cancellable && running && frame < newestFrame) {
+            cancelled = true;
+            interpreter.setCancelled(true);
+        }
+    }
+
+    private synchronized void begin(long frame) {
+        this.frame = frame;
+        running = true;
+        cancelled = false;
+        if (cancellable) {
+            interpreter.setCancelled(false);
+        }
+    }
+
+    // Returns whether the run was cancelled.
+    private synchronized boolean end() {
+        running = false;
+        if (cancelled) {
+            interpreter.setCancelled(false);
+        }
+        return cancelled;
+    }
+
+    // Batch size the interpreter is currently shaped for.
+    int getBatchSize() {
+        return interpreter.getInputTensor(0).shape()[0];
+    }
+
+    void close() {
+        interpreter.close();
+    }
+
+    private void shapeBatch(int faces) {
+        if (buffers.reserveBatch(faces)) {
+            interpreter.resizeInput(0, buffers.inputShape());
+            interpreter.allocateTensors();
+        }
+    }
+}
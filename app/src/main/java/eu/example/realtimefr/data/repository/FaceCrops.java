@@ -0,0 +1,49 @@
+package eu.example.realtimefr.data.repository;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+
+import java.util.List;
+
+import eu.example.realtimefr.utils.YuvFrame;
+
+// The faces of one batch, each written into the model's input pixels only when its slot is filled.
+interface FaceCrops {
+
+    int size();
+
+    // Writes face index as inputSize x inputSize ARGB pixels.
+    void pixels(int index, int inputSize, int[] argb);
+
+    // Crops already scaled to the model input.
+    static FaceCrops of(final List<Bitmap> bitmaps) {
+        return new FaceCrops() {
+            @Override
+            public int size() {
+                return bitmaps.size();
+            }
+
+            @Override
+            public void pixels(int index, int inputSize, int[] argb) {
+                final Bitmap bitmap = bitmaps.get(index);
+                bitmap.getPixels(argb, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+            }
+        };
+    }
+
+    // Boxes in the upright frame, sampled from its planes and scaled to the model input in one pass.
+    static FaceCrops of(final YuvFrame frame, final List<RectF> boxes) {
+        return new FaceCrops() {
+            @Override
+            public int size() {
+                return boxes.size();
+            }
+
+            @Override
+            public void pixels(int index, int inputSize, int[] argb) {
+                final RectF box = boxes.get(index);
+                frame.sample(box.left, box.top, box.right, box.bottom, inputSize, argb);
+            }
+        };
+    }
+}
@@ -6,46 +6,723 @@ import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.RectF;
 import android.util.Log;
-import android.util.Pair;
-
-import org.tensorflow.lite.Interpreter;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import eu.example.realtimefr.data.EmbeddingGallery;
+import eu.example.realtimefr.data.EnrollmentQueue;
 import eu.example.realtimefr.data.FaceDatabase;
+import eu.example.realtimefr.data.FlatGalleryFile;
+import eu.example.realtimefr.data.GalleryImporter;
+import eu.example.realtimefr.data.HnswIndex;
+import eu.example.realtimefr.data.IvfPqIndex;
+import eu.example.realtimefr.data.LatencyRecorder;
+import eu.example.realtimefr.data.WorkerPool;
+import eu.example.realtimefr.utils.YuvFrame;
 import eu.example.realtimefr.viewmodel.FaceRecognizer;
 
 public class RealtimeRecognitionRepo implements FaceRecognizer {
 
-    private static final int EMBEDDING_SIZE = 512;
     private static final float NORMALIZATION_MEAN = 128.0f;
     private static final float NORMALIZATION_STD = 128.0f;
+    private static final int MAX_BATCH_SIZE = 16;
+    private static final int BENCHMARK_WARM_UP_RUNS = 5;
+
+    // Per-frame match logging builds strings on the camera thread; compiled out unless switched on here.
+    private static final boolean LOG_MATCHES = false;
 
-    private boolean isQuantized;
-    private int inputSize;
-    private int[] pixelBuffer;
-    private float[][] faceEmbeddings;
-    private ByteBuffer imageByteBuffer;
-    private Interpreter faceModel;
+    private WorkerPool<EmbeddingWorker> embeddingWorkers;
+    private List<EmbeddingWorker> workers;
+    private boolean cancelStaleInvocations;
+    private int embeddingSize;
+    private final AtomicLong latestFrame = new AtomicLong();
+    // Per-thread query and scan state of processImage and nearest, reused on every frame.
+    private final ThreadLocal<float[][]> faceQuery = ThreadLocal.withInitial(() -> new float[1][embeddingSize]);
+    private final ThreadLocal<EmbeddingGallery.Nearest> nearestScratch = ThreadLocal.withInitial(EmbeddingGallery.Nearest::new);
+
+    private static final String GALLERY_FILE_NAME = "Faces.gallery";
+    private static final int MIN_CHANGES_FOR_REBUILD = 64;
+    private static final int CENTROID_SHORTLIST_SIZE = 8;
+    private static final int MAX_PENDING_ENROLLMENTS = 256;
+    private static final int PARALLEL_SEARCH_THRESHOLD = 20000;
+    private static final String INDEX_FILE_NAME = "Faces.hnsw";
+    private static final int INDEX_SEARCH_THRESHOLD = 50000;
+    private static final int HNSW_M = 16;
+    private static final int HNSW_EF_CONSTRUCTION = 100;
+    private static final int HNSW_EF_SEARCH = 64;
+    private static final int INDEX_BUILD_CHUNK = 1024;
+    private static final String COMPRESSED_INDEX_FILE_NAME = "Faces.ivfpq";
+    private static final int COMPRESSED_INDEX_THRESHOLD = 10000;
+    private static final int COMPRESSED_SHORTLIST_SIZE = 32;
+    private static final int IVF_MAX_LISTS = 1024;
+    private static final int IVF_TRAINING_SAMPLES_PER_LIST = 64;
+    // Caps the training sample at 32 MB of 512-d centroids however large the gallery is.
+    private static final int IVF_MAX_TRAINING_SAMPLES = 16384;
+    private static final int IVF_TRAINING_ITERATIONS = 10;
+    private static final int IVF_PROBE_COUNT = 16;
+    private static final int PQ_SUBSPACES = 64;
+    private static final long IVF_SEED = 42;
+    private static final int RERANK_CACHE_SIZE = 1024;
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
 
-    private final HashMap<String, RecognitionData> knownFaces = new HashMap<>();
     private final FaceDatabase database;
+    private final File galleryFile;
+    private final EnrollmentQueue enrollmentQueue;
+    // The mapped file is the persistent cache; galleries below INDEX_SEARCH_THRESHOLD are matched against the heap
+    // copy in knownFaces, an immutable snapshot that refreshes replace as a whole.
+    private FlatGalleryFile galleryCache;
+    private volatile EmbeddingGallery knownFaces;
+    private volatile int parallelSearchThreshold = PARALLEL_SEARCH_THRESHOLD;
+    // Approximate centroid index that replaces the heap copy once the gallery reaches INDEX_SEARCH_THRESHOLD; its
+    // vectors are the only copy of the gallery kept in memory. indexedVersion is the gallery version it is being
+    // brought up to, or -1 while the gallery is small; written under this.
+    private final File indexFile;
+    private volatile HnswIndex faceIndex;
+    private volatile long indexedVersion = -1;
+    private volatile int indexEfSearch = HNSW_EF_SEARCH;
+    // Builds, updates and saves the indexes in order, off the camera and UI threads. Fields below that are not
+    // volatile are only touched by this thread.
+    private final ExecutorService indexExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FaceIndexBuilder");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int unsavedIndexChanges;
+    // Opt-in for galleries that do not fit in memory as floats. Past COMPRESSED_INDEX_THRESHOLD identities the heap
+    // gallery and its files are dropped; an IVF-PQ index keeps PQ_SUBSPACES bytes per face and its shortlists are
+    // re-ranked against the exact embeddings, read from the database once and then kept in an LRU cache.
+    private final boolean compressedGallery;
+    private final File compressedIndexFile;
+    private volatile IvfPqIndex compressedIndex;
+    private volatile int compressedProbeCount = IVF_PROBE_COUNT;
+    private int unsavedCompressedChanges;
+    // Set while the index thread trains a compressed index; guarded by this.
+    private boolean compressing;
+    private final Map<String, float[][]> rerankCache = new LinkedHashMap<String, float[][]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, float[][]> eldest) {
+            return size() > RERANK_CACHE_SIZE;
+        }
+    };
+    // Bumped whenever cached templates may be stale, so a database read that raced the change is not cached.
+    private long rerankCacheGeneration;
+    // Templates accepted by enroll() that are not in the gallery file yet; matched alongside it so a new face
+    // is recognized on the next frame instead of after the disk write.
+    private final List<PendingTemplate> pendingTemplates = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
 
     public void addFace(String name, RecognitionData recognition) {
-        database.addFace(name, recognition.getFeatureVector());
-        knownFaces.put(name, recognition);
+        enroll(name, recognition);
     }
 
-    private RealtimeRecognitionRepo(Context context) {
+    private RealtimeRecognitionRepo(Context context, boolean compressedGallery) {
         database = new FaceDatabase(context);
-        knownFaces.putAll(database.getAllFaces());
+        galleryFile = context.getDatabasePath(GALLERY_FILE_NAME);
+        indexFile = context.getDatabasePath(INDEX_FILE_NAME);
+        compressedIndexFile = context.getDatabasePath(COMPRESSED_INDEX_FILE_NAME);
+        this.compressedGallery = compressedGallery;
+        enrollmentQueue = new EnrollmentQueue(database, MAX_PENDING_ENROLLMENTS, this::refreshGallery);
+        if (!compressedGallery || !openCompressedIndex()) {
+            galleryCache = openGallery();
+            compressGalleryIfLarge();
+        }
+    }
+
+    // Adds the templates to the live gallery immediately and persists them, normalized, in the background.
+    public CompletableFuture<Boolean> enroll(String name, RecognitionData recognition) {
+        final float[][] vectors = (float[][]) recognition.getFeatureVector();
+        final float[][] templates = new float[vectors.length][];
+        final List<PendingTemplate> added = new ArrayList<>(templates.length);
+        for (int i = 0; i < vectors.length; i++) {
+            templates[i] = EmbeddingGallery.normalize(vectors[i].clone());
+            added.add(new PendingTemplate(name, templates[i]));
+        }
+        pendingTemplates.addAll(added);
+
+        CompletableFuture<Boolean> written = enrollmentQueue.add(name, templates);
+        written.whenComplete((result, error) -> pendingTemplates.removeAll(added));
+        return written;
+    }
+
+    private static final class PendingTemplate {
+        final String name;
+        final float[] embedding;
+
+        PendingTemplate(String name, float[] embedding) {
+            this.name = name;
+            this.embedding = embedding;
+        }
+    }
+
+    // Maps the flat gallery written next to Faces.db; SQLite is only scanned when the file is missing or unusable.
+    private FlatGalleryFile openGallery() {
+        if (galleryFile.exists()) {
+            try {
+                FlatGalleryFile gallery = FlatGalleryFile.open(galleryFile);
+                if (gallery.getSourceVersion() >= 0) {
+                    return applyChanges(gallery);
+                }
+                Log.d("FaceRecognition", "Gallery file was left mid-write, rebuilding from database");
+            } catch (IOException e) {
+                Log.w("FaceRecognition", "Gallery file unreadable, rebuilding from database", e);
+            }
+        }
+        return rebuildGallery();
+    }
+
+    private FlatGalleryFile rebuildGallery() {
+        // Read the sequence before scanning: a write racing the scan is simply replayed on the next refresh.
+        final long sequence = database.getChangeSequence();
+        try {
+            FlatGalleryFile.write(galleryFile, database.getAllFaces(), sequence);
+            FlatGalleryFile gallery = FlatGalleryFile.open(galleryFile);
+            publishGallery(gallery);
+            return gallery;
+        } catch (IOException e) {
+            Log.e("FaceRecognition", "Could not build gallery file", e);
+            return null;
+        }
+    }
+
+    // Replays only the names touched since the gallery was built, as one batched file update. Upserts and removals are
+    // idempotent, so the new sequence is stamped last and an interrupted replay is simply repeated.
+    private FlatGalleryFile applyChanges(FlatGalleryFile gallery) {
+        final FaceDatabase.ChangeSet changes = database.getChangesSince(gallery.getSourceVersion());
+        if (!changes.isFullReloadRequired() && changes.getSequence() == gallery.getSourceVersion()) {
+            publishGallery(gallery);
+            return gallery;
+        }
+        if (changes.isFullReloadRequired() || changes.size() > Math.max(MIN_CHANGES_FOR_REBUILD, gallery.getLiveCount() / 4)) {
+            return rebuildGallery();
+        }
+
+        final long previousVersion = gallery.getSourceVersion();
+        final boolean indexed = indexedVersion == previousVersion;
+        // The index thread must not read the old mapping once the file is updated in place.
+        indexedVersion = -1;
+        try {
+            FlatGalleryFile.update(galleryFile, changes.getRemoved(), changes.getUpdated(), changes.getSequence());
+            Log.d("FaceRecognition", "Applied " + changes.size() + " gallery changes up to " + changes.getSequence());
+
+            FlatGalleryFile updated = FlatGalleryFile.open(galleryFile);
+            final EmbeddingGallery current = knownFaces;
+            if (current != null && current.getSourceVersion() == previousVersion) {
+                // Readers keep matching against the current version while the next one is built.
+                final EmbeddingGallery faces = current.copy();
+                for (String name : changes.getRemoved()) {
+                    faces.remove(name);
+                }
+                for (Map.Entry<String, RecognitionData> entry : changes.getUpdated().entrySet()) {
+                    faces.put(entry.getKey(), (float[][]) entry.getValue().getFeatureVector());
+                }
+                faces.setSourceVersion(changes.getSequence());
+                knownFaces = faces;
+            }
+            if (indexed && updated.getLiveCount() >= INDEX_SEARCH_THRESHOLD) {
+                updateIndex(updated, changes, previousVersion);
+            } else {
+                publishGallery(updated);
+            }
+            return updated.getDeadRowCount() > updated.getRowCount() / 4 ? rebuildGallery() : updated;
+        } catch (IOException e) {
+            Log.w("FaceRecognition", "Incremental gallery update failed, rebuilding", e);
+            return rebuildGallery();
+        }
+    }
+
+    // Galleries below INDEX_SEARCH_THRESHOLD are scanned exactly from the heap copy and keep no index. Larger ones get
+    // theirs on the index thread, loaded from the file saved next to Faces.db when it matches the gallery version and
+    // built from the gallery file otherwise. A heap copy that is still current keeps serving until the index
+    // catches up; on a cold start nothing is matched until the index is ready.
+    private void publishGallery(FlatGalleryFile gallery) {
+        if (gallery.getLiveCount() < INDEX_SEARCH_THRESHOLD) {
+            indexedVersion = -1;
+            faceIndex = null;
+            final EmbeddingGallery current = knownFaces;
+            if (current == null || current.getSourceVersion() != gallery.getSourceVersion()) {
+                knownFaces = loadFaces(gallery);
+            }
+            return;
+        }
+        indexedVersion = gallery.getSourceVersion();
+        final EmbeddingGallery current = knownFaces;
+        final HnswIndex index = faceIndex;
+        if (index != null && index.getSourceVersion() == gallery.getSourceVersion()) {
+            knownFaces = null;
+            return;
+        }
+        if (current != null && current.getSourceVersion() != gallery.getSourceVersion()) {
+            knownFaces = null;
+        }
+        indexExecutor.execute(() -> reindex(gallery));
+    }
+
+    // Runs on the index thread. Skipped when a newer gallery has been published, which queued its own update.
+    private void reindex(FlatGalleryFile gallery) {
+        if (indexedVersion != gallery.getSourceVersion()) {
+            return;
+        }
+        HnswIndex index = faceIndex;
+        if ((index == null || index.getSourceVersion() != gallery.getSourceVersion()) && indexFile.exists()) {
+            try {
+                index = HnswIndex.load(indexFile);
+            } catch (IOException e) {
+                Log.w("FaceRecognition", "Index file unreadable, rebuilding", e);
+                index = null;
+            }
+        }
+        if (index == null || index.getSourceVersion() != gallery.getSourceVersion()
+                || index.getDimension() != gallery.getDimension() || index.getDeletedCount() > index.size() / 4) {
+            index = buildIndex(gallery);
+            if (index == null) {
+                return;
+            }
+        }
+        index.setEfSearch(indexEfSearch);
+        publishIndex(index);
+    }
+
+    // Reads the centroids INDEX_BUILD_CHUNK identities at a time under the monitor, so refreshes go on between chunks
+    // and the mapping is never read after the file was updated in place. Returns null once a newer gallery has been
+    // published.
+    private HnswIndex buildIndex(FlatGalleryFile gallery) {
+        final long start = System.nanoTime();
+        final int dimension = gallery.getDimension();
+        final HnswIndex index = new HnswIndex(dimension, HNSW_M, HNSW_EF_CONSTRUCTION, indexEfSearch);
+        final String[] names = new String[INDEX_BUILD_CHUNK];
+        final float[][] centroids = new float[INDEX_BUILD_CHUNK][dimension];
+        float[] block = new float[0];
+        for (int first = 0; first < gallery.size(); first += INDEX_BUILD_CHUNK) {
+            int count = 0;
+            synchronized (this) {
+                if (indexedVersion != gallery.getSourceVersion()) {
+                    return null;
+                }
+                for (int entry = first; entry < Math.min(gallery.size(), first + INDEX_BUILD_CHUNK); entry++) {
+                    if (!gallery.isLive(entry)) {
+                        continue;
+                    }
+                    final int length = gallery.getTemplateCount(entry) * dimension;
+                    if (block.length < length) {
+                        block = new float[length];
+                    }
+                    gallery.copyTemplates(entry, block, 0);
+                    EmbeddingGallery.centroid(block, length, dimension, centroids[count]);
+                    names[count++] = gallery.getName(entry);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                index.put(names[i], centroids[i]);
+            }
+        }
+        index.setSourceVersion(gallery.getSourceVersion());
+        Log.d("FaceRecognition", "Built index over " + index.size() + " faces in " + (System.nanoTime() - start) / 1000000 + " ms");
+        saveIndex(index);
+        return index;
+    }
+
+    // Publishes an index for the current large gallery and drops the heap copy once the index has caught up with it.
+    private synchronized void publishIndex(HnswIndex index) {
+        if (indexedVersion < 0) {
+            return;
+        }
+        faceIndex = index;
+        final EmbeddingGallery current = knownFaces;
+        if (current != null && current.getSourceVersion() <= index.getSourceVersion()) {
+            knownFaces = null;
+        }
+    }
+
+    // Tombstones removed identities and re-inserts updated ones with their new centroid, on the index thread. The
+    // file is saved every MIN_CHANGES_FOR_REBUILD changes and on close; a stale file is rebuilt on the next start.
+    private void updateIndex(FlatGalleryFile gallery, FaceDatabase.ChangeSet changes, long previousVersion) {
+        indexedVersion = gallery.getSourceVersion();
+        indexExecutor.execute(() -> {
+            final HnswIndex index = faceIndex;
+            if (index == null || index.getSourceVersion() != previousVersion || index.getDimension() != gallery.getDimension()) {
+                reindex(gallery);
+                return;
+            }
+            for (String name : changes.getRemoved()) {
+                index.remove(name);
+            }
+            for (Map.Entry<String, RecognitionData> entry : changes.getUpdated().entrySet()) {
+                index.put(entry.getKey(), identityCentroid((float[][]) entry.getValue().getFeatureVector()));
+            }
+            index.setSourceVersion(changes.getSequence());
+            if (index.getDeletedCount() > index.size() / 4) {
+                reindex(gallery);
+                return;
+            }
+            publishIndex(index);
+            unsavedIndexChanges += changes.size();
+            if (unsavedIndexChanges >= MIN_CHANGES_FOR_REBUILD) {
+                saveIndex(index);
+            }
+        });
+    }
+
+    private void saveIndex(HnswIndex index) {
+        try {
+            index.save(indexFile);
+            unsavedIndexChanges = 0;
+        } catch (IOException e) {
+            Log.w("FaceRecognition", "Could not save index file", e);
+        }
+    }
+
+    // Commits queued enrollments, saves index changes that are not on disk yet after any queued index work, stops the
+    // recognizer's threads and closes the database. Not synchronized: the enrollment writer's last commit refreshes
+    // the gallery, which needs the monitor. Later calls do nothing.
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        enrollmentQueue.close();
+        indexExecutor.execute(() -> {
+            final HnswIndex index = faceIndex;
+            if (index != null && unsavedIndexChanges > 0) {
+                saveIndex(index);
+            }
+            synchronized (this) {
+                if (compressedIndex != null && unsavedCompressedChanges > 0) {
+                    saveCompressedIndex(compressedIndex);
+                }
+            }
+        });
+        indexExecutor.shutdown();
+        if (embeddingWorkers != null) {
+            embeddingWorkers.shutdown();
+        }
+        boolean idle;
+        try {
+            idle = indexExecutor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            idle = false;
+        }
+        if (idle) {
+            database.close();
+        } else {
+            Log.w("FaceRecognition", "Index work still running after " + CLOSE_TIMEOUT_SECONDS + " s, leaving the database open");
+        }
+    }
+
+    // Beam width of index searches; higher values trade latency for recall.
+    public void setIndexEfSearch(int efSearch) {
+        indexEfSearch = efSearch;
+        final HnswIndex index = faceIndex;
+        if (index != null) {
+            index.setEfSearch(efSearch);
+        }
+    }
+
+    private EmbeddingGallery loadFaces(FlatGalleryFile file) {
+        EmbeddingGallery faces = EmbeddingGallery.load(file);
+        faces.setParallelThreshold(parallelSearchThreshold);
+        return faces;
+    }
+
+    // Galleries of at least this many identities are searched on all cores; smaller ones stay sequential.
+    public void setParallelSearchThreshold(int identities) {
+        parallelSearchThreshold = identities;
+        final EmbeddingGallery faces = knownFaces;
+        if (faces != null) {
+            faces.setParallelThreshold(identities);
+        }
+    }
+
+    // Picks up edits made by this process, other processes or sync jobs through the database change journal.
+    public synchronized void refreshGallery() {
+        if (compressedIndex != null) {
+            updateCompressedIndex();
+            return;
+        }
+        if (galleryCache == null && compressing) {
+            // Too large for the heap gallery; the compressed index replays these changes once it is trained.
+            return;
+        }
+        galleryCache = galleryCache == null ? openGallery() : applyChanges(galleryCache);
+        compressGalleryIfLarge();
+    }
+
+    // Loads the saved IVF-PQ index, or starts training a new one when the database has already outgrown the heap
+    // gallery; nothing is matched until it is ready. Returns false when the gallery is still small enough to search
+    // exactly.
+    private synchronized boolean openCompressedIndex() {
+        if (compressedIndexFile.exists()) {
+            try {
+                IvfPqIndex index = IvfPqIndex.load(compressedIndexFile);
+                index.setProbeCount(compressedProbeCount);
+                compressedIndex = index;
+                updateCompressedIndex();
+                return true;
+            } catch (IOException e) {
+                Log.w("FaceRecognition", "Compressed index unreadable, rebuilding", e);
+            }
+        }
+        if (database.getFaceCount() < COMPRESSED_INDEX_THRESHOLD) {
+            return false;
+        }
+        trainCompressedIndex();
+        return true;
+    }
+
+    private synchronized void compressGalleryIfLarge() {
+        final FlatGalleryFile gallery = galleryCache;
+        if (!compressedGallery || gallery == null || gallery.getLiveCount() < COMPRESSED_INDEX_THRESHOLD) {
+            return;
+        }
+        trainCompressedIndex();
+    }
+
+    // Trains on the index thread. The heap gallery keeps serving searches until the new index replaces it, and
+    // the changes committed during training are replayed right after.
+    private synchronized void trainCompressedIndex() {
+        if (compressing) {
+            return;
+        }
+        compressing = true;
+        indexExecutor.execute(() -> {
+            final IvfPqIndex index = buildCompressedIndex();
+            synchronized (this) {
+                compressing = false;
+                if (index == null) {
+                    return;
+                }
+                compressedIndex = index;
+                clearRerankCache();
+                knownFaces = null;
+                indexedVersion = -1;
+                faceIndex = null;
+                galleryCache = null;
+                galleryFile.delete();
+                indexFile.delete();
+                updateCompressedIndex();
+            }
+        });
+    }
+
+    // Two passes over the database: a bounded reservoir sample of identity centroids, stored row-major in the
+    // array the quantizers are trained on, then every identity is encoded. The index takes the change sequence of
+    // the second pass.
+    private IvfPqIndex buildCompressedIndex() {
+        final long start = System.nanoTime();
+        final int lists = Math.max(1, Math.min(IVF_MAX_LISTS, (int) Math.sqrt(database.getFaceCount())));
+        final int capacity = Math.min(IVF_MAX_TRAINING_SAMPLES,
+                Math.max(IvfPqIndex.CODEBOOK_SIZE, lists * IVF_TRAINING_SAMPLES_PER_LIST));
+        final float[][] sample = new float[1][];
+        final Random random = new Random(IVF_SEED);
+        final int[] seen = new int[1];
+        database.forEachFace((name, templates) -> {
+            final int slot = seen[0] < capacity ? seen[0] : random.nextInt(seen[0] + 1);
+            seen[0]++;
+            if (slot >= capacity) {
+                return;
+            }
+            final float[] centroid = identityCentroid(templates);
+            if (sample[0] == null) {
+                sample[0] = new float[capacity * centroid.length];
+            }
+            System.arraycopy(centroid, 0, sample[0], slot * centroid.length, centroid.length);
+        });
+        final int count = Math.min(seen[0], capacity);
+        if (count < Math.max(lists, IvfPqIndex.CODEBOOK_SIZE)) {
+            Log.w("FaceRecognition", "Only " + count + " faces, not enough to train a compressed index");
+            return null;
+        }
+
+        final int dimension = sample[0].length / capacity;
+        int subspaces = Math.min(PQ_SUBSPACES, dimension);
+        while (dimension % subspaces != 0) {
+            subspaces--;
+        }
+        final IvfPqIndex index = IvfPqIndex.train(sample[0], count, dimension, lists, subspaces, compressedProbeCount,
+                IVF_TRAINING_ITERATIONS, IVF_SEED);
+        sample[0] = null;
+        index.setSourceVersion(database.forEachFace((name, templates) -> index.put(name, identityCentroid(templates))));
+        Log.d("FaceRecognition", "Built compressed index over " + index.size() + " faces in " + lists + " lists in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        saveCompressedIndex(index);
+        return index;
+    }
+
+    // Re-encodes only the names touched since the index was built, with the quantizers it was trained with. The
+    // file is saved every MIN_CHANGES_FOR_REBUILD changes; the journal replays the rest after a restart.
+    private synchronized void updateCompressedIndex() {
+        final IvfPqIndex index = compressedIndex;
+        final FaceDatabase.ChangeSet changes = database.getChangesSince(index.getSourceVersion());
+        if (changes.isFullReloadRequired()) {
+            trainCompressedIndex();
+            return;
+        }
+        if (changes.getSequence() == index.getSourceVersion()) {
+            return;
+        }
+        for (String name : changes.getRemoved()) {
+            index.remove(name);
+        }
+        for (Map.Entry<String, RecognitionData> entry : changes.getUpdated().entrySet()) {
+            index.put(entry.getKey(), identityCentroid((float[][]) entry.getValue().getFeatureVector()));
+        }
+        index.setSourceVersion(changes.getSequence());
+        synchronized (rerankCache) {
+            rerankCache.keySet().removeAll(changes.getRemoved());
+            rerankCache.keySet().removeAll(changes.getUpdated().keySet());
+            rerankCacheGeneration++;
+        }
+        Log.d("FaceRecognition", "Applied " + changes.size() + " compressed index changes up to " + changes.getSequence());
+        unsavedCompressedChanges += changes.size();
+        if (unsavedCompressedChanges >= MIN_CHANGES_FOR_REBUILD) {
+            saveCompressedIndex(index);
+        }
+    }
+
+    private void clearRerankCache() {
+        synchronized (rerankCache) {
+            rerankCache.clear();
+            rerankCacheGeneration++;
+        }
+    }
+
+    private void saveCompressedIndex(IvfPqIndex index) {
+        try {
+            index.save(compressedIndexFile);
+            unsavedCompressedChanges = 0;
+        } catch (IOException e) {
+            Log.w("FaceRecognition", "Could not save compressed index file", e);
+        }
+    }
+
+    // Normalized mean of the normalized templates, the same centroid EmbeddingGallery ranks by.
+    private static float[] identityCentroid(float[][] templates) {
+        final float[] centroid = new float[templates[0].length];
+        for (float[] template : templates) {
+            final float[] unit = EmbeddingGallery.normalize(template.clone());
+            for (int i = 0; i < centroid.length; i++) {
+                centroid[i] += unit[i];
+            }
+        }
+        return EmbeddingGallery.normalize(centroid);
+    }
+
+    // Lists probed per search once the gallery is compressed; higher values trade latency for recall.
+    public void setCompressedProbeCount(int probeCount) {
+        compressedProbeCount = probeCount;
+        final IvfPqIndex index = compressedIndex;
+        if (index != null) {
+            index.setProbeCount(probeCount);
+        }
+    }
+
+    // Exact re-rank of the IVF-PQ shortlists of a frame. Identities that are not cached yet are read from the
+    // database in one query for the whole frame; a face that stays in view keeps hitting the cache.
+    private List<List<EmbeddingGallery.Match>> rerankCompressed(float[][] embeddings, List<List<String>> shortlists,
+                                                                int topK, float maxSquaredDistance) {
+        final Map<String, float[][]> templates = new HashMap<>();
+        final List<String> missing = new ArrayList<>();
+        final long generation;
+        synchronized (rerankCache) {
+            generation = rerankCacheGeneration;
+            for (List<String> shortlist : shortlists) {
+                for (String name : shortlist) {
+                    final float[][] cached = rerankCache.get(name);
+                    if (cached != null) {
+                        templates.put(name, cached);
+                    } else if (!templates.containsKey(name)) {
+                        templates.put(name, null);
+                        missing.add(name);
+                    }
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            final Map<String, RecognitionData> faces = database.getFaces(missing);
+            synchronized (rerankCache) {
+                for (Map.Entry<String, RecognitionData> entry : faces.entrySet()) {
+                    final float[][] vectors = (float[][]) entry.getValue().getFeatureVector();
+                    templates.put(entry.getKey(), vectors);
+                    if (generation == rerankCacheGeneration) {
+                        rerankCache.put(entry.getKey(), vectors);
+                    }
+                }
+            }
+        }
+
+        final List<List<EmbeddingGallery.Match>> matches = new ArrayList<>(embeddings.length);
+        for (int q = 0; q < embeddings.length; q++) {
+            final List<String> shortlist = shortlists.get(q);
+            final EmbeddingGallery candidates = new EmbeddingGallery(embeddings[q].length, shortlist.size());
+            for (String name : shortlist) {
+                final float[][] vectors = templates.get(name);
+                if (vectors != null) {
+                    candidates.put(name, vectors);
+                }
+            }
+            matches.add(candidates.rerank(embeddings[q], shortlist, topK, maxSquaredDistance));
+        }
+        return matches;
+    }
+
+    // Loads all records in one transaction and updates the gallery once at the end.
+    public GalleryImporter.Result importGallery(Iterator<RecognitionData> records, GalleryImporter.ProgressListener listener) {
+        GalleryImporter.Result result = new GalleryImporter(database).importFaces(records, listener);
+        refreshGallery();
+        return result;
+    }
+
+    public GalleryImporter.Result importGallery(File csvFile, GalleryImporter.ProgressListener listener) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(csvFile))) {
+            return importGallery(GalleryImporter.readCsv(reader), listener);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public long exportSnapshot(File snapshotFile) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(snapshotFile))) {
+            return database.exportSnapshot(out);
+        }
+    }
+
+    // Restores a snapshot written by exportSnapshot and rebuilds the gallery once afterwards.
+    public long importSnapshot(File snapshotFile, boolean replaceAll) throws IOException {
+        long imported;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(snapshotFile))) {
+            imported = database.importSnapshot(in, replaceAll);
+        }
+        refreshGallery();
+        return imported;
     }
 
     private static MappedByteBuffer loadModel(AssetManager assets, String modelPath) throws IOException {
@@ -61,55 +738,212 @@ public class RealtimeRecognitionRepo implements FaceRecognizer {
             final int inputSize,
             final boolean isQuantized,
             Context context) throws IOException {
-        final RealtimeRecognitionRepo recognizer = new RealtimeRecognitionRepo(context);
-        recognizer.inputSize = inputSize;
+        return initialize(assetManager, modelPath, inputSize, isQuantized, context, false);
+    }
 
+    // With compressedGallery set, a gallery past COMPRESSED_INDEX_THRESHOLD identities is searched through an
+    // IVF-PQ index instead of being held in memory.
+    public static FaceRecognizer initialize(
+            final AssetManager assetManager,
+            final String modelPath,
+            final int inputSize,
+            final boolean isQuantized,
+            Context context,
+            final boolean compressedGallery) throws IOException {
+        return initialize(assetManager, modelPath, inputSize, isQuantized, context, compressedGallery, new EmbeddingOptions());
+    }
+
+    // Float and full-integer models both work: input and output types, their quantization and the embedding size
+    // are read from the model's tensors, and isQuantized is only checked against them.
+    public static FaceRecognizer initialize(
+            final AssetManager assetManager,
+            final String modelPath,
+            final int inputSize,
+            final boolean isQuantized,
+            Context context,
+            final boolean compressedGallery,
+            final EmbeddingOptions options) throws IOException {
+        final RealtimeRecognitionRepo recognizer = new RealtimeRecognitionRepo(context, compressedGallery);
+
+        final List<EmbeddingWorker> embeddingWorkers;
         try {
-            recognizer.faceModel = new Interpreter(loadModel(assetManager, modelPath));
+            embeddingWorkers = createWorkers(loadModel(assetManager, modelPath), inputSize, options);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+        final EmbeddingWorker first = embeddingWorkers.get(0);
+        if (first.isQuantized() != isQuantized) {
+            Log.w("FaceRecognition", modelPath + " has " + (first.isQuantized() ? "integer" : "float")
+                    + " input, running it as such");
+        }
+        Log.d("FaceRecognition", "Embedding " + first.getEmbeddingSize() + "-d with " + options);
 
-        recognizer.isQuantized = isQuantized;
-        int bytesPerChannel = isQuantized ? 1 : 4;
-        recognizer.imageByteBuffer = ByteBuffer.allocateDirect(1 * recognizer.inputSize * recognizer.inputSize * 3 * bytesPerChannel);
-        recognizer.imageByteBuffer.order(ByteOrder.nativeOrder());
-        recognizer.pixelBuffer = new int[recognizer.inputSize * recognizer.inputSize];
+        recognizer.workers = embeddingWorkers;
+        recognizer.embeddingWorkers = new WorkerPool<>(embeddingWorkers, "FaceEmbedding");
+        recognizer.cancelStaleInvocations = options.isCancelStaleInvocations();
+        recognizer.embeddingSize = first.getEmbeddingSize();
         return recognizer;
     }
 
-    private Pair<String, Float> findClosestMatch(float[] embedding) {
-        Pair<String, Float> bestMatch = null;
-        float bestDistance = Float.MAX_VALUE; // Track the closest match
+    private static List<EmbeddingWorker> createWorkers(MappedByteBuffer model, int inputSize, EmbeddingOptions options) {
+        final int threads = WorkerPool.threadsPerWorker(options.getWorkers(), options.getThreadsPerWorker(),
+                Runtime.getRuntime().availableProcessors());
+        final List<EmbeddingWorker> workers = new ArrayList<>(options.getWorkers());
+        for (int i = 0; i < options.getWorkers(); i++) {
+            workers.add(new EmbeddingWorker(model, options, threads, inputSize, NORMALIZATION_MEAN, NORMALIZATION_STD));
+        }
+        return workers;
+    }
+
+    // Times single-face model runs on this device under each configuration, after a few untimed runs, with the
+    // interpreter created as initialize would create each of its workers.
+    public static Map<EmbeddingOptions, LatencyRecorder> benchmark(
+            final AssetManager assetManager,
+            final String modelPath,
+            final int inputSize,
+            final List<EmbeddingOptions> configurations,
+            final Bitmap crop,
+            final int runs) throws IOException {
+        final MappedByteBuffer model = loadModel(assetManager, modelPath);
+        final Map<EmbeddingOptions, LatencyRecorder> results = new LinkedHashMap<>();
+        for (EmbeddingOptions options : configurations) {
+            final EmbeddingWorker worker = new EmbeddingWorker(model, options, WorkerPool.threadsPerWorker(
+                    options.getWorkers(), options.getThreadsPerWorker(), Runtime.getRuntime().availableProcessors()),
+                    inputSize, NORMALIZATION_MEAN, NORMALIZATION_STD);
+            final float[] embedding = new float[worker.getEmbeddingSize()];
+            for (int i = 0; i < BENCHMARK_WARM_UP_RUNS; i++) {
+                worker.embed(crop, embedding);
+            }
+            final LatencyRecorder latency = new LatencyRecorder(runs);
+            for (int i = 0; i < runs; i++) {
+                final long start = System.nanoTime();
+                worker.embed(crop, embedding);
+                latency.record(System.nanoTime() - start);
+            }
+            worker.close();
+            Log.i("FaceRecognition", options + ": " + latency);
+            results.put(options, latency);
+        }
+        return results;
+    }
+
+    // Ranks identities by centroid distance and compares the full templates of the closest few only, then folds in
+    // the enrollments that are still waiting for the gallery.
+    @Override
+    public List<RecognitionData> search(float[] embedding, int topK, float maxDistance) {
+        return searchBatch(new float[][]{embedding}, topK, maxDistance).get(0);
+    }
 
-        Log.d("FaceRecognition", "Starting face matching. Comparing with " + knownFaces.size() + " stored faces.");
+    // Matches all faces of a frame together. The exact scan reads each block of centroids once for all of them;
+    // the approximate indexes are still searched face by face, and the HNSW index ranks by its own centroids.
+    @Override
+    public List<List<RecognitionData>> searchBatch(float[][] embeddings, int topK, float maxDistance) {
+        final EmbeddingGallery gallery = knownFaces;
+        final IvfPqIndex compressed = compressedIndex;
+        final HnswIndex index = faceIndex;
+        final float maxSquaredDistance = maxDistance * maxDistance;
 
-        for (Map.Entry<String, RecognitionData> entry : knownFaces.entrySet()) {
-            final String name = entry.getKey();
-            final float[] storedEmbedding = ((float[][]) entry.getValue().getFeatureVector())[0];
+        if (LOG_MATCHES) {
+            Log.d("FaceRecognition", "Starting face matching for " + embeddings.length + " faces. Comparing with "
+                    + (compressed != null ? compressed.size() : gallery != null ? gallery.size() : index != null ? index.size() : 0)
+                    + " stored faces.");
+        }
 
-            float distance = 0;
-            for (int i = 0; i < embedding.length; i++) {
-                float diff = embedding[i] - storedEmbedding[i];
-                distance += diff * diff;
+        final List<List<EmbeddingGallery.Match>> matches;
+        if (compressed != null) {
+            final List<List<String>> shortlists = new ArrayList<>(embeddings.length);
+            for (float[] embedding : embeddings) {
+                shortlists.add(compressed.search(embedding, Math.max(topK, COMPRESSED_SHORTLIST_SIZE)));
             }
-            distance = (float) Math.sqrt(distance); // Compute Euclidean distance
+            matches = rerankCompressed(embeddings, shortlists, topK, maxSquaredDistance);
+        } else if (gallery != null) {
+            matches = gallery.searchBatch(embeddings, topK, CENTROID_SHORTLIST_SIZE, maxSquaredDistance);
+        } else if (index != null) {
+            matches = new ArrayList<>(embeddings.length);
+            for (float[] embedding : embeddings) {
+                matches.add(index.match(embedding, topK, maxSquaredDistance));
+            }
+        } else {
+            matches = Collections.nCopies(embeddings.length, Collections.<EmbeddingGallery.Match>emptyList());
+        }
+
+        final List<List<RecognitionData>> results = new ArrayList<>(embeddings.length);
+        for (int q = 0; q < embeddings.length; q++) {
+            results.add(toCandidates(embeddings[q], matches.get(q), topK, maxSquaredDistance));
+        }
+        return results;
+    }
 
-            Log.d("FaceRecognition", "Comparing with " + name + " -> Distance: " + distance);
+    // The exact scan goes through EmbeddingGallery.findNearest with per-thread scratch; the approximate indexes
+    // and enrollments still waiting for the gallery take the general searchBatch path.
+    @Override
+    public void nearest(float[][] embeddings, int count, NearestMatches results) {
+        results.reset(count);
+        final EmbeddingGallery gallery = knownFaces;
+        if (compressedIndex != null || !pendingTemplates.isEmpty() || gallery == null) {
+            final List<List<RecognitionData>> matches = searchBatch(Arrays.copyOf(embeddings, count), 1, Float.MAX_VALUE);
+            for (int q = 0; q < count; q++) {
+                if (!matches.get(q).isEmpty()) {
+                    results.set(q, matches.get(q).get(0).getLabel(), matches.get(q).get(0).getConfidenceScore());
+                }
+            }
+            return;
+        }
+        final EmbeddingGallery.Nearest nearest = nearestScratch.get();
+        gallery.findNearest(embeddings, count, CENTROID_SHORTLIST_SIZE, nearest);
+        for (int q = 0; q < count; q++) {
+            if (nearest.getName(q) != null) {
+                results.set(q, nearest.getName(q), (float) Math.sqrt(nearest.getSquaredDistance(q))); // Euclidean distance
+            }
+        }
+    }
 
-            if (bestMatch == null || distance < bestDistance) {
-                bestMatch = new Pair<>(name, distance);
-                bestDistance = distance;
+    private List<RecognitionData> toCandidates(float[] embedding, List<EmbeddingGallery.Match> matches, int topK, float maxSquaredDistance) {
+        final List<String> names = new ArrayList<>(matches.size());
+        final List<Float> distances = new ArrayList<>(matches.size());
+        for (EmbeddingGallery.Match match : matches) {
+            names.add(match.getName());
+            distances.add(match.getSquaredDistance());
+        }
+        if (!pendingTemplates.isEmpty()) {
+            final Map<String, Float> merged = new HashMap<>();
+            for (int i = 0; i < names.size(); i++) {
+                merged.put(names.get(i), distances.get(i));
+            }
+            for (PendingTemplate pending : pendingTemplates) {
+                float score = 0;
+                for (int i = 0; i < embedding.length; i++) {
+                    score += embedding[i] * pending.embedding[i];
+                }
+                final float distance = Math.max(0f, 2 - 2 * score); // both sides are unit length
+                if (distance <= maxSquaredDistance) {
+                    merged.merge(pending.name, distance, Math::min);
+                }
+            }
+            names.clear();
+            names.addAll(merged.keySet());
+            names.sort((a, b) -> Float.compare(merged.get(a), merged.get(b)));
+            distances.clear();
+            for (String name : names) {
+                distances.add(merged.get(name));
             }
         }
 
-        if (bestMatch != null) {
-            Log.d("FaceRecognition", "Best match: " + bestMatch.first + " with distance: " + bestMatch.second);
-        } else {
-            Log.d("FaceRecognition", "No match found!");
+        final int count = Math.min(topK, names.size());
+        final List<RecognitionData> candidates = new ArrayList<>(count);
+        for (int rank = 0; rank < count; rank++) {
+            float distance = (float) Math.sqrt(distances.get(rank)); // Euclidean distance
+            candidates.add(new RecognitionData(Integer.toString(rank), names.get(rank), distance, new RectF()));
         }
 
-        return bestMatch;
+        if (LOG_MATCHES) {
+            if (!candidates.isEmpty()) {
+                Log.d("FaceRecognition", "Best match: " + candidates.get(0).getLabel() + " with distance: " + candidates.get(0).getConfidenceScore());
+            } else {
+                Log.d("FaceRecognition", "No match found!");
+            }
+        }
+        return candidates;
     }
 
 
@@ -121,56 +955,98 @@ public class RealtimeRecognitionRepo implements FaceRecognizer {
         }
 
 
-        database.addFace(name, recognition.getFeatureVector());
-        knownFaces.clear();
-
-        knownFaces.put(name, recognition);
+        enroll(name, recognition);
 
         Log.d("FaceRegistration", "Face registered: " + name + " with embedding: " + recognition.getFeatureVector());
     }
 
 
     @Override
-    public RecognitionData processImage(final Bitmap bitmap, boolean storeEmbedding) {
-        bitmap.getPixels(pixelBuffer, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-        imageByteBuffer.rewind();
-        for (int i = 0; i < inputSize; ++i) {
-            for (int j = 0; j < inputSize; ++j) {
-                int pixelValue = pixelBuffer[i * inputSize + j];
-                if (isQuantized) {
-                    imageByteBuffer.put((byte) ((pixelValue >> 16) & 0xFF));
-                    imageByteBuffer.put((byte) ((pixelValue >> 8) & 0xFF));
-                    imageByteBuffer.put((byte) (pixelValue & 0xFF));
-                } else {
-                    imageByteBuffer.putFloat((((pixelValue >> 16) & 0xFF) - NORMALIZATION_MEAN) / NORMALIZATION_STD);
-                    imageByteBuffer.putFloat((((pixelValue >> 8) & 0xFF) - NORMALIZATION_MEAN) / NORMALIZATION_STD);
-                    imageByteBuffer.putFloat(((pixelValue & 0xFF) - NORMALIZATION_MEAN) / NORMALIZATION_STD);
-                }
-            }
+    public float[] embed(final Bitmap bitmap) {
+        return embed(bitmap, new float[embeddingSize]);
+    }
+
+    // Runs on the calling thread with an interpreter borrowed from the pool.
+    @Override
+    public float[] embed(final Bitmap bitmap, float[] destination) {
+        final EmbeddingWorker worker = embeddingWorkers.acquire();
+        try {
+            return worker.embed(bitmap, destination);
+        } finally {
+            embeddingWorkers.release(worker);
         }
-        Object[] inputArray = {imageByteBuffer};
-        Map<Integer, Object> outputMap = new HashMap<>();
+    }
+
+    @Override
+    public float[][] embedBatch(final List<Bitmap> bitmaps) {
+        return embedBatchAsync(bitmaps).join();
+    }
 
-        faceEmbeddings = new float[1][EMBEDDING_SIZE];
-        outputMap.put(0, faceEmbeddings);
-        faceModel.runForMultipleInputsOutputs(inputArray, outputMap);
+    @Override
+    public CompletableFuture<float[]> embedAsync(final Bitmap bitmap) {
+        return embeddingWorkers.submit(worker -> worker.embed(bitmap, new float[embeddingSize]));
+    }
 
-        float distance = Float.MAX_VALUE;
-        String id = "0";
-        String label = "Unknown";
+    @Override
+    public CompletableFuture<float[][]> embedBatchAsync(final List<Bitmap> bitmaps) {
+        return embedCropsAsync(FaceCrops.of(bitmaps));
+    }
 
-        if (!knownFaces.isEmpty()) {
-            final Pair<String, Float> closestMatch = findClosestMatch(faceEmbeddings[0]);
-            if (closestMatch != null) {
-                label = closestMatch.first;
-                distance = closestMatch.second;
+    @Override
+    public float[][] embedBatch(final YuvFrame frame, final List<RectF> faces) {
+        return embedBatchAsync(frame, faces).join();
+    }
+
+    @Override
+    public CompletableFuture<float[][]> embedBatchAsync(final YuvFrame frame, final List<RectF> faces) {
+        return embedCropsAsync(FaceCrops.of(frame, faces));
+    }
+
+    // Splits the crops evenly over the interpreters, each running its share of at most MAX_BATCH_SIZE crops in a
+    // single invocation. With cancelStaleInvocations, the crops are treated as a new frame: runs of earlier frames
+    // are aborted and their queued chunks dropped.
+    private CompletableFuture<float[][]> embedCropsAsync(final FaceCrops crops) {
+        final long frame = latestFrame.incrementAndGet();
+        if (cancelStaleInvocations) {
+            for (EmbeddingWorker worker : workers) {
+                worker.cancelIfOlderThan(frame);
             }
         }
+        final float[][] embeddings = new float[crops.size()][];
+        final int share = (crops.size() + embeddingWorkers.size() - 1) / embeddingWorkers.size();
+        final int chunkSize = Math.max(1, Math.min(MAX_BATCH_SIZE, share));
+        final List<CompletableFuture<Void>> chunks = new ArrayList<>();
+        for (int start = 0; start < crops.size(); start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(crops.size(), start + chunkSize);
+            chunks.add(embeddingWorkers.submit(worker -> {
+                if (cancelStaleInvocations && frame < latestFrame.get()) {
+                    throw new CancellationException("Embedding of frame " + frame + " was superseded");
+                }
+                worker.embedBatch(crops, from, to, embeddings, frame);
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0])).thenApply(done -> embeddings);
+    }
+
+    @Override
+    public void processImage(final Bitmap bitmap, NearestMatches result) {
+        final float[][] query = faceQuery.get();
+        embed(bitmap, query[0]);
+        nearest(query, 1, result);
+    }
+
+    @Override
+    public RecognitionData processImage(final Bitmap bitmap, boolean storeEmbedding) {
+        final NearestMatches match = new NearestMatches();
+        processImage(bitmap, match);
+        final String label = match.getLabel(0) != null ? match.getLabel(0) : "Unknown";
 
-        RecognitionData result = new RecognitionData(id, label, distance, new RectF());
+        RecognitionData result = new RecognitionData("0", label, match.getDistance(0), new RectF());
         if (storeEmbedding) {
-            result.setFeatureVector(faceEmbeddings);
+            result.setFeatureVector(new float[][]{faceQuery.get()[0].clone()});
         }
         return result;
     }
-}
\ No newline at end of file
+}
@@ -24,6 +24,7 @@ import android.media.ImageReader;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
 import android.util.TypedValue;
@@ -37,10 +38,13 @@ import android.widget.Toast;
 import eu.example.realtimefr.ui.components.FaceDetectionTracker;
 import eu.example.realtimefr.ui.components.RecognitionOverlay;
 import eu.example.realtimefr.R;
+import eu.example.realtimefr.data.RecognitionCache;
+import eu.example.realtimefr.data.TrackAggregator;
 import eu.example.realtimefr.data.repository.RealtimeRecognitionRepo;
 import eu.example.realtimefr.ui.camera.CameraConnectionFragment;
 import eu.example.realtimefr.ui.components.TextStyler;
 import eu.example.realtimefr.utils.ImageProcessor;
+import eu.example.realtimefr.utils.YuvFrame;
 import eu.example.realtimefr.viewmodel.FaceRecognizer;
 
 import com.google.android.gms.tasks.OnFailureListener;
@@ -54,31 +58,47 @@ import com.google.mlkit.vision.face.FaceDetectorOptions;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class MainActivity extends AppCompatActivity implements ImageReader.OnImageAvailableListener{
 
 
     Handler handler;
-    private Matrix frameToCropTransform;
     private int sensorOrientation;
-    private Matrix cropToFrameTransform;
+    // Maps face boxes from the upright frame the detector sees back to the sensor frame the tracker draws.
+    private Matrix uprightToFrameTransform;
 
-    private static final boolean MAINTAIN_ASPECT = false;
     private static final float TEXT_SIZE_DIP = 10;
     RecognitionOverlay trackingOverlay;
     private TextStyler borderedText;
     private FaceDetectionTracker tracker;
     private Integer useFacing = null;
     private static final String KEY_USE_FACING = "use_facing";
-    private static final int CROP_SIZE = 1000;
     private static final int TF_OD_API_INPUT_SIZE2 = 160;
+    // Bottom of the face box left out of the embedded crop, as a fraction of the frame height.
+    private static final float CHIN_TRIM = 0.03f;
+    // A tracked face keeps its last result for up to this many frames or milliseconds while it stays in place.
+    private static final int TRACK_CACHE_FRAMES = 15;
+    private static final long TRACK_CACHE_MILLIS = 1000;
+    private static final float TRACK_CACHE_MAX_MOVEMENT = 0.15f;
+    private static final float TRACK_CACHE_MAX_SCALE_CHANGE = 0.2f;
+    private static final float TRACK_CACHE_MARGINAL_BAND = 0.1f;
+    // Embeddings averaged per track; once that many matches in a row agree the track is sampled four times less.
+    private static final int TRACK_WINDOW_SIZE = 5;
+    private static final float TRACK_MIN_SIMILARITY = 0.5f;
+    private static final int TRACK_STABLE_MULTIPLIER = 4;
 
 
         FaceDetector detector;
 
 
     private FaceRecognizer faceClassifier;
+    private final RecognitionCache recognitionCache = new RecognitionCache(TRACK_CACHE_FRAMES, TRACK_CACHE_MILLIS,
+            TRACK_CACHE_MAX_MOVEMENT, TRACK_CACHE_MAX_SCALE_CHANGE, FaceRecognizer.MAX_MATCH_DISTANCE, TRACK_CACHE_MARGINAL_BAND);
+    private final TrackAggregator trackAggregator = new TrackAggregator(TRACK_WINDOW_SIZE, TRACK_MIN_SIMILARITY);
+    private final FaceRecognizer.NearestMatches frameMatches = new FaceRecognizer.NearestMatches();
 
     boolean registerFace = false;
 
@@ -115,8 +135,10 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
                         .setPerformanceMode(FaceDetectorOptions.PERFORMANCE_MODE_ACCURATE)
                         .setLandmarkMode(FaceDetectorOptions.LANDMARK_MODE_NONE)
                         .setClassificationMode(FaceDetectorOptions.CLASSIFICATION_MODE_NONE)
+                        .enableTracking()
                         .build();
         detector = FaceDetection.getClient(highAccuracyOpts);
+        recognitionCache.setStableMultiplier(TRACK_STABLE_MULTIPLIER);
 
 
         try {
@@ -188,25 +210,19 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
                                 borderedText = new TextStyler(textSizePx);
                                 borderedText.applyTypeface(Typeface.MONOSPACE);
 
-
-                                int cropSize = CROP_SIZE;
-
                                 previewWidth = size.getWidth();
                                 previewHeight = size.getHeight();
 
                                 sensorOrientation = rotation - getScreenOrientation();
 
-                                rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Bitmap.Config.ARGB_8888);
-                                croppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Bitmap.Config.ARGB_8888);
-
-                                frameToCropTransform =
-                                        ImageProcessor.createTransformationMatrix(
+                                final boolean transposed = sensorOrientation % 180 != 0;
+                                uprightToFrameTransform = new Matrix();
+                                ImageProcessor.createTransformationMatrix(
                                                 previewWidth, previewHeight,
-                                                cropSize, cropSize,
-                                                sensorOrientation, MAINTAIN_ASPECT);
-
-                                cropToFrameTransform = new Matrix();
-                                frameToCropTransform.invert(cropToFrameTransform);
+                                                transposed ? previewHeight : previewWidth,
+                                                transposed ? previewWidth : previewHeight,
+                                                sensorOrientation, false)
+                                        .invert(uprightToFrameTransform);
 
                                 trackingOverlay = (RecognitionOverlay) findViewById(R.id.tracking_overlay);
                                 trackingOverlay.addCallback(
@@ -232,21 +248,14 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
 
     private boolean isProcessingFrame = false;
     private byte[][] yuvBytes = new byte[3][];
-    private int[] rgbBytes = null;
     private int yRowStride;
     private Runnable postInferenceCallback;
-    private Runnable imageConverter;
-    private Bitmap rgbFrameBitmap;
-    Bitmap croppedBitmap;
     @Override
     public void onImageAvailable(ImageReader reader) {
 
         if (previewWidth == 0 || previewHeight == 0) {
             return;
         }
-        if (rgbBytes == null) {
-            rgbBytes = new int[previewWidth * previewHeight];
-        }
         try {
             final Image image = reader.acquireLatestImage();
 
@@ -265,22 +274,9 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
             final int uvRowStride = planes[1].getRowStride();
             final int uvPixelStride = planes[1].getPixelStride();
 
-            imageConverter =
-                    new Runnable() {
-                        @Override
-                        public void run() {
-                            ImageProcessor.transformYUV420ToRGB(
-                                    yuvBytes[0],
-                                    yuvBytes[1],
-                                    yuvBytes[2],
-                                    previewWidth,
-                                    previewHeight,
-                                    yRowStride,
-                                    uvRowStride,
-                                    uvPixelStride,
-                                    rgbBytes);
-                        }
-                    };
+            // Faces are sampled straight from the planes; the frame is never converted to RGB as a whole.
+            final YuvFrame frame = new YuvFrame(yuvBytes[0], yuvBytes[1], yuvBytes[2], previewWidth, previewHeight,
+                    yRowStride, uvRowStride, uvPixelStride, sensorOrientation);
 
             postInferenceCallback =
                     new Runnable() {
@@ -291,7 +287,7 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
                         }
                     };
 
-            performFaceDetection();
+            performFaceDetection(image, frame);
 
         } catch (final Exception e) {
             Log.d("tryError",e.getMessage()+"abc ");
@@ -328,28 +324,19 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
     List<FaceRecognizer.RecognitionData> mappedRecognitions;
 
 
-    public void performFaceDetection(){
-        imageConverter.run();;
-        rgbFrameBitmap.setPixels(rgbBytes, 0, previewWidth, 0, 0, previewWidth, previewHeight);
-
-        final Canvas canvas = new Canvas(croppedBitmap);
-        canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
-
+    public void performFaceDetection(final Image cameraImage, final YuvFrame frame){
         new Handler().post(new Runnable() {
             @Override
             public void run() {
                 mappedRecognitions = new ArrayList<>();
-                InputImage image = InputImage.fromBitmap(croppedBitmap,0);
+                InputImage image = InputImage.fromMediaImage(cameraImage, frame.getRotation());
                 detector.process(image)
                         .addOnSuccessListener(
                                         new OnSuccessListener<List<Face>>() {
                                             @Override
                                             public void onSuccess(List<Face> faces) {
 
-                                                for(Face face:faces) {
-                                                    final Rect bounds = face.getBoundingBox();
-                                                    performFaceRecognition(face,croppedBitmap);
-                                                }
+                                                performFaceRecognition(faces,frame);
                                                 registerFace = false;
                                                 tracker.updateTrackedObjects(mappedRecognitions, 10);
                                                 trackingOverlay.postInvalidate();
@@ -373,61 +360,131 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
     }
 
 
-    public void performFaceRecognition(Face face,Bitmap input){
+    // Embeds the faces of the frame that have no reusable result for their track in one model run and matches the
+    // running mean of each track against the gallery in a single batch.
+    public void performFaceRecognition(List<Face> faces,YuvFrame frame){
+
+        final long now = SystemClock.uptimeMillis();
+        final String[] titles = new String[faces.size()];
+        final float[] confidences = new float[faces.size()];
+        final float[][] embeddings = new float[faces.size()][];
+        final Rect[] embeddedBounds = new Rect[faces.size()];
+        final int[] embeddedFaces = new int[faces.size()];
+        final List<RectF> crops = new ArrayList<>();
+        final int frameWidth = frame.getUprightWidth();
+        final int frameHeight = frame.getUprightHeight();
+        final RectF[] locations = new RectF[faces.size()];
+        final Set<Integer> trackIds = new HashSet<>();
+        int embedded = 0;
+        for (int i = 0; i < faces.size(); i++) {
+            final Face face = faces.get(i);
+            Rect bounds = face.getBoundingBox();
+            if(bounds.top<0){
+                bounds.top = 0;
+            }
+            if(bounds.left<0){
+                bounds.left = 0;
+            }
+            if(bounds.left+bounds.width()>frameWidth){
+                bounds.right = frameWidth-1;
+            }
+            if(bounds.top+bounds.height()>frameHeight){
+                bounds.bottom = frameHeight-1;
+            }
 
-        Rect bounds = face.getBoundingBox();
-        if(bounds.top<0){
-            bounds.top = 0;
-        }
-        if(bounds.left<0){
-            bounds.left = 0;
-        }
-        if(bounds.left+bounds.width()>input.getWidth()){
-            bounds.right = input.getWidth()-1;
-        }
-        if(bounds.top+bounds.height()>input.getHeight()){
-            bounds.bottom = input.getHeight()-1;
-        }
+            RectF location = new RectF(bounds);
+            if(useFacing == CameraCharacteristics.LENS_FACING_BACK) {
+                location.right = frameWidth - location.right;
+                location.left = frameWidth - location.left;
+            }
+            uprightToFrameTransform.mapRect(location);
+            locations[i] = location;
+            titles[i] = "Unknown";
 
-        Bitmap crop = Bitmap.createBitmap(input,
-                bounds.left,
-                bounds.top,
-                bounds.width(),
-                bounds.height() - 30);
-        crop = Bitmap.createScaledBitmap(crop,TF_OD_API_INPUT_SIZE2,TF_OD_API_INPUT_SIZE2,false);
+            final Integer trackId = face.getTrackingId();
+            if (trackId != null) {
+                trackIds.add(trackId);
+            }
+            if (!registerFace && trackId != null) {
+                final RecognitionCache.Entry cached = recognitionCache.lookup(trackId, bounds.left, bounds.top, bounds.right, bounds.bottom, now);
+                if (cached != null) {
+                    setResult(titles, confidences, i, cached.getLabel(), cached.getDistance());
+                    continue;
+                }
+            }
 
+            final RectF crop = new RectF(bounds.left, bounds.top, bounds.right,
+                    Math.max(bounds.top + 1, bounds.bottom - CHIN_TRIM * frameHeight));
 
-        final FaceRecognizer.RecognitionData result = faceClassifier.processImage(crop, registerFace);
-        String title = "Unknown";
-        float confidence = 0;
-        if (result !=null) {
             if(registerFace){
-                registerFaceDialogue(crop,result);
-            }else {
-                if (result.getConfidenceScore() < 1f) {
-                    confidence = result.getConfidenceScore();
-                    title = result.getLabel();
+                // The dialog shows the crop, so registration still builds a Bitmap of it.
+                final int[] pixels = new int[TF_OD_API_INPUT_SIZE2 * TF_OD_API_INPUT_SIZE2];
+                frame.sample(crop.left, crop.top, crop.right, crop.bottom, TF_OD_API_INPUT_SIZE2, pixels);
+                final Bitmap face = Bitmap.createBitmap(pixels, TF_OD_API_INPUT_SIZE2, TF_OD_API_INPUT_SIZE2, Bitmap.Config.ARGB_8888);
+                final FaceRecognizer.RecognitionData result = faceClassifier.processImage(face, true);
+                if (result != null) {
+                    registerFaceDialogue(face,result);
                 }
+            }else {
+                crops.add(crop);
+                embeddedFaces[embedded++] = i;
+                embeddedBounds[i] = new Rect(bounds);
             }
         }
 
-        RectF location = new RectF(bounds);
-        if (bounds != null) {
-            if(useFacing == CameraCharacteristics.LENS_FACING_BACK) {
-                location.right = input.getWidth() - location.right;
-                location.left = input.getWidth() - location.left;
+        if (embedded > 0) {
+            final float[][] cropEmbeddings = faceClassifier.embedBatch(frame, crops);
+            for (int c = 0; c < embedded; c++) {
+                final int i = embeddedFaces[c];
+                final Integer trackId = faces.get(i).getTrackingId();
+                embeddings[i] = trackId != null ? trackAggregator.add(trackId, cropEmbeddings[c]) : cropEmbeddings[c];
+            }
+            final float[][] batch = new float[embedded][];
+            for (int i = 0, b = 0; i < faces.size(); i++) {
+                if (embeddings[i] != null) {
+                    batch[b++] = embeddings[i];
+                }
             }
-            cropToFrameTransform.mapRect(location);
-            FaceRecognizer.RecognitionData recognition = new FaceRecognizer.RecognitionData(face.getTrackingId()+"",title,confidence,location);
+            faceClassifier.nearest(batch, embedded, frameMatches);
+            for (int i = 0, b = 0; i < faces.size(); i++) {
+                if (embeddings[i] == null) {
+                    continue;
+                }
+                final String label = frameMatches.getLabel(b);
+                final float distance = frameMatches.getDistance(b++);
+                setResult(titles, confidences, i, label, distance);
+                final Integer trackId = faces.get(i).getTrackingId();
+                if (trackId != null) {
+                    final Rect bounds = embeddedBounds[i];
+                    final boolean stable = trackAggregator.recordMatch(trackId, distance < FaceRecognizer.MAX_MATCH_DISTANCE ? label : null);
+                    recognitionCache.store(trackId, label, distance, bounds.left, bounds.top, bounds.right, bounds.bottom, now, stable);
+                }
+            }
+        }
+        recognitionCache.retainTracks(trackIds);
+        trackAggregator.retainTracks(trackIds);
+
+        for (int i = 0; i < faces.size(); i++) {
+            FaceRecognizer.RecognitionData recognition = new FaceRecognizer.RecognitionData(faces.get(i).getTrackingId()+"",titles[i],confidences[i],locations[i]);
             mappedRecognitions.add(recognition);
         }
 
     }
 
+    private static void setResult(String[] titles, float[] confidences, int face, String label, float distance) {
+        if (label != null && distance < FaceRecognizer.MAX_MATCH_DISTANCE) {
+            titles[face] = label;
+            confidences[face] = distance;
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
         //detector.close();
+        if (faceClassifier != null) {
+            faceClassifier.close();
+        }
     }
 
 
@@ -458,6 +515,8 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
                 }
 
                 faceClassifier.addIdentity(name, rec);  // Store face in recognition database
+                recognitionCache.clear();  // tracks cached as someone else or unknown may be this face now
+                trackAggregator.clear();
 
                 Toast.makeText(MainActivity.this, "Face Registered Successfully", Toast.LENGTH_SHORT).show();
                 dialog.dismiss();
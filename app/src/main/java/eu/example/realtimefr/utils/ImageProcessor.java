@@ -83,6 +83,86 @@ public class ImageProcessor {
         }
     }
 
+    // Samples the box left, top, right, bottom of the upright image, the frame rotated clockwise by rotationAngle
+    // (0, 90, 180 or 270), straight from the YUV planes into outputSize x outputSize ARGB pixels. Each channel is
+    // interpolated bilinearly at the pixel centre, so a face crop needs neither a converted frame nor a Bitmap.
+    public static void sampleYUV420ToARGB(
+            byte[] luminance,
+            byte[] chromaU,
+            byte[] chromaV,
+            int imageWidth,
+            int imageHeight,
+            int luminanceStride,
+            int chromaStride,
+            int chromaPixelStride,
+            int rotationAngle,
+            float left,
+            float top,
+            float right,
+            float bottom,
+            int outputSize,
+            int[] argbOutput) {
+        // Frame position of an upright point (x, y): frameX = ax * x + bx * y + cx, frameY = ay * x + by * y + cy.
+        float ax = 1, bx = 0, cx = 0, ay = 0, by = 1, cy = 0;
+        switch (rotationAngle) {
+            case 90:
+                ax = 0; bx = 1; cx = 0;
+                ay = -1; by = 0; cy = imageHeight;
+                break;
+            case 180:
+                ax = -1; bx = 0; cx = imageWidth;
+                ay = 0; by = -1; cy = imageHeight;
+                break;
+            case 270:
+                ax = 0; bx = -1; cx = imageWidth;
+                ay = 1; by = 0; cy = 0;
+                break;
+            default:
+                break;
+        }
+        final float stepX = (right - left) / outputSize;
+        final float stepY = (bottom - top) / outputSize;
+        final int chromaWidth = (imageWidth + 1) / 2;
+        final int chromaHeight = (imageHeight + 1) / 2;
+
+        int pixelIndex = 0;
+        for (int row = 0; row < outputSize; row++) {
+            final float y = top + (row + 0.5f) * stepY;
+            for (int col = 0; col < outputSize; col++) {
+                final float x = left + (col + 0.5f) * stepX;
+                // Pixel centres sit at half coordinates; chroma pixels cover two luminance pixels each way.
+                final float frameX = ax * x + bx * y + cx;
+                final float frameY = ay * x + by * y + cy;
+                final int lum = sampleBilinear(luminance, imageWidth, imageHeight, luminanceStride, 1,
+                        frameX - 0.5f, frameY - 0.5f);
+                final float chromaX = frameX / 2 - 0.5f;
+                final float chromaY = frameY / 2 - 0.5f;
+                final int u = sampleBilinear(chromaU, chromaWidth, chromaHeight, chromaStride, chromaPixelStride,
+                        chromaX, chromaY);
+                final int v = sampleBilinear(chromaV, chromaWidth, chromaHeight, chromaStride, chromaPixelStride,
+                        chromaX, chromaY);
+                argbOutput[pixelIndex++] = convertYUVToRGB(lum, u, v);
+            }
+        }
+    }
+
+    private static int sampleBilinear(byte[] plane, int width, int height, int rowStride, int pixelStride,
+                                      float x, float y) {
+        x = Math.max(0, Math.min(width - 1, x));
+        y = Math.max(0, Math.min(height - 1, y));
+        final int x0 = (int) x;
+        final int y0 = (int) y;
+        final int x1 = Math.min(width - 1, x0 + 1);
+        final int y1 = Math.min(height - 1, y0 + 1);
+        final float wx = x - x0;
+        final float wy = y - y0;
+        final int row0 = y0 * rowStride;
+        final int row1 = y1 * rowStride;
+        final float top = (0xff & plane[row0 + x0 * pixelStride]) * (1 - wx) + (0xff & plane[row0 + x1 * pixelStride]) * wx;
+        final float bottom = (0xff & plane[row1 + x0 * pixelStride]) * (1 - wx) + (0xff & plane[row1 + x1 * pixelStride]) * wx;
+        return (int) (top * (1 - wy) + bottom * wy + 0.5f);
+    }
+
     private static int convertYUVToRGB(int y, int u, int v) {
         y = Math.max(y - 16, 0);
         u -= 128;
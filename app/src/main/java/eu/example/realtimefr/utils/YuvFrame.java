@@ -0,0 +1,50 @@
+package eu.example.realtimefr.utils;
+
+// The Y, U and V planes of a YUV_420_888 camera frame with their strides, and the clockwise rotation that makes it
+// upright. Face boxes are given in upright coordinates, as the face detector reports them for the rotated frame.
+public final class YuvFrame {
+
+    private final byte[] luminance;
+    private final byte[] chromaU;
+    private final byte[] chromaV;
+    private final int width;
+    private final int height;
+    private final int luminanceStride;
+    private final int chromaStride;
+    private final int chromaPixelStride;
+    private final int rotation;
+
+    public YuvFrame(byte[] luminance, byte[] chromaU, byte[] chromaV, int width, int height,
+                    int luminanceStride, int chromaStride, int chromaPixelStride, int rotation) {
+        if (rotation % 90 != 0) {
+            throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees: " + rotation);
+        }
+        this.luminance = luminance;
+        this.chromaU = chromaU;
+        this.chromaV = chromaV;
+        this.width = width;
+        this.height = height;
+        this.luminanceStride = luminanceStride;
+        this.chromaStride = chromaStride;
+        this.chromaPixelStride = chromaPixelStride;
+        this.rotation = (rotation % 360 + 360) % 360;
+    }
+
+    public int getRotation() {
+        return rotation;
+    }
+
+    public int getUprightWidth() {
+        return rotation % 180 == 0 ? width : height;
+    }
+
+    public int getUprightHeight() {
+        return rotation % 180 == 0 ? height : width;
+    }
+
+    // Resamples the upright box into size x size ARGB pixels.
+    public void sample(float left, float top, float right, float bottom, int size, int[] argbOutput) {
+        ImageProcessor.sampleYUV420ToARGB(luminance, chromaU, chromaV, width, height, luminanceStride, chromaStride,
+                chromaPixelStride, rotation, left, top, right, bottom, size, argbOutput);
+    }
+}
@@ -3,13 +3,98 @@ package eu.example.realtimefr.viewmodel;
 import android.graphics.Bitmap;
 import android.graphics.RectF;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import eu.example.realtimefr.utils.YuvFrame;
 
 public interface FaceRecognizer {
 
+    // Euclidean distance between normalized embeddings below which a match is reported as a known face.
+    float MAX_MATCH_DISTANCE = 1f;
+
     void addIdentity(String label, RecognitionData data);
 
     RecognitionData processImage(Bitmap image, boolean includeMetadata);
 
+    // Embeds the crop and writes its nearest identity into the first result; allocates nothing once warm.
+    void processImage(Bitmap image, NearestMatches result);
+
+    // Normalized embedding of a face crop, without matching it.
+    float[] embed(Bitmap image);
+
+    // Same, written into destination; allocates nothing once the recognizer is set up.
+    float[] embed(Bitmap image, float[] destination);
+
+    // Normalized embeddings of several face crops, such as all faces of a frame, run through the model together.
+    float[][] embedBatch(List<Bitmap> images);
+
+    // Like embed and embedBatch, computed on the recognizer's own threads so several faces and frames can be
+    // embedded in parallel.
+    CompletableFuture<float[]> embedAsync(Bitmap image);
+
+    CompletableFuture<float[][]> embedBatchAsync(List<Bitmap> images);
+
+    // Normalized embeddings of the faces in the given boxes of the upright frame, sampled straight from its YUV
+    // planes into the model input. The planes must not change until the embeddings are returned.
+    float[][] embedBatch(YuvFrame frame, List<RectF> faces);
+
+    CompletableFuture<float[][]> embedBatchAsync(YuvFrame frame, List<RectF> faces);
+
+    // Up to topK identities within maxDistance of the normalized embedding, nearest first, with the distance as
+    // the confidence score.
+    List<RecognitionData> search(float[] embedding, int topK, float maxDistance);
+
+    // Like search, for several embeddings at once such as all faces of a frame; one result list per embedding.
+    List<List<RecognitionData>> searchBatch(float[][] embeddings, int topK, float maxDistance);
+
+    // Nearest identity of each of the first count normalized embeddings, such as all faces of a frame, written into
+    // reusable results. Allocates nothing once warm while the gallery is matched by the exact scan.
+    void nearest(float[][] embeddings, int count, NearestMatches results);
+
+    // Commits queued enrollments, persists any index state still in memory, stops background work and closes the
+    // database; the recognizer is unusable afterwards. Calling it again does nothing.
+    void close();
+
+    // Top-1 results of nearest and processImage, one per face, reused from frame to frame. Not thread-safe.
+    class NearestMatches {
+        private String[] labels = new String[0];
+        private float[] distances = new float[0];
+        private int size;
+
+        public int size() {
+            return size;
+        }
+
+        // Null when nothing is enrolled.
+        public String getLabel(int face) {
+            return labels[face];
+        }
+
+        // Euclidean distance to the label, Float.MAX_VALUE when nothing is enrolled.
+        public float getDistance(int face) {
+            return distances[face];
+        }
+
+        // Clears the results and makes room for count faces.
+        public void reset(int count) {
+            if (labels.length < count) {
+                labels = new String[count];
+                distances = new float[count];
+            }
+            for (int face = 0; face < count; face++) {
+                labels[face] = null;
+                distances[face] = Float.MAX_VALUE;
+            }
+            size = count;
+        }
+
+        public void set(int face, String label, float distance) {
+            labels[face] = label;
+            distances[face] = distance;
+        }
+    }
+
     class RecognitionData {
         private final String identifier;
         private final String label;
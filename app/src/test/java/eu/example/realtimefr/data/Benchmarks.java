@@ -0,0 +1,15 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assume.assumeTrue;
+
+// Timing runs print their results and take about a minute, so the default unit test run skips them. Run them with
+// ./gradlew testDebugUnitTest -Pbenchmarks.
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    static void assumeEnabled() {
+        assumeTrue("Benchmarks run with -Pbenchmarks", Boolean.getBoolean("benchmarks"));
+    }
+}
@@ -0,0 +1,86 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class EmbeddingCodecTest {
+
+    @Test
+    public void float32RoundTripIsExact() {
+        float[] embedding = {0.5f, -1.25f, 3.0e-7f, Float.MAX_VALUE, -0.0f};
+
+        byte[] blob = EmbeddingCodec.encode(embedding, EmbeddingCodec.DTYPE_FLOAT32);
+
+        assertEquals(embedding.length * 4, blob.length);
+        assertArrayEquals(embedding, EmbeddingCodec.decode(blob, embedding.length, EmbeddingCodec.DTYPE_FLOAT32), 0f);
+    }
+
+    @Test
+    public void float32BlobIsLittleEndian() {
+        byte[] blob = EmbeddingCodec.encode(new float[]{1.0f}, EmbeddingCodec.DTYPE_FLOAT32);
+
+        // 1.0f is 0x3F800000
+        assertArrayEquals(new byte[]{0x00, 0x00, (byte) 0x80, 0x3F}, blob);
+    }
+
+    @Test
+    public void legacyTextParsesTrailingSeparator() {
+        float[] embedding = EmbeddingCodec.parseLegacyText("0.25,-1.5,2.0,");
+
+        assertArrayEquals(new float[]{0.25f, -1.5f, 2.0f}, embedding, 0f);
+    }
+
+    @Test
+    public void float16MatchesKnownBitPatterns() {
+        assertEquals(0x3C00, EmbeddingCodec.floatToHalf(1.0f));
+        assertEquals((short) 0xC000, EmbeddingCodec.floatToHalf(-2.0f));
+        assertEquals(0x7BFF, EmbeddingCodec.floatToHalf(65504f));
+        assertEquals(0x7C00, EmbeddingCodec.floatToHalf(1e6f));
+        assertEquals(0x2E66, EmbeddingCodec.floatToHalf(0.1f));
+        assertEquals(0x0001, EmbeddingCodec.floatToHalf(0x1p-24f));
+        assertEquals(0, EmbeddingCodec.floatToHalf(1e-9f));
+        assertEquals(0.0999755859375f, EmbeddingCodec.halfToFloat((short) 0x2E66), 0f);
+        assertEquals(0x1p-24f, EmbeddingCodec.halfToFloat((short) 0x0001), 0f);
+    }
+
+    @Test
+    public void float16RoundTripStaysWithinHalfPrecision() {
+        float[] embedding = {0.031f, -0.27f, 0.5f, 1.75f, -0.0009f};
+
+        byte[] blob = EmbeddingCodec.encode(embedding, EmbeddingCodec.DTYPE_FLOAT16);
+        float[] decoded = EmbeddingCodec.decode(blob, embedding.length, EmbeddingCodec.DTYPE_FLOAT16);
+
+        assertEquals(embedding.length * 2, blob.length);
+        for (int i = 0; i < embedding.length; i++) {
+            assertEquals(embedding[i], decoded[i], Math.abs(embedding[i]) / 1024);
+        }
+    }
+
+    @Test
+    public void int8RoundTripStaysWithinHalfAStep() {
+        float[] embedding = {0.5f, -1.27f, 0.0f, 0.01f, 1.0f};
+
+        byte[] blob = EmbeddingCodec.encode(embedding, EmbeddingCodec.DTYPE_INT8);
+        float[] decoded = EmbeddingCodec.decode(blob, embedding.length, EmbeddingCodec.DTYPE_INT8);
+
+        assertEquals(4 + embedding.length, blob.length);
+        assertEquals(-1.27f, decoded[1], 1e-6);
+        for (int i = 0; i < embedding.length; i++) {
+            assertEquals(embedding[i], decoded[i], 0.5f * 1.27f / 127);
+        }
+    }
+
+    @Test
+    public void int8EncodesZeroVector() {
+        float[] decoded = EmbeddingCodec.decode(EmbeddingCodec.encode(new float[3], EmbeddingCodec.DTYPE_INT8), 3, EmbeddingCodec.DTYPE_INT8);
+
+        assertArrayEquals(new float[3], decoded, 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeRejectsTruncatedBlob() {
+        EmbeddingCodec.decode(new byte[6], 2, EmbeddingCodec.DTYPE_FLOAT32);
+    }
+}
@@ -0,0 +1,189 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Enrollment publishing copy-on-write snapshots while several threads recognize against whatever version is current.
+public class EmbeddingGalleryConcurrencyTest {
+
+    private static final int DIMENSION = 16;
+    private static final int ENROLLMENTS = 3000;
+    private static final int READERS = 3;
+
+    @Test
+    public void copyLeavesPublishedGalleryUntouched() {
+        EmbeddingGallery published = new EmbeddingGallery(2);
+        published.put("alice", new float[][]{{1f, 0f}});
+        published.put("bob", new float[][]{{0f, 1f}});
+        published.setSourceVersion(1);
+
+        EmbeddingGallery next = published.copy();
+        next.remove("alice");
+        next.put("bob", new float[][]{{-1f, 0f}});
+        next.put("carol", new float[][]{{1f, 1f}});
+        next.setSourceVersion(2);
+
+        assertEquals(2, published.size());
+        assertEquals(1, published.getSourceVersion());
+        assertEquals(0f, published.findNearest(EmbeddingGallery.normalize(new float[]{0f, 1f}), 8).getSquaredDistance(), 1e-6f);
+        assertNotNull(published.getCentroid("alice"));
+        assertNull(published.getCentroid("carol"));
+
+        assertEquals(2, next.size());
+        assertNull(next.getCentroid("alice"));
+        assertEquals("bob", next.findNearest(EmbeddingGallery.normalize(new float[]{-1f, 0f}), 8).getName());
+    }
+
+    // Changes to a copy that span several chunks, including a removal that moves a row from the last chunk into the
+    // first, must not reach the version it was copied from.
+    @Test
+    public void copiesSpanningChunksStayIndependent() {
+        Random random = new Random(37);
+        float[][] vectors = new float[2500][];
+        EmbeddingGallery published = new EmbeddingGallery(DIMENSION);
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+            published.put("face" + i, new float[][]{vectors[i]});
+        }
+        float[] replacement = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+
+        EmbeddingGallery next = published.copy();
+        next.remove("face3");
+        next.put("face1500", new float[][]{replacement});
+        next.put("new", new float[][]{vectors[3]});
+
+        assertEquals(vectors.length, published.size());
+        for (int i = 0; i < vectors.length; i++) {
+            assertEquals("face" + i, published.getName(i));
+            assertEquals("face" + i, published.findNearest(vectors[i], 8).getName());
+        }
+        assertNull(published.getCentroid("new"));
+
+        assertEquals(vectors.length, next.size());
+        assertNull(next.getCentroid("face3"));
+        assertEquals("face2499", next.getName(3));
+        assertEquals("face2499", next.findNearest(vectors[2499], 8).getName());
+        assertEquals("face1500", next.findNearest(replacement, 8).getName());
+        assertEquals("new", next.findNearest(vectors[3], 8).getName());
+    }
+
+    // Enrolling one face into a copy of a large gallery copies one chunk and one name shard, not the gallery.
+    @Test
+    public void copyAndEnrollCostLessThanTheGallery() {
+        Random random = new Random(41);
+        int dimension = 128;
+        EmbeddingGallery published = new EmbeddingGallery(dimension);
+        for (int i = 0; i < 50000; i++) {
+            published.put("face" + i, new float[][]{EmbeddingGalleryTest.randomVector(random, dimension, 1f)});
+        }
+        float[][] template = {EmbeddingGalleryTest.randomVector(random, dimension, 1f)};
+        long centroidBytes = 50000L * dimension * 4;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        EmbeddingGallery next = published.copy();
+        next.put("new", template);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("allocated " + allocated + " bytes", allocated < centroidBytes / 10);
+        assertEquals(50001, next.size());
+        assertEquals(50000, published.size());
+    }
+
+    @Test
+    public void readersNeverSeeTornOrLostIdentities() throws InterruptedException {
+        final Random random = new Random(31);
+        final float[][] vectors = new float[ENROLLMENTS][];
+        for (int i = 0; i < ENROLLMENTS; i++) {
+            vectors[i] = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+        }
+        // Version v holds faces 0..v-1 minus every seventh one, which is removed again two versions later.
+        final int[] expectedSize = new int[ENROLLMENTS + 1];
+        for (int v = 1; v <= ENROLLMENTS; v++) {
+            expectedSize[v] = expectedSize[v - 1] + 1 - (v - 3 >= 0 && (v - 3) % 7 == 0 ? 1 : 0);
+        }
+
+        final EmbeddingGallery empty = new EmbeddingGallery(DIMENSION);
+        empty.setSourceVersion(0);
+        final AtomicReference<EmbeddingGallery> published = new AtomicReference<>(empty);
+        final AtomicBoolean done = new AtomicBoolean();
+        final List<Throwable> failures = new CopyOnWriteArrayList<>();
+
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < ENROLLMENTS; i++) {
+                    EmbeddingGallery next = published.get().copy();
+                    next.put("face" + i, new float[][]{vectors[i], vectors[i]});
+                    if (i >= 2 && (i - 2) % 7 == 0) {
+                        next.remove("face" + (i - 2));
+                    }
+                    next.setSourceVersion(i + 1);
+                    published.set(next);
+                }
+            } catch (Throwable t) {
+                failures.add(t);
+            } finally {
+                done.set(true);
+            }
+        });
+
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            final Random readerRandom = new Random(r);
+            readers.add(new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        EmbeddingGallery gallery = published.get();
+                        int version = (int) gallery.getSourceVersion();
+                        assertEquals("size at version " + version, expectedSize[version], gallery.size());
+                        if (version == 0) {
+                            continue;
+                        }
+                        int face = readerRandom.nextInt(version);
+                        boolean removed = face % 7 == 0 && face + 2 < version;
+                        List<List<EmbeddingGallery.Match>> matches = gallery.searchBatch(
+                                new float[][]{vectors[face], vectors[version - 1]}, 1, 8, 1e-4f);
+                        assertEquals("face" + (version - 1), matches.get(1).get(0).getName());
+                        if (removed) {
+                            assertTrue(matches.get(0).isEmpty() || !matches.get(0).get(0).getName().equals("face" + face));
+                        } else {
+                            assertEquals("face" + face, matches.get(0).get(0).getName());
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }));
+        }
+
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.start();
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertTrue("Failures: " + failures, failures.isEmpty());
+        EmbeddingGallery last = published.get();
+        assertEquals(expectedSize[ENROLLMENTS], last.size());
+        for (int i = 0; i < ENROLLMENTS; i++) {
+            boolean removed = i % 7 == 0 && i + 2 < ENROLLMENTS;
+            assertEquals("face" + i, !removed, last.getCentroid("face" + i) != null);
+        }
+    }
+}
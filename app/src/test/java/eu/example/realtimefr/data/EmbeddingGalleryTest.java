@@ -0,0 +1,324 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import eu.example.realtimefr.viewmodel.FaceRecognizer;
+
+public class EmbeddingGalleryTest {
+
+    private File file;
+
+    @After
+    public void tearDown() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    private static float[] unit(float... values) {
+        return EmbeddingGallery.normalize(values);
+    }
+
+    @Test
+    public void removeMovesLastIdentityIntoFreedSlot() {
+        EmbeddingGallery gallery = new EmbeddingGallery(2, 1);
+        gallery.put("alice", new float[][]{{-1f, 0f}});
+        gallery.put("bob", new float[][]{{1f, 0f}});
+        gallery.put("carol", new float[][]{{0f, 1f}, {1f, 3f}});
+
+        assertTrue(gallery.remove("alice"));
+        assertFalse(gallery.remove("alice"));
+
+        assertEquals(2, gallery.size());
+        assertEquals("carol", gallery.getName(0));
+        assertEquals(2, gallery.getTemplateCount(0));
+        assertEquals("carol", gallery.findNearest(unit(0.1f, 1f), 8).getName());
+        assertEquals("bob", gallery.findNearest(unit(1f, 0.1f), 8).getName());
+    }
+
+    @Test
+    public void putReplacesTemplatesOfExistingName() {
+        EmbeddingGallery gallery = new EmbeddingGallery(2);
+        gallery.put("alice", new float[][]{{1f, 0f}});
+        gallery.put("alice", new float[][]{{0f, 5f}});
+
+        EmbeddingGallery.Match match = gallery.findNearest(unit(0f, 1f), 8);
+
+        assertEquals(1, gallery.size());
+        assertEquals("alice", match.getName());
+        assertEquals(0f, match.getSquaredDistance(), 1e-6f);
+    }
+
+    @Test
+    public void distanceIsEuclideanBetweenUnitVectors() {
+        EmbeddingGallery gallery = new EmbeddingGallery(2);
+        gallery.put("alice", new float[][]{{3f, 0f}});
+
+        assertEquals(2f, gallery.findNearest(unit(0f, 1f), 8).getSquaredDistance(), 1e-6f);
+        assertEquals(4f, gallery.findNearest(unit(-1f, 0f), 8).getSquaredDistance(), 1e-6f);
+    }
+
+    @Test
+    public void emptyGalleryHasNoMatch() {
+        EmbeddingGallery gallery = new EmbeddingGallery(0);
+
+        assertNull(gallery.findNearest(new float[3], 8));
+
+        gallery.put("alice", new float[][]{{1f, 2f, 3f}});
+        assertEquals(3, gallery.getDimension());
+    }
+
+    @Test
+    public void nanQueryHasNoMatch() {
+        EmbeddingGallery gallery = new EmbeddingGallery(2);
+        gallery.put("alice", new float[][]{{1f, 0f}});
+        gallery.put("bob", new float[][]{{0f, 1f}});
+        EmbeddingGallery.Nearest nearest = new EmbeddingGallery.Nearest();
+
+        gallery.findNearest(new float[][]{{Float.NaN, 0f}, {0f, 1f}}, 2, 8, nearest);
+
+        assertNull(nearest.getName(0));
+        assertEquals(Float.MAX_VALUE, nearest.getSquaredDistance(0), 0f);
+        assertEquals("bob", nearest.getName(1));
+        assertTrue(gallery.search(new float[]{Float.NaN, 0f}, 1, 8, Float.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void loadNormalizesLiveIdentitiesFromGalleryFile() throws IOException {
+        file = File.createTempFile("gallery", ".bin");
+        Map<String, FaceRecognizer.RecognitionData> faces = new LinkedHashMap<>();
+        faces.put("alice", new FaceRecognizer.RecognitionData("alice", new float[][]{{2f, 0f}, {0f, 2f}}));
+        faces.put("bob", new FaceRecognizer.RecognitionData("bob", new float[][]{{-4f, -4f}}));
+        FlatGalleryFile.write(file, faces, 3);
+        FlatGalleryFile.remove(file, "bob", 3);
+
+        EmbeddingGallery gallery = EmbeddingGallery.load(FlatGalleryFile.open(file));
+
+        assertEquals(1, gallery.size());
+        assertEquals(3, gallery.getSourceVersion());
+        assertEquals(2, gallery.getTemplateCount(0));
+        assertEquals(0f, gallery.findNearest(unit(0f, 1f), 8).getSquaredDistance(), 1e-6f);
+    }
+
+    @Test
+    public void centroidOfBlockMatchesGalleryCentroid() {
+        Random random = new Random(9);
+        float[][] templates = {randomVector(random, 8, 3f), randomVector(random, 8, 0.5f), randomVector(random, 8, 1f)};
+        EmbeddingGallery gallery = new EmbeddingGallery(8);
+        gallery.put("alice", new float[][]{templates[0].clone(), templates[1].clone(), templates[2].clone()});
+
+        float[] block = new float[4 * 8];
+        for (int t = 0; t < templates.length; t++) {
+            System.arraycopy(templates[t], 0, block, t * 8, 8);
+        }
+        float[] centroid = EmbeddingGallery.centroid(block, templates.length * 8, 8, new float[8]);
+
+        float[] expected = gallery.getCentroid(0, new float[8]);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(expected[i], centroid[i], 1e-6f);
+        }
+    }
+
+    @Test
+    public void searchRanksCandidatesWithinCutoff() {
+        EmbeddingGallery gallery = new EmbeddingGallery(2);
+        gallery.put("east", new float[][]{{1f, 0f}});
+        gallery.put("north", new float[][]{{0f, 1f}});
+        gallery.put("west", new float[][]{{-1f, 0f}});
+        gallery.put("northeast", new float[][]{{1f, 1f}});
+
+        List<EmbeddingGallery.Match> matches = gallery.search(unit(1f, 0.2f), 3, 1, Float.MAX_VALUE);
+
+        assertEquals(3, matches.size());
+        assertEquals("east", matches.get(0).getName());
+        assertEquals("northeast", matches.get(1).getName());
+        assertEquals("north", matches.get(2).getName());
+        assertTrue(matches.get(0).getSquaredDistance() <= matches.get(1).getSquaredDistance());
+
+        // Squared distance 2 is a right angle: north is cut off, west was never close.
+        List<EmbeddingGallery.Match> close = gallery.search(unit(1f, 0.2f), 3, 8, 1.5f);
+        assertEquals(2, close.size());
+        assertTrue(gallery.search(unit(1f, 0f), 0, 8, 4f).isEmpty());
+    }
+
+    @Test
+    public void parallelScanMatchesSequentialScan() {
+        Random random = new Random(17);
+        EmbeddingGallery gallery = new EmbeddingGallery(32);
+        for (int i = 0; i < 20000; i++) {
+            gallery.put("face" + i, new float[][]{randomVector(random, 32, 1f)});
+        }
+
+        for (int q = 0; q < 20; q++) {
+            float[] query = unit(randomVector(random, 32, 1f));
+            gallery.setParallelThreshold(Integer.MAX_VALUE);
+            List<EmbeddingGallery.Match> sequential = gallery.search(query, 5, 8, Float.MAX_VALUE);
+            gallery.setParallelThreshold(0);
+            List<EmbeddingGallery.Match> parallel = gallery.search(query, 5, 8, Float.MAX_VALUE);
+
+            assertEquals(sequential.size(), parallel.size());
+            for (int i = 0; i < sequential.size(); i++) {
+                assertEquals(sequential.get(i).getName(), parallel.get(i).getName());
+                assertEquals(sequential.get(i).getSquaredDistance(), parallel.get(i).getSquaredDistance(), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void searchBatchMatchesOneSearchPerQuery() {
+        Random random = new Random(23);
+        EmbeddingGallery gallery = new EmbeddingGallery(32);
+        for (int i = 0; i < 5000; i++) {
+            gallery.put("face" + i, new float[][]{randomVector(random, 32, 1f), randomVector(random, 32, 1f)});
+        }
+        float[][] queries = new float[12][];
+        for (int q = 0; q < queries.length; q++) {
+            queries[q] = unit(randomVector(random, 32, 1f));
+        }
+
+        for (int threshold : new int[]{Integer.MAX_VALUE, 0}) {
+            gallery.setParallelThreshold(threshold);
+            List<List<EmbeddingGallery.Match>> batch = gallery.searchBatch(queries, 3, 8, 1.8f);
+            assertEquals(queries.length, batch.size());
+            for (int q = 0; q < queries.length; q++) {
+                List<EmbeddingGallery.Match> single = gallery.search(queries[q], 3, 8, 1.8f);
+                assertEquals(single.size(), batch.get(q).size());
+                for (int i = 0; i < single.size(); i++) {
+                    assertEquals(single.get(i).getName(), batch.get(q).get(i).getName());
+                    assertEquals(single.get(i).getSquaredDistance(), batch.get(q).get(i).getSquaredDistance(), 0f);
+                }
+            }
+        }
+        assertTrue(new EmbeddingGallery(32).searchBatch(queries, 3, 8, 4f).get(11).isEmpty());
+    }
+
+    @Test
+    public void reusableNearestMatchesTopOfSearch() {
+        Random random = new Random(29);
+        EmbeddingGallery gallery = new EmbeddingGallery(32);
+        for (int i = 0; i < 5000; i++) {
+            gallery.put("face" + i, new float[][]{randomVector(random, 32, 1f), randomVector(random, 32, 1f)});
+        }
+        float[][] queries = new float[9][];
+        for (int q = 0; q < queries.length; q++) {
+            queries[q] = unit(randomVector(random, 32, 1f));
+        }
+        EmbeddingGallery.Nearest nearest = new EmbeddingGallery.Nearest();
+
+        for (int threshold : new int[]{Integer.MAX_VALUE, 0}) {
+            gallery.setParallelThreshold(threshold);
+            for (int count : new int[]{queries.length, 3, 1}) {
+                gallery.findNearest(queries, count, 8, nearest);
+                for (int q = 0; q < count; q++) {
+                    EmbeddingGallery.Match top = gallery.search(queries[q], 1, 8, Float.MAX_VALUE).get(0);
+                    assertEquals(top.getName(), nearest.getName(q));
+                    assertEquals(top.getSquaredDistance(), nearest.getSquaredDistance(q), 0f);
+                }
+            }
+        }
+        new EmbeddingGallery(32).findNearest(queries, 2, 8, nearest);
+        assertNull(nearest.getName(1));
+        assertEquals(Float.MAX_VALUE, nearest.getSquaredDistance(1), 0f);
+    }
+
+    // Matching the faces of a frame against a gallery below the parallel threshold must not allocate once warm.
+    @Test
+    public void reusableNearestAllocatesNothing() {
+        Random random = new Random(31);
+        EmbeddingGallery gallery = new EmbeddingGallery(128);
+        for (int i = 0; i < 2000; i++) {
+            gallery.put("face" + i, new float[][]{randomVector(random, 128, 1f), randomVector(random, 128, 1f)});
+        }
+        float[][] queries = new float[5][];
+        for (int q = 0; q < queries.length; q++) {
+            queries[q] = unit(randomVector(random, 128, 1f));
+        }
+        EmbeddingGallery.Nearest nearest = new EmbeddingGallery.Nearest();
+        for (int i = 0; i < 2000; i++) {
+            gallery.findNearest(queries, 1 + i % queries.length, 8, nearest);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 500; i++) {
+            gallery.findNearest(queries, 1 + i % queries.length, 8, nearest);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals("bytes allocated over 500 frames", 0, allocated);
+    }
+
+    // The dot-product scan must pick the same identity as a plain Euclidean scan over the normalized templates.
+    @Test
+    public void findNearestAgreesWithExhaustiveTemplateScan() {
+        Random random = new Random(11);
+        EmbeddingGallery gallery = new EmbeddingGallery(16);
+        Map<String, float[][]> reference = new LinkedHashMap<>();
+        for (int i = 0; i < 300; i++) {
+            float[] center = randomVector(random, 16, 1f);
+            float[][] templates = new float[1 + random.nextInt(3)][];
+            for (int t = 0; t < templates.length; t++) {
+                templates[t] = center.clone();
+                for (int d = 0; d < 16; d++) {
+                    templates[t][d] += (float) random.nextGaussian() * 0.05f;
+                }
+            }
+            gallery.put("face" + i, templates);
+            float[][] normalized = new float[templates.length][];
+            for (int t = 0; t < templates.length; t++) {
+                normalized[t] = unit(templates[t].clone());
+            }
+            reference.put("face" + i, normalized);
+        }
+        for (int i = 0; i < 300; i += 3) {
+            gallery.remove("face" + i);
+            reference.remove("face" + i);
+        }
+
+        for (int q = 0; q < 200; q++) {
+            float[] query = unit(randomVector(random, 16, 1f));
+            String expected = null;
+            float expectedDistance = Float.MAX_VALUE;
+            for (Map.Entry<String, float[][]> entry : reference.entrySet()) {
+                for (float[] template : entry.getValue()) {
+                    float distance = 0;
+                    for (int d = 0; d < 16; d++) {
+                        float diff = query[d] - template[d];
+                        distance += diff * diff;
+                    }
+                    if (distance < expectedDistance) {
+                        expected = entry.getKey();
+                        expectedDistance = distance;
+                    }
+                }
+            }
+
+            EmbeddingGallery.Match match = gallery.findNearest(query, Integer.MAX_VALUE);
+            assertEquals(expected, match.getName());
+            assertEquals(expectedDistance, match.getSquaredDistance(), 1e-5f);
+        }
+    }
+
+    static float[] randomVector(Random random, int dimension, float scale) {
+        float[] vector = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            vector[i] = (float) random.nextGaussian() * scale;
+        }
+        return vector;
+    }
+}
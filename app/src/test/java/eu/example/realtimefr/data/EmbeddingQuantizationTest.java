@@ -0,0 +1,114 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+// Nearest-neighbour agreement of the quantized encodings against float32 on a synthetic gallery of unit-length
+// 512-d embeddings queried with noisy probes. The storage and error report needs -Pbenchmarks.
+public class EmbeddingQuantizationTest {
+
+    private static final int IDENTITIES = 2000;
+    private static final int QUERIES = 500;
+    private static final int DIMENSION = 512;
+    private static final float PROBE_NOISE = 0.04f;
+    private static final int[] QUANTIZED_DTYPES = {EmbeddingCodec.DTYPE_FLOAT16, EmbeddingCodec.DTYPE_INT8};
+
+    private final float[][] gallery = new float[IDENTITIES][];
+    private final float[][] queries = new float[QUERIES][DIMENSION];
+
+    public EmbeddingQuantizationTest() {
+        Random random = new Random(7);
+        for (int i = 0; i < IDENTITIES; i++) {
+            gallery[i] = randomUnitVector(random);
+        }
+        for (int q = 0; q < QUERIES; q++) {
+            float[] source = gallery[random.nextInt(IDENTITIES)];
+            for (int i = 0; i < DIMENSION; i++) {
+                queries[q][i] = source[i] + (float) random.nextGaussian() * PROBE_NOISE;
+            }
+        }
+    }
+
+    @Test
+    public void quantizedGalleriesAgreeWithFloat32() {
+        int[] reference = nearest(gallery, queries);
+        for (int dtype : QUANTIZED_DTYPES) {
+            double agreement = agreement(reference, nearest(decode(dtype), queries));
+            assertTrue("Top-1 agreement for dtype " + dtype + " was " + agreement, agreement >= 0.99);
+        }
+    }
+
+    @Test
+    public void storageAndErrorReport() {
+        Benchmarks.assumeEnabled();
+        int[] reference = nearest(gallery, queries);
+        int referenceBytes = IDENTITIES * EmbeddingCodec.encodedSize(DIMENSION, EmbeddingCodec.DTYPE_FLOAT32);
+        for (int dtype : QUANTIZED_DTYPES) {
+            float[][] decoded = decode(dtype);
+            int bytes = IDENTITIES * EmbeddingCodec.encodedSize(DIMENSION, dtype);
+            float maxError = 0;
+            for (int i = 0; i < IDENTITIES; i++) {
+                for (int d = 0; d < DIMENSION; d++) {
+                    maxError = Math.max(maxError, Math.abs(decoded[i][d] - gallery[i][d]));
+                }
+            }
+            double agreement = agreement(reference, nearest(decoded, queries));
+            System.out.printf("dtype %d: %d bytes (%.1f%% of float32), max abs error %.5f, top-1 agreement %.2f%%%n",
+                    dtype, bytes, 100.0 * bytes / referenceBytes, maxError, 100 * agreement);
+        }
+    }
+
+    private float[][] decode(int dtype) {
+        float[][] decoded = new float[IDENTITIES][];
+        for (int i = 0; i < IDENTITIES; i++) {
+            decoded[i] = EmbeddingCodec.decode(EmbeddingCodec.encode(gallery[i], dtype), DIMENSION, dtype);
+        }
+        return decoded;
+    }
+
+    private static double agreement(int[] reference, int[] matches) {
+        int agreeing = 0;
+        for (int q = 0; q < reference.length; q++) {
+            if (matches[q] == reference[q]) {
+                agreeing++;
+            }
+        }
+        return agreeing / (double) reference.length;
+    }
+
+    private static float[] randomUnitVector(Random random) {
+        float[] vector = new float[DIMENSION];
+        float norm = 0;
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) random.nextGaussian();
+            norm += vector[i] * vector[i];
+        }
+        norm = (float) Math.sqrt(norm);
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] /= norm;
+        }
+        return vector;
+    }
+
+    private static int[] nearest(float[][] gallery, float[][] queries) {
+        int[] nearest = new int[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            float best = Float.MAX_VALUE;
+            for (int i = 0; i < gallery.length; i++) {
+                float distance = 0;
+                for (int d = 0; d < DIMENSION; d++) {
+                    float diff = queries[q][d] - gallery[i][d];
+                    distance += diff * diff;
+                }
+                if (distance < best) {
+                    best = distance;
+                    nearest[q] = i;
+                }
+            }
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,214 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import eu.example.realtimefr.viewmodel.FaceRecognizer;
+
+public class FlatGalleryFileTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("gallery", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static FaceRecognizer.RecognitionData face(String name, float[]... templates) {
+        return new FaceRecognizer.RecognitionData(name, templates);
+    }
+
+    @Test
+    public void writeThenOpenMapsAllIdentities() throws IOException {
+        Map<String, FaceRecognizer.RecognitionData> faces = new LinkedHashMap<>();
+        faces.put("alice", face("alice", new float[]{1f, 2f, 3f}));
+        faces.put("bob", face("bob", new float[]{-1f, 0f, 0.5f}, new float[]{1f, 2f, 0.5f}));
+
+        FlatGalleryFile.write(file, faces, 2);
+        FlatGalleryFile gallery = FlatGalleryFile.open(file);
+
+        assertEquals(2, gallery.size());
+        assertEquals(2, gallery.getLiveCount());
+        assertEquals(5, gallery.getRowCount());
+        assertEquals(3, gallery.getDimension());
+        assertEquals(2, gallery.getSourceVersion());
+        assertEquals("alice", gallery.getName(0));
+        assertEquals("bob", gallery.getName(1));
+        assertEquals(2, gallery.getTemplateCount(1));
+        assertArrayEquals(new float[]{0f, 1f, 0.5f}, gallery.getCentroid(1, new float[3]), 0f);
+        assertArrayEquals(new float[]{1f, 2f, 0.5f}, gallery.getTemplate(1, 1, new float[3]), 0f);
+        assertEquals(4f + 4f + 6.25f, gallery.templateDistance(0, 0, new float[]{-1f, 0f, 0.5f}), 1e-6);
+    }
+
+    @Test(expected = IOException.class)
+    public void writeRejectsMixedDimensions() throws IOException {
+        Map<String, FaceRecognizer.RecognitionData> faces = new LinkedHashMap<>();
+        faces.put("alice", face("alice", new float[]{1f, 2f, 3f}));
+        faces.put("bob", face("bob", new float[]{1f, 2f}));
+
+        FlatGalleryFile.write(file, faces, 1);
+    }
+
+    @Test
+    public void upsertRetiresOldBlockAndAppendsNewOne() throws IOException {
+        FlatGalleryFile.write(file, new LinkedHashMap<>(), 0);
+
+        FlatGalleryFile.upsert(file, "alice", new float[][]{{1f, 1f}}, 1);
+        FlatGalleryFile.upsert(file, "bob", new float[][]{{2f, 2f}}, 2);
+        FlatGalleryFile.upsert(file, "alice", new float[][]{{3f, 3f}, {5f, 5f}}, 2);
+        FlatGalleryFile gallery = FlatGalleryFile.open(file);
+
+        assertEquals(3, gallery.size());
+        assertEquals(2, gallery.getLiveCount());
+        assertEquals(2, gallery.getDeadRowCount());
+        assertEquals(2, gallery.getSourceVersion());
+        assertFalse(gallery.isLive(0));
+        assertTrue(gallery.isLive(2));
+        assertEquals("alice", gallery.getName(2));
+        assertArrayEquals(new float[]{4f, 4f}, gallery.getCentroid(2, new float[2]), 0f);
+        assertArrayEquals(new float[]{5f, 5f}, gallery.getTemplate(2, 1, new float[2]), 0f);
+        assertArrayEquals(new float[]{2f, 2f}, gallery.getTemplate(1, 0, new float[2]), 0f);
+    }
+
+    @Test
+    public void removeClearsLiveFlag() throws IOException {
+        FlatGalleryFile.write(file, new LinkedHashMap<>(), 0);
+        FlatGalleryFile.upsert(file, "a", new float[][]{{1f}}, 1);
+        FlatGalleryFile.upsert(file, "b", new float[][]{{2f}}, 2);
+
+        FlatGalleryFile.remove(file, "a", 3);
+        FlatGalleryFile gallery = FlatGalleryFile.open(file);
+
+        assertEquals(1, gallery.getLiveCount());
+        assertEquals(3, gallery.getSourceVersion());
+        assertFalse(gallery.isLive(0));
+        assertTrue(gallery.isLive(1));
+    }
+
+    @Test
+    public void updateAppliesRemovalsAndUpsertsInOnePass() throws IOException {
+        Map<String, FaceRecognizer.RecognitionData> faces = new LinkedHashMap<>();
+        faces.put("alice", face("alice", new float[]{1f, 1f}));
+        faces.put("bob", face("bob", new float[]{2f, 2f}));
+        faces.put("carol", face("carol", new float[]{3f, 3f}));
+        FlatGalleryFile.write(file, faces, 1);
+
+        Map<String, FaceRecognizer.RecognitionData> updated = new LinkedHashMap<>();
+        updated.put("alice", face("alice", new float[]{4f, 4f}, new float[]{6f, 6f}));
+        updated.put("dave", face("dave", new float[]{5f, 5f}));
+        FlatGalleryFile.update(file, Arrays.asList("bob", "nobody"), updated, 5);
+        FlatGalleryFile gallery = FlatGalleryFile.open(file);
+
+        assertEquals(5, gallery.size());
+        assertEquals(3, gallery.getLiveCount());
+        assertEquals(4, gallery.getDeadRowCount());
+        assertEquals(5, gallery.getSourceVersion());
+        assertFalse(gallery.isLive(0));
+        assertFalse(gallery.isLive(1));
+        assertTrue(gallery.isLive(2));
+        assertEquals("alice", gallery.getName(3));
+        assertArrayEquals(new float[]{5f, 5f}, gallery.getCentroid(3, new float[2]), 0f);
+        assertEquals("dave", gallery.getName(4));
+        assertArrayEquals(new float[]{5f, 5f}, gallery.getTemplate(4, 0, new float[2]), 0f);
+    }
+
+    @Test
+    public void updateRejectsForeignDimensionWithoutTouchingTheFile() throws IOException {
+        Map<String, FaceRecognizer.RecognitionData> faces = new LinkedHashMap<>();
+        faces.put("alice", face("alice", new float[]{1f, 1f}));
+        FlatGalleryFile.write(file, faces, 1);
+
+        try {
+            FlatGalleryFile.update(file, Collections.<String>emptySet(),
+                    Collections.singletonMap("bob", face("bob", new float[]{1f, 2f, 3f})), 2);
+            fail("Expected a dimension mismatch");
+        } catch (IOException expected) {
+            // The check runs before anything is written.
+        }
+        FlatGalleryFile gallery = FlatGalleryFile.open(file);
+
+        assertEquals(1, gallery.getSourceVersion());
+        assertEquals(1, gallery.size());
+    }
+
+    @Test
+    public void setSourceVersionKeepsRows() throws IOException {
+        FlatGalleryFile.write(file, new LinkedHashMap<>(), 0);
+        FlatGalleryFile.upsert(file, "alice", new float[][]{{1f, 2f}}, 0);
+
+        FlatGalleryFile.setSourceVersion(file, 17);
+        FlatGalleryFile gallery = FlatGalleryFile.open(file);
+
+        assertEquals(17, gallery.getSourceVersion());
+        assertEquals("alice", gallery.getName(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void openRejectsTruncatedFile() throws IOException {
+        Map<String, FaceRecognizer.RecognitionData> faces = new LinkedHashMap<>();
+        faces.put("alice", face("alice", new float[]{1f, 2f, 3f, 4f}));
+        FlatGalleryFile.write(file, faces, 1);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(40);
+        }
+
+        FlatGalleryFile.open(file);
+    }
+
+    @Test
+    public void openMapsMatrixInSegmentsOfWholeRows() throws IOException {
+        Map<String, FaceRecognizer.RecognitionData> faces = new LinkedHashMap<>();
+        faces.put("alice", face("alice", new float[]{1f, 2f, 3f}));
+        faces.put("bob", face("bob", new float[]{-1f, 0f, 0.5f}, new float[]{1f, 2f, 0.5f}, new float[]{3f, 4f, 5f}));
+        FlatGalleryFile.write(file, faces, 1);
+
+        // Two 12-byte rows per segment: bob's block starts mid-segment and crosses into the next two.
+        FlatGalleryFile gallery = FlatGalleryFile.open(file, 28);
+
+        assertEquals(6, gallery.getRowCount());
+        assertEquals("bob", gallery.getName(1));
+        assertArrayEquals(new float[]{1f, 2f, 3f}, gallery.getTemplate(0, 0, new float[3]), 0f);
+        assertArrayEquals(new float[]{1f, 2f, 2f}, gallery.getCentroid(1, new float[3]), 0f);
+        assertArrayEquals(new float[]{3f, 4f, 5f}, gallery.getTemplate(1, 2, new float[3]), 0f);
+        assertEquals(9f + 16f + 25f, gallery.templateDistance(1, 2, new float[3]), 1e-6);
+
+        float[] templates = new float[10];
+        gallery.copyTemplates(1, templates, 1);
+        assertArrayEquals(new float[]{0f, -1f, 0f, 0.5f, 1f, 2f, 0.5f, 3f, 4f, 5f}, templates, 0f);
+    }
+
+    @Test(expected = IOException.class)
+    public void openRejectsMatrixSizeThatOverflowsAnInt() throws IOException {
+        // 2^20 rows of 1024 floats is exactly 4 GiB, which wraps to a zero-byte matrix in int arithmetic.
+        ByteBuffer header = ByteBuffer.allocate(36).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x4C414746).putInt(2).putInt(EmbeddingCodec.DTYPE_FLOAT32)
+                .putInt(1024).putInt(1 << 20).putInt(0).putLong(1).putInt(0);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(header.array());
+        }
+
+        FlatGalleryFile.open(file);
+    }
+}
@@ -0,0 +1,65 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.Iterator;
+
+import eu.example.realtimefr.viewmodel.FaceRecognizer;
+
+public class GalleryImporterTest {
+
+    @Test
+    public void readCsvStreamsOneRecordPerLine() {
+        Iterator<FaceRecognizer.RecognitionData> records = GalleryImporter.readCsv(new BufferedReader(new StringReader(
+                "alice,0.5,-1.0,2.0\n\nbob, 1.0, 1.5, -0.25\n")));
+
+        FaceRecognizer.RecognitionData alice = records.next();
+        assertEquals("alice", alice.getLabel());
+        assertArrayEquals(new float[]{0.5f, -1.0f, 2.0f}, ((float[][]) alice.getFeatureVector())[0], 0f);
+
+        FaceRecognizer.RecognitionData bob = records.next();
+        assertEquals("bob", bob.getLabel());
+        assertArrayEquals(new float[]{1.0f, 1.5f, -0.25f}, ((float[][]) bob.getFeatureVector())[0], 0f);
+
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    public void readCsvYieldsEmptyRecordForLineWithoutName() {
+        Iterator<FaceRecognizer.RecognitionData> records = GalleryImporter.readCsv(new BufferedReader(new StringReader(",1.0,2.0")));
+
+        FaceRecognizer.RecognitionData record = records.next();
+        assertNull(record.getLabel());
+        assertNull(record.getFeatureVector());
+    }
+
+    @Test
+    public void checkDimensionTakesTheFirstRecordsDimensionForAnEmptyGallery() {
+        FaceRecognizer.RecognitionData record = new FaceRecognizer.RecognitionData("alice", new float[][]{{1f, 2f, 3f}, {4f, 5f, 6f}});
+
+        assertEquals(3, GalleryImporter.checkDimension(1, record, 0));
+        assertEquals(3, GalleryImporter.checkDimension(1, record, 3));
+    }
+
+    @Test
+    public void checkDimensionRejectsRecordThatDoesNotMatchTheGallery() {
+        FaceRecognizer.RecognitionData record = new FaceRecognizer.RecognitionData("bob", new float[][]{{1f, 2f, 3f}, {4f, 5f}});
+
+        try {
+            GalleryImporter.checkDimension(7, record, 3);
+            fail("Expected a dimension mismatch");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Record 7 (bob)"));
+            assertTrue(e.getMessage(), e.getMessage().contains("dimension 2"));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import eu.example.realtimefr.viewmodel.FaceRecognizer;
+
+// Times a single-template nearest-neighbour query against the previous HashMap<String, RecognitionData> scan and
+// against EmbeddingGallery's dot-product scan at 1k, 10k and 100k unit-length identities. Embeddings are 128-d so
+// the 100k case fits the default unit-test heap with both copies alive; scan cost grows linearly with the dimension.
+// Only the agreement check runs by default; the timings need -Pbenchmarks.
+public class GalleryScanBenchmarkTest {
+
+    private static final int DIMENSION = 128;
+    private static final int[] GALLERY_SIZES = {1_000, 10_000, 100_000};
+    private static final long MIN_MEASURE_NANOS = 200_000_000L;
+
+    @Test
+    public void contiguousScanFindsTheMapScanMatch() {
+        Random random = new Random(3);
+        Map<String, FaceRecognizer.RecognitionData> map = new HashMap<>();
+        EmbeddingGallery gallery = new EmbeddingGallery(DIMENSION, 5_000);
+        fill(random, 5_000, map, gallery);
+        for (int q = 0; q < 64; q++) {
+            float[] query = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+            assertEquals(mapScan(map, query), gallery.findNearest(query, 1).getName());
+        }
+    }
+
+    @Test
+    public void contiguousScanAgainstMapScan() {
+        Benchmarks.assumeEnabled();
+        for (int identities : GALLERY_SIZES) {
+            Random random = new Random(identities);
+            Map<String, FaceRecognizer.RecognitionData> map = new HashMap<>();
+            EmbeddingGallery gallery = new EmbeddingGallery(DIMENSION, identities);
+            fill(random, identities, map, gallery);
+            float[][] queries = new float[64][];
+            for (int q = 0; q < queries.length; q++) {
+                queries[q] = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+            }
+
+            for (float[] query : queries) {
+                assertEquals(mapScan(map, query), gallery.findNearest(query, 1).getName());
+            }
+            double mapNanos = measure(() -> {
+                for (float[] query : queries) {
+                    mapScan(map, query);
+                }
+            }) / queries.length;
+            double galleryNanos = measure(() -> {
+                for (float[] query : queries) {
+                    gallery.findNearest(query, 1);
+                }
+            }) / queries.length;
+
+            System.out.printf("%,d identities: map scan %.1f us/query, contiguous scan %.1f us/query (%.1fx)%n",
+                    identities, mapNanos / 1e3, galleryNanos / 1e3, mapNanos / galleryNanos);
+        }
+    }
+
+    // Sequential against fork-join centroid scan with a top-8 shortlist; the crossover sets the default
+    // EmbeddingGallery parallel threshold.
+    @Test
+    public void parallelScanCrossover() {
+        Benchmarks.assumeEnabled();
+        Random random = new Random(5);
+        EmbeddingGallery gallery = new EmbeddingGallery(DIMENSION, 100_000);
+        float[][] queries = new float[16][];
+        for (int q = 0; q < queries.length; q++) {
+            queries[q] = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+        }
+        System.out.printf("fork-join scan on %d workers%n", ForkJoinPool.getCommonPoolParallelism());
+        for (int identities : new int[]{2_500, 5_000, 10_000, 20_000, 50_000, 100_000}) {
+            while (gallery.size() < identities) {
+                gallery.put("face" + gallery.size(),
+                        new float[][]{EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f)});
+            }
+
+            gallery.setParallelThreshold(Integer.MAX_VALUE);
+            double sequentialNanos = measure(() -> {
+                for (float[] query : queries) {
+                    gallery.search(query, 1, 8, Float.MAX_VALUE);
+                }
+            }) / queries.length;
+            gallery.setParallelThreshold(0);
+            double parallelNanos = measure(() -> {
+                for (float[] query : queries) {
+                    gallery.search(query, 1, 8, Float.MAX_VALUE);
+                }
+            }) / queries.length;
+
+            System.out.printf("%,d identities: sequential %.1f us/query, fork-join %.1f us/query (%.2fx)%n",
+                    identities, sequentialNanos / 1e3, parallelNanos / 1e3, sequentialNanos / parallelNanos);
+        }
+    }
+
+    // A crowded frame: one search per face against one blocked batch scan over 512-d centroids.
+    @Test
+    public void batchedFrameSearch() {
+        Benchmarks.assumeEnabled();
+        final int dimension = 512;
+        Random random = new Random(8);
+        EmbeddingGallery gallery = new EmbeddingGallery(dimension, 20_000);
+        gallery.setParallelThreshold(Integer.MAX_VALUE);
+        for (int i = 0; i < 20_000; i++) {
+            gallery.put("face" + i, new float[][]{EmbeddingGalleryTest.randomVector(random, dimension, 1f)});
+        }
+        for (int faces : new int[]{1, 4, 10, 20}) {
+            float[][] queries = new float[faces][];
+            for (int q = 0; q < faces; q++) {
+                queries[q] = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, dimension, 1f));
+            }
+            double separateNanos = measure(() -> {
+                for (float[] query : queries) {
+                    gallery.search(query, 1, 8, Float.MAX_VALUE);
+                }
+            });
+            double batchNanos = measure(() -> gallery.searchBatch(queries, 1, 8, Float.MAX_VALUE));
+
+            System.out.printf("20,000 identities, %d faces per frame: separate %.2f ms, batch %.2f ms (%.2fx)%n",
+                    faces, separateNanos / 1e6, batchNanos / 1e6, separateNanos / batchNanos);
+        }
+    }
+
+    // The same single-template identities in both the map and the gallery.
+    private static void fill(Random random, int identities, Map<String, FaceRecognizer.RecognitionData> map,
+                             EmbeddingGallery gallery) {
+        for (int i = 0; i < identities; i++) {
+            float[][] templates = {EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f))};
+            map.put("face" + i, new FaceRecognizer.RecognitionData("face" + i, templates));
+            gallery.put("face" + i, templates);
+        }
+    }
+
+    // The matcher as it was before EmbeddingGallery: map order, first template, Euclidean distance per entry.
+    private static String mapScan(Map<String, FaceRecognizer.RecognitionData> knownFaces, float[] embedding) {
+        String bestName = null;
+        float bestDistance = Float.MAX_VALUE;
+        for (Map.Entry<String, FaceRecognizer.RecognitionData> entry : knownFaces.entrySet()) {
+            final float[] storedEmbedding = ((float[][]) entry.getValue().getFeatureVector())[0];
+            float distance = 0;
+            for (int i = 0; i < embedding.length; i++) {
+                float diff = embedding[i] - storedEmbedding[i];
+                distance += diff * diff;
+            }
+            distance = (float) Math.sqrt(distance);
+            if (bestName == null || distance < bestDistance) {
+                bestName = entry.getKey();
+                bestDistance = distance;
+            }
+        }
+        return bestName;
+    }
+
+    // Warms up, then repeats the run until MIN_MEASURE_NANOS have passed; returns nanoseconds per run.
+    private static double measure(Runnable run) {
+        for (int i = 0; i < 3; i++) {
+            run.run();
+        }
+        int runs = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            run.run();
+            runs++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MIN_MEASURE_NANOS);
+        return elapsed / (double) runs;
+    }
+}
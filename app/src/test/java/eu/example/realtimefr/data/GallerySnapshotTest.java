@@ -0,0 +1,118 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class GallerySnapshotTest {
+
+    private static GallerySnapshot.Template template(int dtype, float... values) {
+        return new GallerySnapshot.Template(dtype, values.length, EmbeddingCodec.encode(values, dtype));
+    }
+
+    private static byte[] write(List<GallerySnapshot.Record> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GallerySnapshot.Writer writer = new GallerySnapshot.Writer(bytes)) {
+            for (GallerySnapshot.Record record : records) {
+                writer.write(record);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<GallerySnapshot.Record> read(byte[] snapshot) throws IOException {
+        List<GallerySnapshot.Record> records = new ArrayList<>();
+        try (GallerySnapshot.Reader reader = new GallerySnapshot.Reader(new ByteArrayInputStream(snapshot))) {
+            GallerySnapshot.Record record;
+            while ((record = reader.next()) != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    @Test
+    public void roundTripKeepsEmbeddingBytes() throws IOException {
+        GallerySnapshot.Record alice = new GallerySnapshot.Record("Alice", Arrays.asList(
+                template(EmbeddingCodec.DTYPE_FLOAT32, 0.1f, 0.2f, 0.3f),
+                template(EmbeddingCodec.DTYPE_FLOAT16, 0.4f, 0.5f, 0.6f)));
+        GallerySnapshot.Record zoe = new GallerySnapshot.Record("Zo\u00eb", Collections.singletonList(
+                template(EmbeddingCodec.DTYPE_INT8, -1f, 0f, 1f)));
+
+        List<GallerySnapshot.Record> records = read(write(Arrays.asList(alice, zoe)));
+
+        assertEquals(2, records.size());
+        assertEquals("Alice", records.get(0).getName());
+        assertEquals(2, records.get(0).getTemplates().size());
+        assertEquals(EmbeddingCodec.DTYPE_FLOAT16, records.get(0).getTemplates().get(1).getDtype());
+        assertArrayEquals(alice.getTemplates().get(1).getEmbedding(), records.get(0).getTemplates().get(1).getEmbedding());
+        assertEquals("Zo\u00eb", records.get(1).getName());
+        assertEquals(3, records.get(1).getTemplates().get(0).getDimension());
+        assertArrayEquals(zoe.getTemplates().get(0).getEmbedding(), records.get(1).getTemplates().get(0).getEmbedding());
+    }
+
+    @Test
+    public void largeGallerySpansSeveralBlocks() throws IOException {
+        List<GallerySnapshot.Record> records = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            records.add(new GallerySnapshot.Record("face" + i, Collections.singletonList(
+                    template(EmbeddingCodec.DTYPE_FLOAT32, new float[512]))));
+        }
+
+        List<GallerySnapshot.Record> restored = read(write(records));
+
+        assertEquals(500, restored.size());
+        assertEquals("face499", restored.get(499).getName());
+    }
+
+    @Test
+    public void emptyGalleryRoundTrips() throws IOException {
+        GallerySnapshot.Reader reader = new GallerySnapshot.Reader(new ByteArrayInputStream(write(new ArrayList<>())));
+
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void corruptedBlockIsRejected() throws IOException {
+        byte[] snapshot = write(Collections.singletonList(new GallerySnapshot.Record("Alice", Collections.singletonList(
+                template(EmbeddingCodec.DTYPE_FLOAT32, 0.1f, 0.2f)))));
+        snapshot[20] ^= 0x01;
+
+        try {
+            read(snapshot);
+            fail("Expected a checksum mismatch");
+        } catch (IOException e) {
+            assertEquals("Gallery snapshot block checksum mismatch after 0 records", e.getMessage());
+        }
+    }
+
+    @Test
+    public void truncatedCopyIsRejected() throws IOException {
+        List<GallerySnapshot.Record> records = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            records.add(new GallerySnapshot.Record("face" + i, Collections.singletonList(
+                    template(EmbeddingCodec.DTYPE_FLOAT32, new float[512]))));
+        }
+        byte[] snapshot = write(records);
+
+        // Cut exactly before the end block so that every remaining block is still intact.
+        int endBlockSize = 4 + 4 + 8 + 4;
+        try {
+            read(Arrays.copyOf(snapshot, snapshot.length - endBlockSize));
+            fail("Expected a truncated snapshot");
+        } catch (IOException e) {
+            assertEquals("Gallery snapshot is truncated", e.getMessage());
+        }
+    }
+}
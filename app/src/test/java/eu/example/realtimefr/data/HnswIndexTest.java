@@ -0,0 +1,226 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class HnswIndexTest {
+
+    private static final int DIMENSION = 32;
+
+    private File file;
+
+    @After
+    public void tearDown() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    private static float[][] randomGallery(Random random, int size) {
+        float[][] vectors = new float[size][];
+        for (int i = 0; i < size; i++) {
+            vectors[i] = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+        }
+        return vectors;
+    }
+
+    private static HnswIndex index(float[][] vectors) {
+        HnswIndex index = new HnswIndex(DIMENSION, 16, 100, 64);
+        for (int i = 0; i < vectors.length; i++) {
+            index.put("face" + i, vectors[i]);
+        }
+        return index;
+    }
+
+    private static int exactNearest(float[][] vectors, float[] query, String skipped) {
+        int best = -1;
+        float bestScore = -Float.MAX_VALUE;
+        for (int i = 0; i < vectors.length; i++) {
+            if (("face" + i).equals(skipped)) {
+                continue;
+            }
+            float score = 0;
+            for (int d = 0; d < DIMENSION; d++) {
+                score += query[d] * vectors[i][d];
+            }
+            if (score > bestScore) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    @Test
+    public void findsExactVectorsAndNearNeighbours() {
+        Random random = new Random(1);
+        float[][] vectors = randomGallery(random, 2000);
+        HnswIndex index = index(vectors);
+
+        int agreeing = 0;
+        for (int q = 0; q < 200; q++) {
+            float[] query = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+            List<String> found = index.search(query, 1);
+            if (found.get(0).equals("face" + exactNearest(vectors, query, null))) {
+                agreeing++;
+            }
+        }
+        assertTrue("recall@1 was " + agreeing / 200.0, agreeing >= 190);
+        assertEquals("face17", index.search(vectors[17], 1).get(0));
+    }
+
+    @Test
+    public void removedAndReplacedLabelsAreNotReturned() {
+        Random random = new Random(2);
+        float[][] vectors = randomGallery(random, 500);
+        HnswIndex index = index(vectors);
+
+        assertTrue(index.remove("face3"));
+        assertFalse(index.remove("face3"));
+        index.put("face4", vectors[5]);
+
+        assertEquals(499, index.size());
+        assertEquals(2, index.getDeletedCount());
+        assertEquals("face" + exactNearest(vectors, vectors[3], "face3"), index.search(vectors[3], 1).get(0));
+        List<String> nearFive = index.search(vectors[5], 2);
+        assertTrue(nearFive.contains("face4") && nearFive.contains("face5"));
+        assertFalse(index.search(vectors[4], 10).contains("face3"));
+    }
+
+    @Test
+    public void matchRanksByDistanceToTheIndexedVectors() {
+        Random random = new Random(6);
+        float[][] vectors = randomGallery(random, 500);
+        HnswIndex index = index(vectors);
+        float[] query = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+
+        List<EmbeddingGallery.Match> matches = index.match(query, 5, 4f);
+        assertEquals(index.search(query, 5).size(), matches.size());
+        for (int rank = 0; rank < matches.size(); rank++) {
+            EmbeddingGallery.Match match = matches.get(rank);
+            assertEquals(index.search(query, 5).get(rank), match.getName());
+            float[] vector = vectors[Integer.parseInt(match.getName().substring(4))];
+            float expected = 0;
+            for (int d = 0; d < DIMENSION; d++) {
+                expected += (query[d] - vector[d]) * (query[d] - vector[d]);
+            }
+            assertEquals(expected, match.getSquaredDistance(), 1e-5f);
+        }
+
+        float cutoff = (matches.get(1).getSquaredDistance() + matches.get(2).getSquaredDistance()) / 2;
+        assertEquals(2, index.match(query, 5, cutoff).size());
+    }
+
+    // Searches hold the read lock together; each thread keeps its own visit marks.
+    @Test
+    public void concurrentSearchesMatchSequentialResults() throws Exception {
+        Random random = new Random(7);
+        HnswIndex index = index(randomGallery(random, 2000));
+        float[][] queries = randomGallery(random, 200);
+        List<List<String>> expected = new ArrayList<>();
+        for (float[] query : queries) {
+            expected.add(index.search(query, 5));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> runs = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                runs.add(pool.submit(() -> {
+                    for (int repeat = 0; repeat < 5; repeat++) {
+                        for (int q = 0; q < queries.length; q++) {
+                            if (!expected.get(q).equals(index.search(queries[q], 5))) {
+                                return false;
+                            }
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> run : runs) {
+                assertTrue(run.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void saveThenLoadKeepsGraph() throws IOException {
+        Random random = new Random(3);
+        float[][] vectors = randomGallery(random, 1000);
+        HnswIndex index = index(vectors);
+        index.remove("face9");
+        index.setSourceVersion(12);
+        file = File.createTempFile("faces", ".hnsw");
+
+        index.save(file);
+        HnswIndex loaded = HnswIndex.load(file);
+
+        assertEquals(12, loaded.getSourceVersion());
+        assertEquals(index.size(), loaded.size());
+        assertEquals(1, loaded.getDeletedCount());
+        assertFalse(loaded.contains("face9"));
+        for (int q = 0; q < 50; q++) {
+            float[] query = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+            assertEquals(index.search(query, 5), loaded.search(query, 5));
+        }
+        loaded.put("new", vectors[9]);
+        assertEquals("new", loaded.search(vectors[9], 1).get(0));
+    }
+
+    // Saves take a snapshot and write it outside the lock, so inserts can continue while the file is written.
+    @Test
+    public void savesWhileInsertingAreConsistent() throws Exception {
+        Random random = new Random(5);
+        float[][] vectors = randomGallery(random, 3000);
+        HnswIndex index = index(Arrays.copyOf(vectors, 1000));
+        file = File.createTempFile("faces", ".hnsw");
+
+        Thread writer = new Thread(() -> {
+            for (int i = 1000; i < vectors.length; i++) {
+                index.put("face" + i, vectors[i]);
+            }
+        });
+        writer.start();
+        int saved = 0;
+        while (writer.isAlive() || saved == 0) {
+            index.save(file);
+            HnswIndex loaded = HnswIndex.load(file);
+            assertTrue(loaded.size() >= 1000 && loaded.size() <= vectors.length);
+            assertEquals(1, loaded.search(vectors[0], 1).size());
+            saved++;
+        }
+        writer.join();
+
+        index.save(file);
+        assertEquals(vectors.length, HnswIndex.load(file).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void loadRejectsTruncatedFile() throws IOException {
+        HnswIndex index = index(randomGallery(new Random(4), 100));
+        file = File.createTempFile("faces", ".hnsw");
+        index.save(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+
+        HnswIndex.load(file);
+    }
+}
@@ -0,0 +1,101 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+// Reports recall@1 against the exact EmbeddingGallery scan and mean query latency of HnswIndex for several efSearch
+// values, on 20k unit-length 128-d identities probed with noisy copies of enrolled vectors. Larger galleries only
+// need a bigger IDENTITIES and heap; the index build dominates the run time. The report needs -Pbenchmarks; the
+// default run only checks recall at the default beam on a smaller gallery.
+public class HnswRecallBenchmarkTest {
+
+    private static final int IDENTITIES = 20_000;
+    private static final int CHECKED_IDENTITIES = 5_000;
+    private static final int QUERIES = 500;
+    private static final int DIMENSION = 128;
+    private static final float PROBE_NOISE = 0.05f;
+    private static final int[] EF_SEARCH = {16, 32, 64, 128};
+
+    @Test
+    public void recallAtDefaultBeam() {
+        Random random = new Random(9);
+        EmbeddingGallery gallery = new EmbeddingGallery(DIMENSION, CHECKED_IDENTITIES);
+        HnswIndex index = new HnswIndex(DIMENSION, 16, 100, 64);
+        float[][] vectors = new float[CHECKED_IDENTITIES][];
+        for (int i = 0; i < CHECKED_IDENTITIES; i++) {
+            vectors[i] = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+            gallery.put("face" + i, new float[][]{vectors[i]});
+            index.put("face" + i, vectors[i]);
+        }
+
+        int hits = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            float[] query = probe(random, vectors);
+            if (index.search(query, 1).get(0).equals(gallery.findNearest(query, 1).getName())) {
+                hits++;
+            }
+        }
+        assertTrue("recall@1 was " + hits / (double) QUERIES, hits >= 0.95 * QUERIES);
+    }
+
+    @Test
+    public void recallAgainstExactScan() {
+        Benchmarks.assumeEnabled();
+        Random random = new Random(9);
+        EmbeddingGallery gallery = new EmbeddingGallery(DIMENSION, IDENTITIES);
+        gallery.setParallelThreshold(Integer.MAX_VALUE);
+        HnswIndex index = new HnswIndex(DIMENSION, 16, 100, 64);
+        float[][] vectors = new float[IDENTITIES][];
+        long buildNanos = 0;
+        for (int i = 0; i < IDENTITIES; i++) {
+            vectors[i] = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+            gallery.put("face" + i, new float[][]{vectors[i]});
+            long start = System.nanoTime();
+            index.put("face" + i, vectors[i]);
+            buildNanos += System.nanoTime() - start;
+        }
+
+        float[][] queries = new float[QUERIES][];
+        String[] expected = new String[QUERIES];
+        long exactNanos = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            queries[q] = probe(random, vectors);
+            long start = System.nanoTime();
+            expected[q] = gallery.findNearest(queries[q], 1).getName();
+            exactNanos += System.nanoTime() - start;
+        }
+        System.out.printf("%,d identities: index built in %.1f s, exact scan %.1f us/query%n",
+                IDENTITIES, buildNanos / 1e9, exactNanos / 1e3 / QUERIES);
+
+        double recall = 0;
+        for (int ef : EF_SEARCH) {
+            index.setEfSearch(ef);
+            for (float[] query : queries) {
+                index.search(query, 1);
+            }
+            int hits = 0;
+            long start = System.nanoTime();
+            for (int q = 0; q < QUERIES; q++) {
+                if (index.search(queries[q], 1).get(0).equals(expected[q])) {
+                    hits++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            recall = hits / (double) QUERIES;
+            System.out.printf("efSearch %d: recall@1 %.3f, %.1f us/query%n", ef, recall, elapsed / 1e3 / QUERIES);
+        }
+        assertTrue("recall@1 at the widest beam was " + recall, recall >= 0.95);
+    }
+
+    // A noisy, renormalized copy of a random enrolled vector.
+    private static float[] probe(Random random, float[][] vectors) {
+        float[] query = vectors[random.nextInt(vectors.length)].clone();
+        for (int d = 0; d < DIMENSION; d++) {
+            query[d] += (float) random.nextGaussian() * PROBE_NOISE;
+        }
+        return EmbeddingGallery.normalize(query);
+    }
+}
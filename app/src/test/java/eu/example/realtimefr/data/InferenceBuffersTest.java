@@ -0,0 +1,230 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class InferenceBuffersTest {
+
+    private static final int INPUT_SIZE = 160;
+    private static final int EMBEDDING_SIZE = 512;
+
+    @Test
+    public void packsPixelsAsNormalizedRgbFloats() {
+        InferenceBuffers buffers = new InferenceBuffers(2, false, 128f, 128f, 4);
+        buffers.pixels()[0] = 0xFF00FF80;
+        buffers.pixels()[3] = 0xFFFFFFFF;
+
+        buffers.fillInput();
+
+        ByteBuffer input = buffers.input();
+        assertEquals(2 * 2 * 3 * 4, input.position());
+        assertEquals(-1f, input.getFloat(0), 0f);
+        assertEquals(127f / 128f, input.getFloat(4), 0f);
+        assertEquals(0f, input.getFloat(8), 0f);
+        assertEquals(127f / 128f, input.getFloat(44), 0f);
+        assertSame(input, buffers.inputs()[0]);
+    }
+
+    @Test
+    public void packsPixelsAsRawBytesForQuantizedModels() {
+        InferenceBuffers buffers = new InferenceBuffers(1, true, 128f, 128f, 4);
+        buffers.pixels()[0] = 0xFF102030;
+
+        buffers.fillInput();
+
+        assertEquals(3, buffers.input().position());
+        assertEquals(0x10, buffers.input().get(0));
+        assertEquals(0x20, buffers.input().get(1));
+        assertEquals(0x30, buffers.input().get(2));
+    }
+
+    @Test
+    public void quantizesInputWithTheTensorParameters() {
+        InferenceBuffers buffers = new InferenceBuffers(1, InferenceBuffers.TensorType.int8(1f / 128, 0), 128f, 128f,
+                InferenceBuffers.TensorType.FLOAT32, 4);
+        buffers.pixels()[0] = 0xFF00FF80;
+
+        buffers.fillInput();
+
+        assertEquals(-128, buffers.input().get(0));
+        assertEquals(127, buffers.input().get(1));
+        assertEquals(0, buffers.input().get(2));
+
+        InferenceBuffers unsigned = new InferenceBuffers(1, InferenceBuffers.TensorType.uint8(1f / 255, 0), 0f, 255f,
+                InferenceBuffers.TensorType.FLOAT32, 4);
+        unsigned.pixels()[0] = 0xFF00FF80;
+        unsigned.fillInput();
+        assertEquals(0x80, unsigned.input().get(2) & 0xFF);
+    }
+
+    @Test
+    public void dequantizesIntegerOutput() {
+        InferenceBuffers buffers = new InferenceBuffers(1, InferenceBuffers.TensorType.int8(1f / 128, 0), 128f, 128f,
+                InferenceBuffers.TensorType.int8(0.05f, -10), 2);
+        ByteBuffer output = (ByteBuffer) buffers.outputs().get(0);
+        assertEquals(2, output.capacity());
+        output.put(0, (byte) 50).put(1, (byte) 70);
+
+        float[] embedding = buffers.readEmbedding(new float[2]);
+
+        assertEquals(0.6f, embedding[0], 1e-6f);
+        assertEquals(0.8f, embedding[1], 1e-6f);
+    }
+
+    @Test
+    public void readsNormalizedEmbeddingFromOutput() {
+        InferenceBuffers buffers = new InferenceBuffers(1, false, 128f, 128f, 2);
+        ByteBuffer output = (ByteBuffer) buffers.outputs().get(0);
+        output.putFloat(0, 3f).putFloat(4, 4f);
+
+        float[] embedding = buffers.readEmbedding(new float[2]);
+
+        assertEquals(0.6f, embedding[0], 1e-6f);
+        assertEquals(0.8f, embedding[1], 1e-6f);
+    }
+
+    @Test
+    public void batchSlotsArePackedAndReadIndependently() {
+        InferenceBuffers buffers = new InferenceBuffers(1, false, 0f, 1f, 2);
+        assertTrue(buffers.reserveBatch(4));
+        assertFalse(buffers.reserveBatch(4));
+        for (int slot = 0; slot < 4; slot++) {
+            buffers.pixels()[0] = 0xFF000000 | slot;
+            buffers.fillInput(slot);
+        }
+        ByteBuffer output = (ByteBuffer) buffers.outputs().get(0);
+        for (int slot = 0; slot < 4; slot++) {
+            output.putFloat(slot * 8, slot);
+            output.putFloat(slot * 8 + 4, 1f);
+        }
+
+        assertEquals(4 * 3 * 4, buffers.input().capacity());
+        assertEquals(4 * 2 * 4, output.capacity());
+        assertArrayEquals(new int[]{4, 1, 1, 3}, buffers.inputShape());
+        for (int slot = 0; slot < 4; slot++) {
+            assertEquals(slot, buffers.input().getFloat(slot * 12 + 8), 0f);
+            float[] embedding = buffers.readEmbedding(slot, new float[2]);
+            assertEquals(slot / (float) Math.sqrt(slot * slot + 1), embedding[0], 1e-6f);
+        }
+    }
+
+    // Frames with fewer faces run in the first slots of the largest batch so far, and single faces in their own
+    // batch, so switching between them never reallocates the tensors.
+    @Test
+    public void smallerBatchesReuseTheTensors() {
+        InferenceBuffers buffers = new InferenceBuffers(2, true, 128f, 128f, 8);
+        assertTrue(buffers.reserveBatch(4));
+        ByteBuffer input = buffers.input();
+        Object output = buffers.outputs().get(0);
+        buffers.reserveBatch(1);
+        buffers.reserveBatch(4);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        boolean toSingle = buffers.reserveBatch(1);
+        boolean toBatch = buffers.reserveBatch(4);
+        boolean smaller = buffers.reserveBatch(3);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(toSingle);
+        assertTrue(toBatch);
+        assertFalse(smaller);
+        assertEquals(0, allocated);
+        assertSame(input, buffers.input());
+        assertSame(input, buffers.inputs()[0]);
+        assertSame(output, buffers.outputs().get(0));
+        assertEquals(4, buffers.getBatchSize());
+        assertArrayEquals(new int[]{4, 2, 2, 3}, buffers.inputShape());
+        assertEquals(4 * 2 * 2 * 3, input.capacity());
+
+        assertTrue(buffers.reserveBatch(5));
+        assertEquals(8, buffers.getBatchSize());
+        assertEquals(8 * 8 * 4, ((ByteBuffer) buffers.outputs().get(0)).capacity());
+    }
+
+    // A crowded frame must not leave every later single-face run padded to its batch.
+    @Test
+    public void singleFaceRunsInABatchOfOneAfterACrowdedFrame() {
+        InferenceBuffers buffers = new InferenceBuffers(2, false, 0f, 1f, 2);
+        assertTrue(buffers.reserveBatch(16));
+        assertFalse(buffers.reserveBatch(9));
+
+        assertTrue(buffers.reserveBatch(1));
+
+        assertEquals(1, buffers.getBatchSize());
+        assertArrayEquals(new int[]{1, 2, 2, 3}, buffers.inputShape());
+        assertEquals(2 * 2 * 3 * 4, buffers.input().capacity());
+        ByteBuffer output = (ByteBuffer) buffers.outputs().get(0);
+        assertEquals(2 * 4, output.capacity());
+        output.putFloat(0, 3f).putFloat(4, 4f);
+        assertArrayEquals(new float[]{0.6f, 0.8f}, buffers.readEmbedding(new float[2]), 1e-6f);
+
+        assertTrue(buffers.reserveBatch(2));
+        assertEquals(16, buffers.getBatchSize());
+    }
+
+    @Test
+    public void batchSizesArePowersOfTwo() {
+        assertEquals(1, InferenceBuffers.batchSizeFor(0));
+        assertEquals(1, InferenceBuffers.batchSizeFor(1));
+        assertEquals(2, InferenceBuffers.batchSizeFor(2));
+        assertEquals(4, InferenceBuffers.batchSizeFor(3));
+        assertEquals(4, InferenceBuffers.batchSizeFor(4));
+        assertEquals(8, InferenceBuffers.batchSizeFor(5));
+        assertEquals(16, InferenceBuffers.batchSizeFor(16));
+    }
+
+    // The frame path of processImage: packing the input, the model writing its output, reading the embedding back
+    // and matching it against the gallery must not allocate once warm.
+    @Test
+    public void steadyStateAllocatesNothing() {
+        InferenceBuffers buffers = new InferenceBuffers(INPUT_SIZE, false, 128f, 128f, EMBEDDING_SIZE);
+        EmbeddingGallery gallery = new EmbeddingGallery(EMBEDDING_SIZE);
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            gallery.put("face" + i, new float[][]{EmbeddingGalleryTest.randomVector(random, EMBEDDING_SIZE, 1f)});
+        }
+        float[][] query = new float[1][EMBEDDING_SIZE];
+        EmbeddingGallery.Nearest nearest = new EmbeddingGallery.Nearest();
+        for (int i = 0; i < 2000; i++) {
+            runOnce(buffers, query, gallery, nearest, i);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 500; i++) {
+            runOnce(buffers, query, gallery, nearest, i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals("bytes allocated over 500 faces", 0, allocated);
+        assertNotNull(nearest.getName(0));
+    }
+
+    private static void runOnce(InferenceBuffers buffers, float[][] query, EmbeddingGallery gallery,
+                                EmbeddingGallery.Nearest nearest, int frame) {
+        int[] pixels = buffers.pixels();
+        for (int p = 0; p < pixels.length; p++) {
+            pixels[p] = frame * 31 + p;
+        }
+        buffers.fillInput();
+        ByteBuffer output = (ByteBuffer) buffers.outputs().get(0);
+        for (int i = 0; i < EMBEDDING_SIZE; i++) {
+            output.putFloat(i * 4, (i * 7 + frame) % 13 - 6);
+        }
+        buffers.readEmbedding(query[0]);
+        gallery.findNearest(query, 1, 8, nearest);
+    }
+}
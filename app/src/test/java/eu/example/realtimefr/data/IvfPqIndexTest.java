@@ -0,0 +1,129 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Random;
+
+public class IvfPqIndexTest {
+
+    private static final int DIMENSION = 64;
+    private static final int SUBSPACES = 16;
+    private static final int LISTS = 16;
+
+    private File file;
+
+    @After
+    public void tearDown() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    private static float[][] randomGallery(Random random, int size) {
+        float[][] vectors = new float[size][];
+        for (int i = 0; i < size; i++) {
+            vectors[i] = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+        }
+        return vectors;
+    }
+
+    private static IvfPqIndex index(float[][] vectors, int probeCount) {
+        float[] rows = new float[vectors.length * DIMENSION];
+        for (int i = 0; i < vectors.length; i++) {
+            System.arraycopy(vectors[i], 0, rows, i * DIMENSION, DIMENSION);
+        }
+        IvfPqIndex index = IvfPqIndex.train(rows, vectors.length, DIMENSION, LISTS, SUBSPACES, probeCount, 8, 42);
+        for (int i = 0; i < vectors.length; i++) {
+            index.put("face" + i, vectors[i]);
+        }
+        return index;
+    }
+
+    // A probe is a noisy capture of an enrolled face; its identity has to survive into the shortlist that gets
+    // re-ranked exactly.
+    @Test
+    public void shortlistKeepsIdentityOfNoisyProbe() {
+        Random random = new Random(3);
+        float[][] vectors = randomGallery(random, 3000);
+        IvfPqIndex index = index(vectors, 4);
+
+        int found = 0;
+        for (int q = 0; q < 200; q++) {
+            int identity = random.nextInt(vectors.length);
+            float[] query = vectors[identity].clone();
+            for (int d = 0; d < DIMENSION; d++) {
+                query[d] += (float) random.nextGaussian() * 0.05f;
+            }
+            if (index.search(EmbeddingGallery.normalize(query), 32).contains("face" + identity)) {
+                found++;
+            }
+        }
+        assertTrue("recall@32 was " + found / 200.0, found >= 190);
+        assertEquals(SUBSPACES, index.getCodeSize());
+    }
+
+    @Test
+    public void removeAndReplaceUpdateTheLists() {
+        Random random = new Random(5);
+        float[][] vectors = randomGallery(random, 1000);
+        IvfPqIndex index = index(vectors, LISTS);
+
+        assertTrue(index.remove("face7"));
+        assertFalse(index.remove("face7"));
+        assertFalse(index.contains("face7"));
+        assertEquals(999, index.size());
+        assertFalse(index.search(vectors[7], 50).contains("face7"));
+
+        index.put("face8", vectors[7]);
+        assertEquals(999, index.size());
+        assertEquals("face8", index.search(vectors[7], 1).get(0));
+        assertEquals(5, index.search(vectors[8], 5).size());
+    }
+
+    @Test
+    public void saveAndLoadKeepTheCodes() throws IOException {
+        Random random = new Random(9);
+        float[][] vectors = randomGallery(random, 1000);
+        IvfPqIndex index = index(vectors, 4);
+        index.remove("face3");
+        index.setSourceVersion(12);
+        file = File.createTempFile("faces", ".ivfpq");
+        index.save(file);
+
+        IvfPqIndex loaded = IvfPqIndex.load(file);
+
+        assertEquals(12, loaded.getSourceVersion());
+        assertEquals(999, loaded.size());
+        assertEquals(4, loaded.getProbeCount());
+        for (int q = 0; q < 20; q++) {
+            float[] query = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+            List<String> expected = index.search(query, 10);
+            assertEquals(expected, loaded.search(query, 10));
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+        try {
+            IvfPqIndex.load(file);
+            fail("Truncated index was accepted");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void trainRejectsUnevenSubspaces() {
+        IvfPqIndex.train(new float[300 * 10], 300, 10, 4, 3, 1, 1, 0);
+    }
+}
@@ -0,0 +1,34 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyRecorderTest {
+
+    @Test
+    public void reportsNearestRankPercentiles() {
+        LatencyRecorder latency = new LatencyRecorder(20);
+        for (int i = 20; i >= 1; i--) {
+            latency.record(i * 1_000_000L);
+        }
+
+        assertEquals(10.0, latency.percentileMillis(50), 0);
+        assertEquals(19.0, latency.percentileMillis(95), 0);
+        assertEquals(20.0, latency.percentileMillis(100), 0);
+        assertEquals(1.0, latency.percentileMillis(0), 0);
+    }
+
+    @Test
+    public void keepsTheFirstSamplesOnly() {
+        LatencyRecorder latency = new LatencyRecorder(2);
+        latency.record(1_000_000L);
+        latency.record(2_000_000L);
+        latency.record(90_000_000L);
+
+        assertEquals(2, latency.getCount());
+        assertEquals(2.0, latency.percentileMillis(100), 0);
+        assertTrue(Double.isNaN(new LatencyRecorder(4).percentileMillis(50)));
+    }
+}
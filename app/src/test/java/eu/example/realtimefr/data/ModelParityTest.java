@@ -0,0 +1,109 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class ModelParityTest {
+
+    private static final int DIMENSION = 512;
+    private static final int IDENTITIES = 500;
+    private static final float PROBE_NOISE = 0.03f;
+
+    @Test
+    public void countsIdentityAndDecisionAgreement() {
+        ModelParity parity = new ModelParity(1f);
+        parity.addEmbedding(new float[]{1, 0}, new float[]{0.6f, 0.8f});
+        parity.addEmbedding(new float[]{1, 0}, new float[]{1, 0});
+
+        parity.addMatch("alice", 0.5f, "alice", 0.6f);
+        parity.addMatch("alice", 0.9f, "alice", 1.1f);
+        parity.addMatch("alice", 1.2f, "bob", 1.3f);
+        parity.addMatch("alice", 0.5f, "bob", 0.5f);
+
+        assertEquals(0.8, parity.getMeanSimilarity(), 1e-6);
+        assertEquals(0.6f, parity.getMinSimilarity(), 1e-6f);
+        assertEquals(0.5, parity.getIdentityAgreement(), 0);
+        assertEquals(0.5, parity.getDecisionAgreement(), 0);
+    }
+
+    // An int8 output tensor read back through InferenceBuffers against the float embedding it quantizes, matched
+    // against a gallery enrolled with each.
+    @Test
+    public void int8OutputsAgreeWithFloat() {
+        Random random = new Random(11);
+        InferenceBuffers.TensorType int8 = InferenceBuffers.TensorType.int8(1f / 64, 3);
+        InferenceBuffers buffers = new InferenceBuffers(1, int8, 128f, 128f, int8, DIMENSION);
+        ByteBuffer output = (ByteBuffer) buffers.outputs().get(0);
+
+        float[][] gallery = new float[IDENTITIES][];
+        float[][] quantizedGallery = new float[IDENTITIES][];
+        for (int i = 0; i < IDENTITIES; i++) {
+            gallery[i] = randomUnitVector(random);
+            quantizedGallery[i] = quantize(buffers, output, int8, gallery[i]);
+        }
+
+        ModelParity parity = new ModelParity(1f);
+        for (int q = 0; q < 1000; q++) {
+            int source = random.nextInt(IDENTITIES);
+            float[] probe = new float[DIMENSION];
+            for (int d = 0; d < DIMENSION; d++) {
+                // Half the probes are strangers far from every identity.
+                probe[d] = q % 2 == 0 ? gallery[source][d] + (float) random.nextGaussian() * PROBE_NOISE : (float) random.nextGaussian();
+            }
+            EmbeddingGallery.normalize(probe);
+            float[] quantizedProbe = quantize(buffers, output, int8, probe);
+            parity.addEmbedding(probe, quantizedProbe);
+
+            int reference = nearest(gallery, probe);
+            int candidate = nearest(quantizedGallery, quantizedProbe);
+            parity.addMatch("id" + reference, distance(gallery[reference], probe),
+                    "id" + candidate, distance(quantizedGallery[candidate], quantizedProbe));
+        }
+
+        System.out.println("int8 output parity: " + parity);
+        assertTrue(parity.toString(), parity.getMinSimilarity() > 0.99f);
+        assertTrue(parity.toString(), parity.getDecisionAgreement() >= 0.99);
+    }
+
+    private static float[] quantize(InferenceBuffers buffers, ByteBuffer output, InferenceBuffers.TensorType type, float[] embedding) {
+        for (int d = 0; d < DIMENSION; d++) {
+            output.put(d, type.quantize(embedding[d] * 8));
+        }
+        return buffers.readEmbedding(new float[DIMENSION]);
+    }
+
+    private static float[] randomUnitVector(Random random) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return EmbeddingGallery.normalize(vector);
+    }
+
+    private static int nearest(float[][] gallery, float[] query) {
+        int nearest = 0;
+        float best = Float.MAX_VALUE;
+        for (int i = 0; i < gallery.length; i++) {
+            float distance = distance(gallery[i], query);
+            if (distance < best) {
+                best = distance;
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+
+    private static float distance(float[] a, float[] b) {
+        float sum = 0;
+        for (int d = 0; d < a.length; d++) {
+            float diff = a[d] - b[d];
+            sum += diff * diff;
+        }
+        return (float) Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,112 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+public class RecognitionCacheTest {
+
+    private static RecognitionCache cache() {
+        return new RecognitionCache(15, 1000, 0.15f, 0.2f, 1f, 0.1f);
+    }
+
+    @Test
+    public void reusesResultWhileTheBoxStaysPut() {
+        RecognitionCache cache = cache();
+        assertNull(cache.lookup(1, 100, 100, 200, 200, 0));
+        cache.store(1, "alice", 0.6f, 100, 100, 200, 200, 0);
+
+        RecognitionCache.Entry entry = cache.lookup(1, 104, 98, 203, 199, 33);
+
+        assertNotNull(entry);
+        assertEquals("alice", entry.getLabel());
+        assertEquals(0.6f, entry.getDistance(), 0f);
+        assertNull(cache.lookup(2, 100, 100, 200, 200, 33));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void reembedsAfterMovementScaleAgeOrFrameLimit() {
+        RecognitionCache cache = cache();
+        cache.store(1, "alice", 0.6f, 100, 100, 200, 200, 0);
+
+        assertNull("moved", cache.lookup(1, 120, 100, 220, 200, 10));
+        assertNull("grew", cache.lookup(1, 90, 90, 215, 215, 10));
+        assertNull("too old", cache.lookup(1, 100, 100, 200, 200, 1001));
+
+        for (int frame = 0; frame < 15; frame++) {
+            assertNotNull(cache.lookup(1, 100, 100, 200, 200, frame));
+        }
+        assertNull("frame limit", cache.lookup(1, 100, 100, 200, 200, 15));
+    }
+
+    @Test
+    public void marginalMatchesAreNeverReused() {
+        RecognitionCache cache = cache();
+        cache.store(1, "alice", 0.95f, 100, 100, 200, 200, 0);
+        cache.store(2, "bob", 1.05f, 300, 100, 400, 200, 0);
+        cache.store(3, "carol", 1.5f, 500, 100, 600, 200, 0);
+
+        assertNull(cache.lookup(1, 100, 100, 200, 200, 10));
+        assertNull(cache.lookup(2, 300, 100, 400, 200, 10));
+        assertNotNull("clearly unknown", cache.lookup(3, 500, 100, 600, 200, 10));
+    }
+
+    @Test
+    public void stableTracksAreReusedLonger() {
+        RecognitionCache cache = cache();
+        cache.setStableMultiplier(4);
+        cache.store(1, "alice", 0.5f, 100, 100, 200, 200, 0, true);
+        cache.store(2, "bob", 0.5f, 300, 100, 400, 200, 0);
+
+        for (int frame = 0; frame < 60; frame++) {
+            assertNotNull(cache.lookup(1, 100, 100, 200, 200, frame * 33L));
+        }
+        assertNull(cache.lookup(1, 100, 100, 200, 200, 61 * 33L));
+        assertNull(cache.lookup(2, 300, 100, 400, 200, 1500));
+        assertNull("still re-embedded when it moves", cache.lookup(1, 130, 100, 230, 200, 10));
+    }
+
+    @Test
+    public void retainTracksEvictsVanishedFaces() {
+        RecognitionCache cache = cache();
+        cache.store(1, "alice", 0.5f, 0, 0, 10, 10, 0);
+        cache.store(2, "bob", 0.5f, 20, 0, 30, 10, 0);
+
+        cache.retainTracks(new HashSet<>(Collections.singletonList(2)));
+
+        assertEquals(1, cache.size());
+        assertNull(cache.lookup(1, 0, 0, 10, 10, 1));
+        assertNotNull(cache.lookup(2, 20, 0, 30, 10, 1));
+    }
+
+    // Three people standing in front of a 30 fps camera with a few pixels of detector jitter for ten seconds.
+    @Test
+    public void steadySceneEmbedsAnOrderOfMagnitudeLess() {
+        RecognitionCache cache = cache();
+        Random random = new Random(4);
+        int embeddings = 0;
+        int lookups = 0;
+        for (int frame = 0; frame < 300; frame++) {
+            long now = frame * 33L;
+            for (int track = 0; track < 3; track++) {
+                float left = track * 200 + random.nextInt(5);
+                float top = 100 + random.nextInt(5);
+                lookups++;
+                if (cache.lookup(track, left, top, left + 120, top + 120, now) == null) {
+                    embeddings++;
+                    cache.store(track, "person" + track, 0.5f, left, top, left + 120, top + 120, now);
+                }
+            }
+        }
+        assertTrue("embedded " + embeddings + " of " + lookups, embeddings * 10 <= lookups);
+    }
+}
@@ -0,0 +1,49 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class TopKTest {
+
+    @Test
+    public void keepsHighestScoresBestFirst() {
+        TopK top = new TopK(3);
+        float[] scores = {0.1f, 0.9f, -0.5f, 0.7f, 0.3f, 0.8f};
+        for (int id = 0; id < scores.length; id++) {
+            top.offer(id, scores[id]);
+        }
+
+        int[] ids = new int[3];
+        float[] kept = new float[3];
+        assertEquals(3, top.drainSorted(ids, kept));
+        assertArrayEquals(new int[]{1, 5, 3}, ids);
+        assertArrayEquals(new float[]{0.9f, 0.8f, 0.7f}, kept, 0f);
+        assertEquals(0, top.size());
+    }
+
+    @Test
+    public void matchesFullSortOnRandomScores() {
+        Random random = new Random(3);
+        float[] scores = new float[1000];
+        TopK top = new TopK(25);
+        for (int id = 0; id < scores.length; id++) {
+            scores[id] = random.nextFloat();
+            top.offer(id, scores[id]);
+        }
+
+        float[] expected = scores.clone();
+        Arrays.sort(expected);
+        int[] ids = new int[25];
+        float[] kept = new float[25];
+        top.drainSorted(ids, kept);
+        for (int i = 0; i < 25; i++) {
+            assertEquals(expected[expected.length - 1 - i], kept[i], 0f);
+            assertEquals(scores[ids[i]], kept[i], 0f);
+        }
+    }
+}
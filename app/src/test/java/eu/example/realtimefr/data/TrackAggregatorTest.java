@@ -0,0 +1,95 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+public class TrackAggregatorTest {
+
+    private static final int DIMENSION = 64;
+
+    private static float dot(float[] a, float[] b) {
+        float dot = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+        }
+        return dot;
+    }
+
+    private static float[] noisy(Random random, float[] face, float noise) {
+        float[] sample = face.clone();
+        for (int d = 0; d < sample.length; d++) {
+            sample[d] += (float) random.nextGaussian() * noise;
+        }
+        return EmbeddingGallery.normalize(sample);
+    }
+
+    @Test
+    public void windowMeanIsCloserToTheFaceThanSingleFrames() {
+        Random random = new Random(2);
+        float[] face = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+        TrackAggregator aggregator = new TrackAggregator(5, 0.3f);
+
+        float singleSimilarity = 0;
+        float[] mean = null;
+        for (int frame = 0; frame < 5; frame++) {
+            float[] sample = noisy(random, face, 0.1f);
+            singleSimilarity += dot(face, sample) / 5;
+            mean = aggregator.add(7, sample);
+        }
+
+        assertEquals(1f, dot(mean, mean), 1e-5f);
+        assertTrue(dot(face, mean) > singleSimilarity);
+    }
+
+    @Test
+    public void dissimilarEmbeddingRestartsTheWindow() {
+        Random random = new Random(3);
+        float[] alice = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+        float[] bob = EmbeddingGallery.normalize(EmbeddingGalleryTest.randomVector(random, DIMENSION, 1f));
+        TrackAggregator aggregator = new TrackAggregator(5, 0.5f);
+        for (int frame = 0; frame < 5; frame++) {
+            aggregator.add(1, alice);
+            aggregator.recordMatch(1, "alice");
+        }
+
+        float[] mean = aggregator.add(1, bob);
+
+        assertEquals(1f, dot(mean, bob), 1e-5f);
+        assertFalse(aggregator.recordMatch(1, "bob"));
+    }
+
+    @Test
+    public void trackIsStableOnceTheWholeWindowAgrees() {
+        TrackAggregator aggregator = new TrackAggregator(3, 0.5f);
+        float[] face = {1f, 0f};
+        assertFalse(aggregator.recordMatch(1, "alice"));
+
+        aggregator.add(1, face);
+        assertFalse(aggregator.recordMatch(1, "alice"));
+        assertFalse(aggregator.recordMatch(1, "alice"));
+        assertTrue(aggregator.recordMatch(1, "alice"));
+        assertFalse(aggregator.recordMatch(1, "bob"));
+        assertFalse(aggregator.recordMatch(1, null));
+        assertFalse(aggregator.recordMatch(1, null));
+        assertTrue("unknown can settle too", aggregator.recordMatch(1, null));
+    }
+
+    @Test
+    public void retainTracksForgetsVanishedFaces() {
+        TrackAggregator aggregator = new TrackAggregator(3, 0.5f);
+        aggregator.add(1, new float[]{1f, 0f});
+        aggregator.add(2, new float[]{0f, 1f});
+
+        aggregator.retainTracks(new HashSet<>(Collections.singletonList(1)));
+
+        assertEquals(1, aggregator.size());
+        assertFalse(aggregator.recordMatch(2, "bob"));
+    }
+}
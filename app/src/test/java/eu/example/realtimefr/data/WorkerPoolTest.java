@@ -0,0 +1,115 @@
+package eu.example.realtimefr.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class WorkerPoolTest {
+
+    private static final class Worker {
+        final AtomicBoolean busy = new AtomicBoolean();
+        boolean sharedUse;
+
+        void use() {
+            if (!busy.compareAndSet(false, true)) {
+                sharedUse = true;
+            }
+            Thread.yield();
+            busy.set(false);
+        }
+    }
+
+    @Test
+    public void submittedTasksRunOnSeparateWorkersInParallel() throws Exception {
+        Worker first = new Worker();
+        Worker second = new Worker();
+        WorkerPool<Worker> pool = new WorkerPool<>(Arrays.asList(first, second), "TestWorker");
+        CountDownLatch bothRunning = new CountDownLatch(2);
+
+        CompletableFuture<Worker> a = pool.submit(worker -> awaitTogether(bothRunning, worker));
+        CompletableFuture<Worker> b = pool.submit(worker -> awaitTogether(bothRunning, worker));
+
+        assertTrue(bothRunning.await(5, TimeUnit.SECONDS));
+        assertTrue(a.get(5, TimeUnit.SECONDS) != b.get(5, TimeUnit.SECONDS));
+        pool.shutdown();
+    }
+
+    private static Worker awaitTogether(CountDownLatch latch, Worker worker) {
+        latch.countDown();
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return worker;
+    }
+
+    @Test
+    public void aWorkerIsNeverUsedByTwoThreadsAtOnce() throws Exception {
+        List<Worker> workers = Arrays.asList(new Worker(), new Worker(), new Worker());
+        WorkerPool<Worker> pool = new WorkerPool<>(workers, "TestWorker");
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            tasks.add(pool.submit(worker -> {
+                worker.use();
+                return null;
+            }));
+        }
+        Thread borrower = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                Worker worker = pool.acquire();
+                try {
+                    worker.use();
+                } finally {
+                    pool.release(worker);
+                }
+            }
+        });
+        borrower.start();
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        borrower.join(30_000);
+
+        for (Worker worker : workers) {
+            assertFalse(worker.sharedUse);
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void borrowedWorkersComeBackToThePool() {
+        Worker only = new Worker();
+        WorkerPool<Worker> pool = new WorkerPool<>(Arrays.asList(only), "TestWorker");
+
+        Worker borrowed = pool.acquire();
+        assertSame(only, borrowed);
+        pool.release(borrowed);
+        assertSame(only, pool.submit(worker -> worker).join());
+        try {
+            pool.release(new Worker());
+            pool.release(new Worker());
+            fail("released more workers than the pool holds");
+        } catch (IllegalStateException expected) {
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void threadsPerWorkerDoesNotOversubscribeCores() {
+        assertEquals(4, WorkerPool.threadsPerWorker(2, 4, 8));
+        assertEquals(2, WorkerPool.threadsPerWorker(4, 4, 8));
+        assertEquals(1, WorkerPool.threadsPerWorker(4, 4, 2));
+        assertEquals(1, WorkerPool.threadsPerWorker(1, 0, 8));
+    }
+}
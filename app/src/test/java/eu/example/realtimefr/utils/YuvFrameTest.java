@@ -0,0 +1,113 @@
+package eu.example.realtimefr.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class YuvFrameTest {
+
+    private static final int SIZE = 8;
+
+    // Random luminance with flat chroma, so bilinear chroma sampling cannot differ from the full-frame conversion.
+    private static byte[] randomLuminance(Random random, int stride, int height) {
+        byte[] luminance = new byte[stride * height];
+        random.nextBytes(luminance);
+        return luminance;
+    }
+
+    private static byte[] flat(int length, int value) {
+        byte[] plane = new byte[length];
+        Arrays.fill(plane, (byte) value);
+        return plane;
+    }
+
+    @Test
+    public void unrotatedFullFrameMatchesTheFrameConversion() {
+        Random random = new Random(1);
+        int stride = SIZE + 4;
+        byte[] y = randomLuminance(random, stride, SIZE);
+        byte[] u = flat(stride * SIZE / 2, 100);
+        byte[] v = flat(stride * SIZE / 2, 170);
+        int[] expected = new int[SIZE * SIZE];
+        ImageProcessor.transformYUV420ToRGB(y, u, v, SIZE, SIZE, stride, stride, 1, expected);
+
+        int[] sampled = new int[SIZE * SIZE];
+        new YuvFrame(y, u, v, SIZE, SIZE, stride, stride, 1, 0).sample(0, 0, SIZE, SIZE, SIZE, sampled);
+
+        assertArrayEquals(expected, sampled);
+    }
+
+    @Test
+    public void rotationTurnsTheFrameClockwise() {
+        Random random = new Random(2);
+        byte[] y = randomLuminance(random, SIZE, SIZE);
+        byte[] u = flat(SIZE * SIZE / 2, 128);
+        byte[] v = flat(SIZE * SIZE / 2, 128);
+        int[] frame = new int[SIZE * SIZE];
+        ImageProcessor.transformYUV420ToRGB(y, u, v, SIZE, SIZE, SIZE, SIZE, 1, frame);
+
+        for (int rotation : new int[]{90, 180, 270, -90}) {
+            int[] sampled = new int[SIZE * SIZE];
+            new YuvFrame(y, u, v, SIZE, SIZE, SIZE, SIZE, 1, rotation).sample(0, 0, SIZE, SIZE, SIZE, sampled);
+            for (int row = 0; row < SIZE; row++) {
+                for (int col = 0; col < SIZE; col++) {
+                    int frameX, frameY;
+                    switch ((rotation + 360) % 360) {
+                        case 90:
+                            frameX = row;
+                            frameY = SIZE - 1 - col;
+                            break;
+                        case 180:
+                            frameX = SIZE - 1 - col;
+                            frameY = SIZE - 1 - row;
+                            break;
+                        default:
+                            frameX = SIZE - 1 - row;
+                            frameY = col;
+                            break;
+                    }
+                    assertEquals("rotation " + rotation + " at " + col + "," + row,
+                            frame[frameY * SIZE + frameX], sampled[row * SIZE + col]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void downscalingAveragesNeighbouringPixels() {
+        int width = 16, height = 12;
+        byte[] y = new byte[width * height];
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                y[row * width + col] = (byte) (40 + 8 * col + 4 * row);
+            }
+        }
+        // Interleaved chroma as in NV21: both planes share one buffer, two bytes apart.
+        byte[] interleaved = new byte[width * height / 2 + 1];
+        for (int i = 0; i < interleaved.length; i++) {
+            interleaved[i] = (byte) (i % 2 == 0 ? 150 : 90);
+        }
+        byte[] v = interleaved;
+        byte[] u = Arrays.copyOfRange(interleaved, 1, interleaved.length);
+
+        // The box covers columns 2..9 and rows 4..11, halved to 4 x 4.
+        int[] sampled = new int[16];
+        new YuvFrame(y, u, v, width, height, width, width, 2, 0).sample(2, 4, 10, 12, 4, sampled);
+
+        for (int row = 0; row < 4; row++) {
+            for (int col = 0; col < 4; col++) {
+                int frameX = 2 + 2 * col;
+                int frameY = 4 + 2 * row;
+                int average = 40 + 8 * frameX + 4 + 4 * frameY + 2;
+                int[] expected = new int[1];
+                ImageProcessor.transformYUV420ToRGB(new byte[]{(byte) average}, new byte[]{90}, new byte[]{(byte) 150},
+                        1, 1, 1, 1, 1, expected);
+                assertEquals("at " + col + "," + row, expected[0], sampled[row * 4 + col]);
+            }
+        }
+    }
+}